@@ -0,0 +1,299 @@
+package midied;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import javax.swing.JViewport;
+
+/**
+ * The Benchmarks class times the editor's hot paths: loading a file, finding
+ * the notes of a sequence, adding and removing notes, resizing the piano roll
+ * at different zoom levels and painting it. Each benchmark is run for every
+ * combination of note count and channel count, first to warm up and then to
+ * be measured, and the time per operation is printed. It runs headless, e.g.
+ * 
+ * <pre>
+ * java -Djava.awt.headless=true midied.Benchmarks 1000 10000 100000
+ * </pre>
+ * 
+ * @author 090010514
+ */
+public class Benchmarks {
+	private static final int[] DEFAULT_NOTE_COUNTS = { 1000, 10000, 100000,
+			1000000 };
+	private static final int[] CHANNEL_COUNTS = { 1, 16 };
+	// the beat widths at which update() and painting are timed
+	private static final double[] BEAT_WIDTHS = { 10, 100, 1000 };
+	// the size of the visible part of the piano roll
+	private static final int VIEW_WIDTH = 1200;
+	private static final int VIEW_HEIGHT = 700;
+	// how long to warm up and to measure each benchmark for
+	private static final long WARMUP_NANOS = 1000000000L;
+	private static final long MEASURE_NANOS = 2000000000L;
+	private static final int MIN_ITERATIONS = 5;
+
+	// results are kept here, so that the work can not be optimised away
+	private static volatile Object sink;
+
+	/**
+	 * An operation to be timed.
+	 */
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Run every benchmark.
+	 * 
+	 * @param args
+	 *            The note counts to run the benchmarks with; by default from
+	 *            1k to 1M.
+	 * @throws Exception
+	 *             If a benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		int[] noteCounts = DEFAULT_NOTE_COUNTS;
+		if (args.length > 0) {
+			noteCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				noteCounts[i] = Integer.parseInt(args[i]);
+		}
+		System.out.printf("%-28s %9s %4s %14s %14s%n", "benchmark", "notes",
+				"chan", "mean us/op", "min us/op");
+		for (int notes : noteCounts)
+			for (int channels : CHANNEL_COUNTS)
+				runAll(notes, channels);
+	}
+
+	/**
+	 * Run every benchmark on a sequence of the given size.
+	 */
+	private static void runAll(int noteCount, int channels) throws Exception {
+		final byte[] file = createFile(noteCount, channels);
+		Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(
+				file));
+		String params = String.format("%9d %4d", noteCount, channels);
+
+		time("load MidiSystem", params, new Operation() {
+			public void run() throws Exception {
+				sink = MidiSystem.getSequence(new ByteArrayInputStream(file));
+			}
+		});
+		time("load MidiFileScanner", params, new Operation() {
+			public void run() throws Exception {
+				sink = load(file);
+			}
+		});
+
+		final PianoRollPanel panel = new PianoRollPanel(null);
+		final JViewport viewport = new JViewport();
+		viewport.setView(panel);
+		viewport.setSize(VIEW_WIDTH, VIEW_HEIGHT);
+		final EditableSequence editable = new EditableSequence(sequence);
+		time("findNotes (setSequence)", params, new Operation() {
+			public void run() {
+				panel.clear();
+				panel.setSequence(editable);
+			}
+		});
+
+		// click an empty place in the middle of the sequence, then remove
+		// the note which was added there
+		panel.clear();
+		panel.setSequence(editable);
+		final long middle = sequence.getTickLength() / 2;
+		time("addNote + removeNote", params, new Operation() {
+			public void run() {
+				int x = panel.tickToX(middle);
+				click(panel, x, 5, InputEvent.BUTTON1_DOWN_MASK);
+				click(panel, x, 5, InputEvent.BUTTON3_DOWN_MASK);
+			}
+		});
+
+		for (double beatWidth : BEAT_WIDTHS) {
+			zoomTo(panel, beatWidth);
+			String zoom = String.format(" @%4.0f", beatWidth);
+			time("update()" + zoom, params, new Operation() {
+				public void run() {
+					panel.update();
+					viewport.validate();
+				}
+			});
+			final BufferedImage image = new BufferedImage(VIEW_WIDTH,
+					VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+			viewport.validate();
+			Dimension size = panel.getPreferredSize();
+			panel.setSize(size);
+			final Rectangle view = new Rectangle(Math.max(0, (size.width
+					- VIEW_WIDTH) / 2), Math.max(0,
+					(size.height - VIEW_HEIGHT) / 2), VIEW_WIDTH, VIEW_HEIGHT);
+			time("paintComponent" + zoom, params, new Operation() {
+				public void run() {
+					Graphics2D g = image.createGraphics();
+					g.translate(-view.x, -view.y);
+					g.setClip(view);
+					panel.paint(g);
+					g.dispose();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Run an operation repeatedly, first to warm up and then to measure it,
+	 * and print the time it took.
+	 */
+	private static void time(String name, String params, Operation op)
+			throws Exception {
+		long end = System.nanoTime() + WARMUP_NANOS;
+		for (int i = 0; i < MIN_ITERATIONS || System.nanoTime() < end; i++)
+			op.run();
+		long total = 0;
+		long min = Long.MAX_VALUE;
+		int iterations = 0;
+		end = System.nanoTime() + MEASURE_NANOS;
+		while (iterations < MIN_ITERATIONS || System.nanoTime() < end) {
+			long start = System.nanoTime();
+			op.run();
+			long elapsed = System.nanoTime() - start;
+			total += elapsed;
+			min = Math.min(min, elapsed);
+			iterations++;
+		}
+		System.out.printf("%-28s %s %14.1f %14.1f%n", name, params, total
+				/ 1000.0 / iterations, min / 1000.0);
+	}
+
+	/**
+	 * Send a mouse press and release to the panel.
+	 */
+	private static void click(PianoRollPanel panel, int x, int y,
+			int modifiers) {
+		long now = System.currentTimeMillis();
+		int button = (modifiers & InputEvent.BUTTON3_DOWN_MASK) != 0 ? MouseEvent.BUTTON3
+				: MouseEvent.BUTTON1;
+		panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_PRESSED,
+				now, modifiers, x, y, 1, false, button));
+		panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_RELEASED,
+				now, 0, x, y, 1, false, button));
+	}
+
+	/**
+	 * Zoom the panel horizontally until beats are the given number of pixels
+	 * wide.
+	 */
+	private static void zoomTo(PianoRollPanel panel, double beatWidth) {
+		double current = panel.tickToX(panel.getBarTicks())
+				/ (double) Constants.BEATS_IN_BAR;
+		panel.zoomHorizontally(beatWidth / current, 0);
+	}
+
+	/**
+	 * Build a Sequence through the MidiFileScanner, with every event that
+	 * MidiSystem keeps, so that the two loads do the same work.
+	 */
+	private static Sequence load(byte[] file) throws IOException {
+		final Sequence[] sequence = new Sequence[1];
+		new MidiFileScanner(new ByteArrayInputStream(file))
+				.scan(new MidiFileScanner.Handler() {
+					private Track track;
+
+					public void header(int format, int trackCount,
+							int division) throws IOException {
+						try {
+							sequence[0] = new Sequence(Sequence.PPQ, division);
+						} catch (InvalidMidiDataException e) {
+							throw new IOException(e.toString());
+						}
+					}
+
+					public void startTrack(int index) {
+						track = sequence[0].createTrack();
+					}
+
+					public void shortMessage(long tick, int status,
+							int data1, int data2) throws IOException {
+						try {
+							ShortMessage msg = new ShortMessage();
+							msg.setMessage(status, data1, data2);
+							track.add(new MidiEvent(msg, tick));
+						} catch (InvalidMidiDataException e) {
+							throw new IOException(e.toString());
+						}
+					}
+
+					public void metaMessage(long tick, int type,
+							byte[] data, int length) throws IOException {
+						try {
+							MetaMessage msg = new MetaMessage();
+							msg.setMessage(type, Arrays.copyOf(data, length),
+									length);
+							track.add(new MidiEvent(msg, tick));
+						} catch (InvalidMidiDataException e) {
+							throw new IOException(e.toString());
+						}
+					}
+
+					public void sysexMessage(long tick, int status,
+							byte[] data, int length) throws IOException {
+						try {
+							SysexMessage msg = new SysexMessage();
+							msg.setMessage(status, Arrays.copyOf(data, length),
+									length);
+							track.add(new MidiEvent(msg, tick));
+						} catch (InvalidMidiDataException e) {
+							throw new IOException(e.toString());
+						}
+					}
+
+					public void endTrack(long tick) {
+					}
+				});
+		return sequence[0];
+	}
+
+	/**
+	 * Generate the file for a benchmark: the given number of notes spread
+	 * over the given number of channels, always with the same notes.
+	 */
+	private static byte[] createFile(int noteCount, int channels)
+			throws IOException {
+		CorpusGenerator generator = new CorpusGenerator(noteCount * 31L
+				+ channels);
+		generator.setNotes(noteCount);
+		generator.setChannels(channels);
+		generator.setPolyphony(Math.max(4, channels));
+		File file = File.createTempFile("benchmark", ".mid");
+		try {
+			generator.generate(file);
+			byte[] bytes = new byte[(int) file.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+			return bytes;
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package midied;
+
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * The ChannelStateIndex class records, for every channel, each change of
+ * program, of each controller and of the pitch bend in an EventList, as a
+ * sorted list of (tick, value) checkpoints. The state of every channel at any
+ * tick can then be rebuilt with one binary search per list, instead of
+ * replaying every earlier event, e.g. when the player seeks.
+ * 
+ * @author 090010514
+ */
+public class ChannelStateIndex {
+	// list numbers within a channel: 0-127 are controllers
+	private static final int PROGRAM = 128;
+	private static final int PITCH_BEND = 129;
+	private static final int LISTS_PER_CHANNEL = 130;
+	// controllers which are sent before the program change (bank select)
+	private static final int BANK_MSB = 0;
+	private static final int BANK_LSB = 32;
+	// controllers which must not be chased: data increment and decrement,
+	// and the channel mode messages (all sound off, reset, local control,
+	// all notes off, omni and mono/poly)
+	private static final int DATA_INCREMENT = 96;
+	private static final int DATA_DECREMENT = 97;
+	private static final int FIRST_CHANNEL_MODE = 120;
+	private static final int RESET_ALL_CONTROLLERS = 121;
+	// data entry, and the NRPN and RPN parameter numbers which must be sent
+	// before it so that it changes the right parameter
+	private static final int DATA_ENTRY_MSB = 6;
+	private static final int DATA_ENTRY_LSB = 38;
+	private static final int FIRST_PARAMETER_NUMBER = 98;
+	private static final int LAST_PARAMETER_NUMBER = 101;
+	private static final int PITCH_BEND_CENTRE = 8192;
+
+	// the ticks and values of each list, indexed by
+	// channel * LISTS_PER_CHANNEL + list number; null if the list is empty
+	private final long[][] ticks = new long[16 * LISTS_PER_CHANNEL][];
+	private final int[][] values = new int[16 * LISTS_PER_CHANNEL][];
+	private final int[] sizes = new int[16 * LISTS_PER_CHANNEL];
+
+	/**
+	 * Creates an index of the channel state changes in the given events.
+	 * 
+	 * @param events
+	 *            An EventList.
+	 */
+	public ChannelStateIndex(EventList events) {
+		for (int i = 0; i < events.size(); i++) {
+			MidiMessage msg = events.getMessage(i);
+			if (!(msg instanceof ShortMessage))
+				continue;
+			ShortMessage shortMsg = (ShortMessage) msg;
+			int base = shortMsg.getChannel() * LISTS_PER_CHANNEL;
+			switch (shortMsg.getCommand()) {
+			case ShortMessage.CONTROL_CHANGE:
+				int controller = shortMsg.getData1();
+				if (isChased(controller))
+					add(base + controller, events.getTick(i), shortMsg
+							.getData2());
+				break;
+			case ShortMessage.PROGRAM_CHANGE:
+				add(base + PROGRAM, events.getTick(i), shortMsg.getData1());
+				break;
+			case ShortMessage.PITCH_BEND:
+				add(base + PITCH_BEND, events.getTick(i), shortMsg.getData1()
+						| (shortMsg.getData2() << 7));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Tells if the value of a controller is rebuilt when seeking.
+	 */
+	private static boolean isChased(int controller) {
+		return controller != DATA_INCREMENT && controller != DATA_DECREMENT
+				&& controller < FIRST_CHANNEL_MODE;
+	}
+
+	/**
+	 * Tells if a controller selects the NRPN or RPN which data entry changes.
+	 */
+	private static boolean isParameterNumber(int controller) {
+		return controller >= FIRST_PARAMETER_NUMBER
+				&& controller <= LAST_PARAMETER_NUMBER;
+	}
+
+	/**
+	 * Append a checkpoint to a list. Events arrive in tick order, so the list
+	 * stays sorted.
+	 */
+	private void add(int list, long tick, int value) {
+		int n = sizes[list];
+		if (ticks[list] == null) {
+			ticks[list] = new long[4];
+			values[list] = new int[4];
+		} else if (n == ticks[list].length) {
+			ticks[list] = Arrays.copyOf(ticks[list], 2 * n);
+			values[list] = Arrays.copyOf(values[list], 2 * n);
+		}
+		ticks[list][n] = tick;
+		values[list][n] = value;
+		sizes[list] = n + 1;
+	}
+
+	/**
+	 * Returns the value a list has just before the given tick.
+	 * 
+	 * @return The value, or -1 if it has not been set before the tick.
+	 */
+	private int valueBefore(int list, long tick) {
+		long[] listTicks = ticks[list];
+		if (listTicks == null)
+			return -1;
+		// find the first checkpoint at or after the tick
+		int lo = 0;
+		int hi = sizes[list];
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (listTicks[mid] < tick)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo == 0 ? -1 : values[list][lo - 1];
+	}
+
+	/**
+	 * Returns the program a channel has just before the given tick.
+	 * 
+	 * @param channel
+	 *            A channel (0-15).
+	 * @param tick
+	 *            A tick.
+	 * @return The program, or -1 if no program change comes before the tick.
+	 */
+	public int getProgram(int channel, long tick) {
+		return valueBefore(channel * LISTS_PER_CHANNEL + PROGRAM, tick);
+	}
+
+	/**
+	 * Send the state every channel has just before the given tick. Every
+	 * channel is reset first, with reset all controllers and a centred pitch
+	 * bend, so that nothing is left over from where the player was; then the
+	 * bank select, program, parameter numbers, the other controllers and the
+	 * pitch bend are sent. A controller which is changed later in the
+	 * sequence, but not before the tick, is set to its default, as reset all
+	 * controllers leaves some controllers, such as the volume, alone; a
+	 * program which is only changed later is set to program 0. Events
+	 * at the tick itself are left for the player to send.
+	 * 
+	 * @param tick
+	 *            The tick being sought.
+	 * @param receiver
+	 *            The receiver to which the state is sent.
+	 * @param msg
+	 *            A message which is reused for every state change sent.
+	 */
+	public void chase(long tick, Receiver receiver, ShortMessage msg) {
+		for (int channel = 0; channel < 16; channel++) {
+			int base = channel * LISTS_PER_CHANNEL;
+			send(receiver, msg, ShortMessage.CONTROL_CHANGE, channel,
+					RESET_ALL_CONTROLLERS, 0);
+			sendController(receiver, msg, channel, BANK_MSB, tick);
+			sendController(receiver, msg, channel, BANK_LSB, tick);
+			if (ticks[base + PROGRAM] != null) {
+				// a program which is only changed later starts at 0, as a
+				// controller starts at its default
+				int program = Math.max(valueBefore(base + PROGRAM, tick), 0);
+				send(receiver, msg, ShortMessage.PROGRAM_CHANGE, channel,
+						program, 0);
+			}
+			for (int controller = FIRST_PARAMETER_NUMBER; controller <= LAST_PARAMETER_NUMBER; controller++)
+				sendController(receiver, msg, channel, controller, tick);
+			for (int controller = 0; controller < FIRST_CHANNEL_MODE; controller++)
+				if (controller != BANK_MSB && controller != BANK_LSB
+						&& !isParameterNumber(controller))
+					sendController(receiver, msg, channel, controller, tick);
+			int bend = valueBefore(base + PITCH_BEND, tick);
+			if (bend < 0)
+				bend = PITCH_BEND_CENTRE;
+			send(receiver, msg, ShortMessage.PITCH_BEND, channel, bend & 0x7F,
+					bend >> 7);
+		}
+	}
+
+	/**
+	 * Send the value a controller has just before the given tick, or its
+	 * default if it is only changed later; nothing if it is never changed,
+	 * or if it is data entry and is only changed later.
+	 */
+	private void sendController(Receiver receiver, ShortMessage msg,
+			int channel, int controller, long tick) {
+		int list = channel * LISTS_PER_CHANNEL + controller;
+		if (ticks[list] == null)
+			return;
+		int value = valueBefore(list, tick);
+		// data entry has no default: it would change whichever parameter is
+		// selected
+		if (value < 0 && controller != DATA_ENTRY_MSB
+				&& controller != DATA_ENTRY_LSB)
+			value = defaultValue(controller);
+		send(receiver, msg, ShortMessage.CONTROL_CHANGE, channel, controller,
+				value);
+	}
+
+	/**
+	 * Returns the value a controller has when a channel is reset, as in the
+	 * General MIDI recommended practice.
+	 */
+	private static int defaultValue(int controller) {
+		switch (controller) {
+		case 7: // volume
+			return 100;
+		case 8: // balance
+		case 10: // pan
+			return 64;
+		case 11: // expression
+			return 127;
+		case FIRST_PARAMETER_NUMBER:
+		case FIRST_PARAMETER_NUMBER + 1:
+		case FIRST_PARAMETER_NUMBER + 2:
+		case LAST_PARAMETER_NUMBER:
+			// no parameter selected
+			return 127;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Send a controller change, unless the value is -1.
+	 */
+	private static void send(Receiver receiver, ShortMessage msg, int command,
+			int channel, int data1, int data2) {
+		if (data2 < 0)
+			return;
+		try {
+			msg.setMessage(command, channel, data1, data2);
+		} catch (InvalidMidiDataException e) {
+			return;
+		}
+		receiver.send(msg, -1);
+	}
+}
@@ -0,0 +1,345 @@
+package midied;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * The CorpusGenerator class writes synthetic MIDI files for stress and scale
+ * testing. The same seed and settings always give the same file, byte for
+ * byte, so a worst case can be reproduced from its settings alone.
+ * <p>
+ * Each track is played by a number of voices, each of which plays one note
+ * after another on its own channel; the number of voices is the polyphony.
+ * Controller changes and tempo changes are mixed in at a fixed density. The
+ * file is written one event at a time through a MidiFileWriter, so files of
+ * tens of millions of notes need no more memory than small ones. No key is
+ * struck on a channel while it is still sounding there, so the files pass
+ * MidiTool's check.
+ * 
+ * @author 090010514
+ */
+public class CorpusGenerator {
+	// the controllers which are changed: modulation, volume, pan, expression
+	private static final int[] CONTROLLERS = { 1, 7, 10, 11 };
+	private static final int TEXT = 0x01;
+	private static final int SET_TEMPO = 0x51;
+
+	private final long seed;
+	private long notes = 10000;
+	private int tracks = 1;
+	private int channels = 1;
+	private int polyphony = 4;
+	private int controllersPerBar;
+	private int barsPerTempoChange;
+	private int resolution = Constants.DEFAULT_RESOLUTION;
+
+	/**
+	 * Creates a new CorpusGenerator, which by default writes 10000 notes on
+	 * one track and one channel, four at a time, with no controller or tempo
+	 * changes.
+	 * 
+	 * @param seed
+	 *            The seed from which the notes are chosen.
+	 */
+	public CorpusGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the total number of notes, shared out between the tracks.
+	 * 
+	 * @param notes
+	 *            The number of notes.
+	 */
+	public void setNotes(long notes) {
+		if (notes < 0)
+			throw new IllegalArgumentException("notes: " + notes);
+		this.notes = notes;
+	}
+
+	/**
+	 * Set the number of tracks. With more than one track, a type 1 file is
+	 * written.
+	 * 
+	 * @param tracks
+	 *            The number of tracks, from 1 to 65535.
+	 */
+	public void setTracks(int tracks) {
+		if (tracks < 1 || tracks > 0xFFFF)
+			throw new IllegalArgumentException("tracks: " + tracks);
+		this.tracks = tracks;
+	}
+
+	/**
+	 * Set the number of channels which the voices are spread over.
+	 * 
+	 * @param channels
+	 *            The number of channels, from 1 to 16.
+	 */
+	public void setChannels(int channels) {
+		if (channels < 1 || channels > 16)
+			throw new IllegalArgumentException("channels: " + channels);
+		this.channels = channels;
+	}
+
+	/**
+	 * Set the number of notes each track plays at once.
+	 * 
+	 * @param polyphony
+	 *            The number of voices per track, from 1 to 128.
+	 */
+	public void setPolyphony(int polyphony) {
+		if (polyphony < 1 || polyphony > 128)
+			throw new IllegalArgumentException("polyphony: " + polyphony);
+		this.polyphony = polyphony;
+	}
+
+	/**
+	 * Set how many controller changes each track has per bar.
+	 * 
+	 * @param controllersPerBar
+	 *            The number of controller changes per bar, or 0 for none.
+	 */
+	public void setControllersPerBar(int controllersPerBar) {
+		if (controllersPerBar < 0)
+			throw new IllegalArgumentException("controllers: "
+					+ controllersPerBar);
+		this.controllersPerBar = controllersPerBar;
+	}
+
+	/**
+	 * Set how often the tempo changes. Tempo changes are written to the first
+	 * track.
+	 * 
+	 * @param barsPerTempoChange
+	 *            The number of bars between tempo changes, or 0 for none.
+	 */
+	public void setBarsPerTempoChange(int barsPerTempoChange) {
+		if (barsPerTempoChange < 0)
+			throw new IllegalArgumentException("tempo: " + barsPerTempoChange);
+		this.barsPerTempoChange = barsPerTempoChange;
+	}
+
+	/**
+	 * Set the resolution of the file.
+	 * 
+	 * @param resolution
+	 *            The number of ticks per quarter note, from 1 to 32767.
+	 */
+	public void setResolution(int resolution) {
+		if (resolution < 1 || resolution > 0x7FFF)
+			throw new IllegalArgumentException("resolution: " + resolution);
+		this.resolution = resolution;
+	}
+
+	/**
+	 * Write a file.
+	 * 
+	 * @param file
+	 *            The file to be written.
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	public void generate(File file) throws IOException {
+		MidiFileWriter writer = new MidiFileWriter(file);
+		try {
+			generate(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Pass the events of a file to a handler.
+	 * 
+	 * @param handler
+	 *            The Handler which receives the events, in file order.
+	 * @throws IOException
+	 *             If the handler fails to write.
+	 */
+	public void generate(MidiFileScanner.Handler handler) throws IOException {
+		handler.header(tracks == 1 ? 0 : 1, tracks, resolution);
+		for (int t = 0; t < tracks; t++) {
+			// each track has its share of the notes, and its own random
+			// numbers, so that changing one track leaves the others alone
+			long trackNotes = notes / tracks + (t < notes % tracks ? 1 : 0);
+			new TrackWriter(handler, t, trackNotes).write();
+		}
+	}
+
+	/**
+	 * Returns the settings of this generator, in the form MidiTool's generate
+	 * tool takes them.
+	 * 
+	 * @return The settings.
+	 */
+	public String toString() {
+		return "--seed " + seed + " --notes " + notes + " --tracks " + tracks
+				+ " --channels " + channels + " --polyphony " + polyphony
+				+ " --controllers " + controllersPerBar + " --tempo "
+				+ barsPerTempoChange + " --resolution " + resolution;
+	}
+
+	/**
+	 * Writes the events of one track. The voices, the controller changes and
+	 * the tempo changes are streams of events, merged in tick order through a
+	 * heap of stream indices.
+	 */
+	private class TrackWriter {
+		private final MidiFileScanner.Handler handler;
+		private final int track;
+		private final Random random;
+		private final int sixteenth = Math.max(1, resolution / 4);
+		private final long barTicks = (long) resolution
+				* Constants.BEATS_IN_BAR;
+		// stream indices: voices first, then controllers, then tempo
+		private final int controllerStream = polyphony;
+		private final int tempoStream = polyphony + 1;
+		private final long[] nextTick = new long[polyphony + 2];
+		private final int[] heap = new int[polyphony + 2];
+		private int heapSize;
+		// per voice: its channel, and the key it is playing or -1
+		private final int[] channel = new int[polyphony];
+		private final int[] key = new int[polyphony];
+		private final boolean[] sounding = new boolean[16 * 128];
+		private long notesLeft;
+		private int voicesLeft;
+		private long lastTick;
+
+		TrackWriter(MidiFileScanner.Handler handler, int track, long notes) {
+			this.handler = handler;
+			this.track = track;
+			this.random = new Random(seed * 31 + track);
+			this.notesLeft = notes;
+		}
+
+		void write() throws IOException {
+			handler.startTrack(track);
+			if (track == 0) {
+				byte[] text = ("Generated by MIDIEd: " + CorpusGenerator.this)
+						.getBytes("US-ASCII");
+				handler.metaMessage(0, TEXT, text, text.length);
+			}
+			for (int v = 0; v < polyphony; v++) {
+				channel[v] = (track * polyphony + v) % channels;
+				key[v] = -1;
+				// stagger the voices over the first beat
+				push(v, random.nextInt(4) * sixteenth);
+			}
+			voicesLeft = polyphony;
+			for (int c = 0; c < channels; c++)
+				if (channel(c))
+					handler.shortMessage(0, 0xC0 | c, random.nextInt(128), 0);
+			if (controllersPerBar > 0)
+				push(controllerStream, 0);
+			if (barsPerTempoChange > 0 && track == 0)
+				push(tempoStream, 0);
+			while (voicesLeft > 0) {
+				int stream = pop();
+				long tick = nextTick[stream];
+				lastTick = Math.max(lastTick, tick);
+				if (stream == controllerStream)
+					writeController(tick);
+				else if (stream == tempoStream)
+					writeTempo(tick);
+				else
+					writeVoice(stream, tick);
+			}
+			handler.endTrack(lastTick);
+		}
+
+		/**
+		 * Whether a channel is played by any voice of this track.
+		 */
+		private boolean channel(int c) {
+			for (int v = 0; v < polyphony; v++)
+				if (channel[v] == c)
+					return true;
+			return false;
+		}
+
+		/**
+		 * End the voice's note, or start its next one.
+		 */
+		private void writeVoice(int v, long tick) throws IOException {
+			int c = channel[v];
+			if (key[v] >= 0) {
+				handler.shortMessage(tick, 0x80 | c, key[v], 0);
+				sounding[c * 128 + key[v]] = false;
+				key[v] = -1;
+				if (notesLeft > 0)
+					// rest for up to a beat
+					push(v, tick + random.nextInt(5) * sixteenth);
+				else
+					voicesLeft--;
+				return;
+			}
+			if (notesLeft == 0) {
+				voicesLeft--;
+				return;
+			}
+			notesLeft--;
+			int k = 36 + random.nextInt(60);
+			while (sounding[c * 128 + k])
+				k = (k + 1) % 128;
+			sounding[c * 128 + k] = true;
+			key[v] = k;
+			handler.shortMessage(tick, 0x90 | c, k, 1 + random.nextInt(127));
+			push(v, tick + sixteenth * (1 + random.nextInt(8)));
+		}
+
+		private void writeController(long tick) throws IOException {
+			int c = channel[random.nextInt(polyphony)];
+			int controller = CONTROLLERS[random.nextInt(CONTROLLERS.length)];
+			handler.shortMessage(tick, 0xB0 | c, controller, random.nextInt(128));
+			push(controllerStream, tick + Math.max(1, barTicks
+					/ controllersPerBar));
+		}
+
+		private void writeTempo(long tick) throws IOException {
+			int bpm = 60 + random.nextInt(121);
+			int micros = 60000000 / bpm;
+			byte[] data = { (byte) (micros >> 16), (byte) (micros >> 8),
+					(byte) micros };
+			handler.metaMessage(tick, SET_TEMPO, data, data.length);
+			push(tempoStream, tick + barTicks * barsPerTempoChange);
+		}
+
+		/**
+		 * Orders streams by tick; at the same tick, the lower stream first,
+		 * so that the order never depends on the heap's layout.
+		 */
+		private boolean before(int a, int b) {
+			return nextTick[a] < nextTick[b] || nextTick[a] == nextTick[b]
+					&& a < b;
+		}
+
+		private void push(int stream, long tick) {
+			nextTick[stream] = tick;
+			int i = heapSize++;
+			while (i > 0 && before(stream, heap[(i - 1) / 2])) {
+				heap[i] = heap[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			heap[i] = stream;
+		}
+
+		private int pop() {
+			int top = heap[0];
+			int last = heap[--heapSize];
+			int i = 0;
+			while (2 * i + 1 < heapSize) {
+				int child = 2 * i + 1;
+				if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], last))
+					break;
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = last;
+			return top;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package midied;
+
+import java.util.Arrays;
+
+/**
+ * The DensityPyramid class counts how many notes start in each fixed-width
+ * bucket of ticks. The counts are kept in a complete binary tree where every
+ * node holds the sum of its two children, so that adding or removing a note,
+ * and counting the notes in any range of ticks, takes O(log n) time. The
+ * pyramid grows by doubling when notes are added beyond its current capacity.
+ * 
+ * @author 090010514
+ */
+public class DensityPyramid {
+	// the smallest capacity of the pyramid, in buckets.
+	private static final int MIN_CAPACITY = 64;
+
+	// how many ticks each bucket spans
+	private final int bucketTicks;
+	// number of leaves, always a power of two.
+	private int capacity;
+	// node 1 is the root, node i has children 2i and 2i+1 and the leaves are
+	// stored from index capacity onwards.
+	private int[] counts;
+	// total number of notes in the pyramid
+	private int size;
+	// the highest bucket which has ever held a note
+	private int lastBucket = -1;
+
+	/**
+	 * Creates a new, empty DensityPyramid.
+	 * 
+	 * @param bucketTicks
+	 *            The number of ticks covered by each bucket (at least 1).
+	 */
+	public DensityPyramid(int bucketTicks) {
+		this.bucketTicks = Math.max(1, bucketTicks);
+		capacity = MIN_CAPACITY;
+		counts = new int[2 * capacity];
+	}
+
+	/**
+	 * Count a note starting at the given tick.
+	 * 
+	 * @param tick
+	 *            The tick at which the note starts.
+	 */
+	public void add(long tick) {
+		adjust(bucketOf(tick), 1);
+		size++;
+	}
+
+	/**
+	 * Stop counting a note starting at the given tick. The note must
+	 * previously have been added.
+	 * 
+	 * @param tick
+	 *            The tick at which the note starts.
+	 */
+	public void remove(long tick) {
+		int bucket = bucketOf(tick);
+		if (bucket >= capacity || counts[capacity + bucket] == 0)
+			return;
+		adjust(bucket, -1);
+		size--;
+	}
+
+	/**
+	 * Removes all notes from the pyramid.
+	 */
+	public void clear() {
+		Arrays.fill(counts, 0);
+		size = 0;
+		lastBucket = -1;
+	}
+
+	/**
+	 * Returns the number of notes starting in the ticks from fromTick
+	 * (inclusive) to toTick (exclusive), rounded out to whole buckets.
+	 * 
+	 * @param fromTick
+	 *            The first tick of the range.
+	 * @param toTick
+	 *            The tick after the last tick of the range.
+	 * @return The number of notes starting in the given range.
+	 */
+	public int count(long fromTick, long toTick) {
+		if (toTick <= fromTick)
+			return 0;
+		int lo = bucketOf(fromTick);
+		int hi = bucketOf(toTick - 1);
+		if (hi >= capacity)
+			hi = capacity - 1;
+		if (lo > hi)
+			return 0;
+		// walk up from both ends, adding the nodes which are fully inside
+		int sum = 0;
+		int l = lo + capacity;
+		int r = hi + capacity + 1;
+		while (l < r) {
+			if ((l & 1) == 1)
+				sum += counts[l++];
+			if ((r & 1) == 1)
+				sum += counts[--r];
+			l >>= 1;
+			r >>= 1;
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the total number of notes counted by this pyramid.
+	 * 
+	 * @return The number of notes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of ticks spanned by a bucket.
+	 * 
+	 * @return The bucket width in ticks.
+	 */
+	public int getBucketTicks() {
+		return bucketTicks;
+	}
+
+	/**
+	 * Returns the tick after the last bucket which has held a note, or 0 if no
+	 * note has been added.
+	 * 
+	 * @return The end of the counted range in ticks.
+	 */
+	public long getEndTick() {
+		return (lastBucket + 1) * (long) bucketTicks;
+	}
+
+	/**
+	 * Find which bucket a tick belongs to.
+	 */
+	private int bucketOf(long tick) {
+		if (tick < 0)
+			return 0;
+		long bucket = tick / bucketTicks;
+		return bucket > Integer.MAX_VALUE / 4 ? Integer.MAX_VALUE / 4
+				: (int) bucket;
+	}
+
+	/**
+	 * Add delta to the given bucket and to every node above it.
+	 */
+	private void adjust(int bucket, int delta) {
+		if (bucket >= capacity)
+			grow(bucket);
+		if (bucket > lastBucket)
+			lastBucket = bucket;
+		for (int node = bucket + capacity; node > 0; node >>= 1)
+			counts[node] += delta;
+	}
+
+	/**
+	 * Double the capacity until the given bucket fits, then rebuild the inner
+	 * nodes from the leaves.
+	 */
+	private void grow(int bucket) {
+		int newCapacity = capacity;
+		while (newCapacity <= bucket)
+			newCapacity *= 2;
+		int[] newCounts = new int[2 * newCapacity];
+		System.arraycopy(counts, capacity, newCounts, newCapacity, capacity);
+		for (int node = newCapacity - 1; node > 0; node--)
+			newCounts[node] = newCounts[2 * node] + newCounts[2 * node + 1];
+		counts = newCounts;
+		capacity = newCapacity;
+	}
+}
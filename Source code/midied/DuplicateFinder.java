@@ -0,0 +1,194 @@
+package midied;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The DuplicateFinder class groups MIDI files which are copies of the same
+ * song. The MidiFingerprint of every file is computed in parallel, and files
+ * are only compared if they fall in the same bucket of a locality sensitive
+ * hash: the signature is cut into BANDS bands, and files whose signatures are
+ * equal in any band share a bucket. Files which are alike are very likely to
+ * share one, while most unrelated files share none, so the number of
+ * comparisons grows with the number of duplicates rather than with the square
+ * of the number of files.
+ * 
+ * @author 090010514
+ */
+public class DuplicateFinder {
+	private static final int BANDS = 16;
+	private static final int ROWS = MidiFingerprint.SIZE / BANDS;
+
+	private final double threshold;
+
+	/**
+	 * Creates a new DuplicateFinder.
+	 * 
+	 * @param threshold
+	 *            How alike two files' fingerprints must be for them to be
+	 *            duplicates, from 0 to 1.
+	 */
+	public DuplicateFinder(double threshold) {
+		if (threshold <= 0 || threshold > 1)
+			throw new IllegalArgumentException("threshold: " + threshold);
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Find the groups of duplicates among some files. Files which can not be
+	 * read, or have too few notes, are left out.
+	 * 
+	 * @param files
+	 *            MIDI files.
+	 * @param progress
+	 *            Told how many fingerprints have been computed, or null.
+	 * @return The groups of two or more duplicates, largest first, each in
+	 *         order of the files' paths.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted.
+	 */
+	public List<List<File>> find(List<File> files,
+			LibraryIndex.Progress progress) throws InterruptedException {
+		int[][] signatures = fingerprint(files, progress);
+		int[] parent = new int[files.size()];
+		for (int i = 0; i < parent.length; i++)
+			parent[i] = i;
+		// bucket the files by each band in turn, by sorting band hash and
+		// file index together
+		long[] buckets = new long[files.size()];
+		for (int band = 0; band < BANDS; band++) {
+			int n = 0;
+			for (int i = 0; i < signatures.length; i++)
+				if (signatures[i] != null)
+					buckets[n++] = (long) bandHash(signatures[i], band) << 32
+							| i;
+			Arrays.sort(buckets, 0, n);
+			for (int start = 0, end; start < n; start = end) {
+				end = start + 1;
+				while (end < n && buckets[end] >>> 32 == buckets[start] >>> 32)
+					end++;
+				// compare each file with the first and the one before it,
+				// rather than every pair, in case a bucket is very large
+				int first = (int) buckets[start];
+				for (int b = start + 1; b < end; b++) {
+					int file = (int) buckets[b];
+					int previous = (int) buckets[b - 1];
+					if (alike(signatures[file], signatures[first]))
+						union(parent, file, first);
+					else if (previous != first
+							&& alike(signatures[file], signatures[previous]))
+						union(parent, file, previous);
+				}
+			}
+		}
+		return groups(files, parent);
+	}
+
+	private boolean alike(int[] a, int[] b) {
+		return MidiFingerprint.similarity(a, b) >= threshold;
+	}
+
+	/**
+	 * Compute the signature of every file, with a thread per processor.
+	 */
+	private static int[][] fingerprint(List<File> files,
+			LibraryIndex.Progress progress) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		int[][] signatures = new int[files.size()][];
+		try {
+			List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+			for (final File file : files) {
+				futures.add(pool.submit(new Callable<int[]>() {
+					public int[] call() {
+						try {
+							return MidiFingerprint.compute(file);
+						} catch (IOException ioe) {
+							return null;
+						} catch (RuntimeException re) {
+							return null;
+						}
+					}
+				}));
+			}
+			for (int i = 0; i < signatures.length; i++) {
+				try {
+					signatures[i] = futures.get(i).get();
+				} catch (ExecutionException ee) {
+					throw new RuntimeException(ee.getCause());
+				}
+				if (progress != null)
+					progress.scanned(i + 1, signatures.length);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return signatures;
+	}
+
+	private static int bandHash(int[] signature, int band) {
+		int hash = band;
+		for (int i = band * ROWS; i < (band + 1) * ROWS; i++)
+			hash = hash * 31 + signature[i];
+		return hash;
+	}
+
+	private static int root(int[] parent, int i) {
+		while (parent[i] != i) {
+			// halve the path as it is walked
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		parent[root(parent, a)] = root(parent, b);
+	}
+
+	/**
+	 * Collect the files of each set of two or more.
+	 */
+	private static List<List<File>> groups(List<File> files, int[] parent) {
+		int[] sizes = new int[parent.length];
+		for (int i = 0; i < parent.length; i++)
+			sizes[root(parent, i)]++;
+		Map<Integer, List<File>> byRoot = new HashMap<Integer, List<File>>();
+		for (int i = 0; i < parent.length; i++) {
+			int root = root(parent, i);
+			if (sizes[root] < 2)
+				continue;
+			List<File> group = byRoot.get(root);
+			if (group == null) {
+				group = new ArrayList<File>();
+				byRoot.put(root, group);
+			}
+			group.add(files.get(i));
+		}
+		List<List<File>> groups = new ArrayList<List<File>>();
+		for (List<File> group : byRoot.values()) {
+			Collections.sort(group);
+			groups.add(group);
+		}
+		Collections.sort(groups, new Comparator<List<File>>() {
+			public int compare(List<File> a, List<File> b) {
+				if (a.size() != b.size())
+					return b.size() - a.size();
+				return a.get(0).compareTo(b.get(0));
+			}
+		});
+		return groups;
+	}
+}
@@ -0,0 +1,110 @@
+package midied;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * The EditableSequence class is a Sequence whose tracks can be replaced in
+ * place. Adding or removing events one at a time costs O(n) per event in a
+ * Track, so edits which move many events build a new track from a sorted list
+ * of events instead, and put it where the old track was. Its resolution can
+ * be changed as well, moving every event to match.
+ * 
+ * @author 090010514
+ */
+public class EditableSequence extends Sequence {
+
+	/**
+	 * Creates a new, empty EditableSequence.
+	 * 
+	 * @param divisionType
+	 *            The timing division type, e.g. Sequence.PPQ.
+	 * @param resolution
+	 *            The timing resolution.
+	 * @throws InvalidMidiDataException
+	 *             If the division type is not valid.
+	 */
+	public EditableSequence(float divisionType, int resolution)
+			throws InvalidMidiDataException {
+		super(divisionType, resolution);
+	}
+
+	/**
+	 * Creates a new EditableSequence which takes over the tracks of another
+	 * sequence. The events are not copied.
+	 * 
+	 * @param sequence
+	 *            A sequence, e.g. one read by MidiSystem.
+	 * @throws InvalidMidiDataException
+	 *             If the sequence's division type is not valid.
+	 */
+	public EditableSequence(Sequence sequence) throws InvalidMidiDataException {
+		super(sequence.getDivisionType(), sequence.getResolution());
+		for (Track track : sequence.getTracks())
+			tracks.add(track);
+	}
+
+	/**
+	 * Replace a track with a new track holding the given events.
+	 * 
+	 * @param old
+	 *            A track of this sequence.
+	 * @param events
+	 *            The events of the new track, sorted by tick.
+	 * @return The new track, or null if old is not a track of this sequence.
+	 */
+	public Track replaceTrack(Track old, List<MidiEvent> events) {
+		int index = tracks.indexOf(old);
+		if (index < 0)
+			return null;
+		Track track = createTrack();
+		tracks.remove(tracks.size() - 1);
+		// events arrive in order, so each add appends in O(1) time
+		for (MidiEvent event : events)
+			track.add(event);
+		tracks.set(index, track);
+		return track;
+	}
+
+	/**
+	 * Change the resolution, moving every event of every track to the
+	 * nearest tick at the new resolution with a Resampler. The events are
+	 * changed in place, and a track is only rebuilt if a note which would
+	 * have been rounded to nothing has been kept one tick long past other
+	 * events.
+	 * 
+	 * @param newResolution
+	 *            The new resolution, in ticks per quarter note.
+	 * @throws IllegalStateException
+	 *             If the division type is not PPQ.
+	 */
+	public void setResolution(int newResolution) {
+		if (divisionType != PPQ)
+			throw new IllegalStateException("Only PPQ timing can be resampled");
+		if (newResolution == resolution)
+			return;
+		for (Track track : getTracks()) {
+			if (!Resampler.resample(track, resolution, newResolution))
+				continue;
+			List<MidiEvent> events = new ArrayList<MidiEvent>(track.size());
+			for (int i = 0; i < track.size(); i++)
+				events.add(track.get(i));
+			// a stable sort, so events at the same tick keep their order
+			Collections.sort(events, new Comparator<MidiEvent>() {
+				public int compare(MidiEvent a, MidiEvent b) {
+					return a.getTick() < b.getTick() ? -1
+							: a.getTick() > b.getTick() ? 1 : 0;
+				}
+			});
+			replaceTrack(track, events);
+		}
+		resolution = newResolution;
+	}
+}
@@ -0,0 +1,323 @@
+package midied;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+
+/**
+ * The EditorMetrics class measures how responsive the editor is, and
+ * publishes its measurements as an MBean named "midied:type=EditorMetrics".
+ * <p>
+ * Every event dispatched on the event dispatch thread is timed by an
+ * EventQueue pushed in front of the system one. How long events wait in the
+ * queue is measured by posting a heartbeat every few milliseconds. A
+ * watchdog thread checks on the event being dispatched, and prints the stack
+ * of the event dispatch thread when an event takes longer than the stall
+ * threshold, once per stalled event. Loading, saving, quantising and
+ * opening the synthesizer are timed by the editor itself, and other timings kept
+ * elsewhere in the editor can be added to the report.
+ * 
+ * @author 090010514
+ */
+public class EditorMetrics implements EditorMetricsMBean {
+	private static final String NAME = "midied:type=EditorMetrics";
+	private static final long DEFAULT_STALL_THRESHOLD_MILLIS = 500;
+	private static final long HEARTBEAT_MILLIS = 100;
+
+	private final PianoRollPanel pianoRollPanel;
+	private final TimingStats dispatch = new TimingStats("event dispatch");
+	private final TimingStats queueLatency = new TimingStats("queue latency");
+	private final TimingStats load = new TimingStats("file load");
+	private final TimingStats save = new TimingStats("file save");
+	private final TimingStats synthOpen = new TimingStats("synthesizer open");
+	private final TimingStats quantise = new TimingStats("quantise");
+	// timings kept elsewhere which are reported and reset with these
+	private volatile TimingStats[] others = new TimingStats[0];
+	private volatile long lastLoadNanos;
+	private volatile long lastSaveNanos;
+	private volatile long lastQuantiseNanos;
+
+	private volatile long stallThresholdMillis = DEFAULT_STALL_THRESHOLD_MILLIS;
+	private volatile long stallCount;
+	// the event being dispatched, when its dispatch started (0 if none),
+	// and a number which changes with every event
+	private volatile AWTEvent dispatching;
+	private volatile long dispatchStart;
+	private volatile long dispatchNumber;
+	private volatile Thread dispatchThread;
+	// when the heartbeat was posted, or 0 if it has been dispatched
+	private volatile long heartbeatPosted;
+
+	/**
+	 * Creates a new EditorMetrics for an editor.
+	 * 
+	 * @param pianoRollPanel
+	 *            The editor's piano roll, whose notes are counted and whose
+	 *            paints are timed.
+	 */
+	public EditorMetrics(PianoRollPanel pianoRollPanel) {
+		this.pianoRollPanel = pianoRollPanel;
+	}
+
+	/**
+	 * Start timing events, start the watchdog and register the MBean. If the
+	 * MBean can not be registered, the metrics are still kept.
+	 */
+	public void install() {
+		Toolkit.getDefaultToolkit().getSystemEventQueue()
+				.push(new TimedEventQueue());
+		Thread watchdog = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "EDT watchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName(NAME));
+		} catch (JMException jme) {
+			System.err.println("Metrics not published: " + jme);
+		}
+	}
+
+	/**
+	 * Times every event it dispatches. An event which runs a modal dialog
+	 * dispatches others while it waits, and is not timed itself, so that the
+	 * time the dialog is open does not count as a stall.
+	 */
+	private class TimedEventQueue extends EventQueue {
+		private int depth;
+		private boolean nested;
+
+		protected void dispatchEvent(AWTEvent event) {
+			AWTEvent outerEvent = dispatching;
+			if (depth > 0)
+				nested = true;
+			boolean outerNested = nested;
+			nested = false;
+			depth++;
+			dispatchThread = Thread.currentThread();
+			dispatching = event;
+			dispatchNumber++;
+			long start = System.nanoTime();
+			dispatchStart = start;
+			try {
+				super.dispatchEvent(event);
+			} finally {
+				long end = System.nanoTime();
+				if (!nested)
+					dispatch.record(end - start);
+				depth--;
+				nested = outerNested;
+				// the outer event is waiting for the next nested one
+				dispatchStart = 0;
+				dispatching = outerEvent;
+			}
+		}
+	}
+
+	/**
+	 * Post heartbeats and look for stalls, until the editor exits.
+	 */
+	private void watch() {
+		long reported = -1;
+		long nextHeartbeat = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (heartbeatPosted == 0 && now >= nextHeartbeat) {
+				heartbeatPosted = now;
+				nextHeartbeat = now + HEARTBEAT_MILLIS * 1000000;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						queueLatency.record(System.nanoTime() - heartbeatPosted);
+						heartbeatPosted = 0;
+					}
+				});
+			}
+			long start = dispatchStart;
+			long number = dispatchNumber;
+			long threshold = stallThresholdMillis;
+			if (start != 0 && number != reported
+					&& (now - start) / 1000000 >= threshold) {
+				reported = number;
+				stallCount++;
+				reportStall(dispatching, (now - start) / 1000000);
+			}
+			try {
+				Thread.sleep(Math.max(10, Math.min(threshold / 4,
+						HEARTBEAT_MILLIS)));
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Print what the event dispatch thread is doing.
+	 */
+	private void reportStall(AWTEvent event, long millis) {
+		Thread thread = dispatchThread;
+		StringBuilder sb = new StringBuilder();
+		sb.append("Event dispatch thread stalled for ").append(millis)
+				.append(" ms dispatching ").append(event).append('\n');
+		if (thread != null)
+			for (StackTraceElement element : thread.getStackTrace())
+				sb.append("\tat ").append(element).append('\n');
+		System.err.print(sb);
+	}
+
+	/**
+	 * Record how long it took to load a file.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void recordLoad(long nanos) {
+		lastLoadNanos = nanos;
+		load.record(nanos);
+	}
+
+	/**
+	 * Record how long it took to save a file.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void recordSave(long nanos) {
+		lastSaveNanos = nanos;
+		save.record(nanos);
+	}
+
+	/**
+	 * Record how long it took to quantise notes.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void recordQuantise(long nanos) {
+		lastQuantiseNanos = nanos;
+		quantise.record(nanos);
+	}
+
+	/**
+	 * Record how long it took to open the synthesizer.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void recordSynthOpen(long nanos) {
+		synthOpen.record(nanos);
+	}
+
+	/**
+	 * Add a timing kept elsewhere in the editor to the report, so that it is
+	 * reset with the others.
+	 * 
+	 * @param stats
+	 *            The TimingStats.
+	 */
+	public synchronized void addTimings(TimingStats stats) {
+		TimingStats[] more = Arrays.copyOf(others, others.length + 1);
+		more[others.length] = stats;
+		others = more;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	public long getEventsDispatched() {
+		return dispatch.getCount();
+	}
+
+	public double getDispatchP99Millis() {
+		return millis(dispatch.getPercentileNanos(99));
+	}
+
+	public double getDispatchMaxMillis() {
+		return millis(dispatch.getMaxNanos());
+	}
+
+	public double getQueueLatencyP99Millis() {
+		return millis(queueLatency.getPercentileNanos(99));
+	}
+
+	public double getQueueLatencyMaxMillis() {
+		return millis(queueLatency.getMaxNanos());
+	}
+
+	public double getPaintP99Millis() {
+		return millis(Math.max(pianoRollPanel.getStripPaintStats()
+				.getPercentileNanos(99), pianoRollPanel.getFullPaintStats()
+				.getPercentileNanos(99)));
+	}
+
+	public double getLastLoadMillis() {
+		return millis(lastLoadNanos);
+	}
+
+	public double getLastSaveMillis() {
+		return millis(lastSaveNanos);
+	}
+
+	public double getLastQuantiseMillis() {
+		return millis(lastQuantiseNanos);
+	}
+
+	public double getSynthOpenMillis() {
+		return millis(synthOpen.getMaxNanos());
+	}
+
+	public int getNoteCount() {
+		return pianoRollPanel.getNoteCount();
+	}
+
+	public long getStallCount() {
+		return stallCount;
+	}
+
+	public long getStallThresholdMillis() {
+		return stallThresholdMillis;
+	}
+
+	public void setStallThresholdMillis(long millis) {
+		if (millis < 1)
+			throw new IllegalArgumentException("threshold: " + millis);
+		stallThresholdMillis = millis;
+	}
+
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		TimingStats[] all = { dispatch, queueLatency,
+				pianoRollPanel.getStripPaintStats(),
+				pianoRollPanel.getFullPaintStats(), load, save, quantise,
+				synthOpen };
+		for (TimingStats stats : all)
+			sb.append(stats).append('\n').append(stats.getHistogram());
+		for (TimingStats stats : others)
+			sb.append(stats).append('\n').append(stats.getHistogram());
+		sb.append(getNoteCount()).append(" notes, ").append(stallCount)
+				.append(" stalls\n");
+		return sb.toString();
+	}
+
+	public void reset() {
+		dispatch.reset();
+		queueLatency.reset();
+		load.reset();
+		save.reset();
+		quantise.reset();
+		pianoRollPanel.getStripPaintStats().reset();
+		pianoRollPanel.getFullPaintStats().reset();
+		for (TimingStats stats : others)
+			stats.reset();
+		stallCount = 0;
+	}
+}
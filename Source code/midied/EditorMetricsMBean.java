@@ -0,0 +1,124 @@
+package midied;
+
+/**
+ * The management interface of EditorMetrics, through which the editor's
+ * timings can be watched with a JMX client such as jconsole. Durations are
+ * in milliseconds; percentiles are accurate to within a factor of two.
+ * 
+ * @author 090010514
+ */
+public interface EditorMetricsMBean {
+	/**
+	 * Returns the number of events dispatched on the event dispatch thread.
+	 * 
+	 * @return The number of events.
+	 */
+	long getEventsDispatched();
+
+	/**
+	 * Returns the 99th percentile of the time taken to dispatch an event.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getDispatchP99Millis();
+
+	/**
+	 * Returns the longest time taken to dispatch an event.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getDispatchMaxMillis();
+
+	/**
+	 * Returns the 99th percentile of the time an event waits in the queue
+	 * before it is dispatched.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getQueueLatencyP99Millis();
+
+	/**
+	 * Returns the longest time an event waited in the queue.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getQueueLatencyMaxMillis();
+
+	/**
+	 * Returns the 99th percentile of the time taken to paint the piano roll.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getPaintP99Millis();
+
+	/**
+	 * Returns the time taken to open the last file, including finding its
+	 * notes.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getLastLoadMillis();
+
+	/**
+	 * Returns the time taken to save the last file.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getLastSaveMillis();
+
+	/**
+	 * Returns the time taken to quantise notes the last time.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getLastQuantiseMillis();
+
+	/**
+	 * Returns the time taken to open the synthesizer.
+	 * 
+	 * @return The duration in milliseconds.
+	 */
+	double getSynthOpenMillis();
+
+	/**
+	 * Returns the number of notes in the piano roll.
+	 * 
+	 * @return The number of notes.
+	 */
+	int getNoteCount();
+
+	/**
+	 * Returns the number of times the event dispatch thread stalled.
+	 * 
+	 * @return The number of stalls.
+	 */
+	long getStallCount();
+
+	/**
+	 * Returns how long an event may take before the watchdog reports a
+	 * stall.
+	 * 
+	 * @return The threshold in milliseconds.
+	 */
+	long getStallThresholdMillis();
+
+	/**
+	 * Set how long an event may take before the watchdog reports a stall.
+	 * 
+	 * @param millis
+	 *            The threshold in milliseconds.
+	 */
+	void setStallThresholdMillis(long millis);
+
+	/**
+	 * Returns every timing, with its histogram.
+	 * 
+	 * @return A report, one timing after another.
+	 */
+	String getReport();
+
+	/**
+	 * Forget all timings.
+	 */
+	void reset();
+}
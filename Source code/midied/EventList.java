@@ -0,0 +1,247 @@
+package midied;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * The EventList class is a snapshot of the events of every track in a
+ * sequence, merged into a single list sorted by tick. Events at the same tick
+ * keep the order of their tracks. End-of-track events are left out.
+ * 
+ * @author 090010514
+ */
+public class EventList {
+	/**
+	 * The tempo of a sequence without tempo events, in microseconds per
+	 * quarter note (120 beats per minute).
+	 */
+	public static final int DEFAULT_TEMPO = 500000;
+	// meta message types
+	private static final int TEMPO_TYPE = 0x51;
+	private static final int END_OF_TRACK_TYPE = 0x2F;
+
+	private final long[] ticks;
+	private final MidiMessage[] messages;
+	private final int size;
+	private final int resolution;
+	// built when first needed
+	private ChannelStateIndex channelState;
+	private TempoMap tempoMap;
+
+	/**
+	 * Creates a snapshot of the events in the given sequence.
+	 * 
+	 * @param sequence
+	 *            A sequence, whose division type is PPQ.
+	 */
+	public EventList(Sequence sequence) {
+		resolution = sequence.getResolution();
+		Track[] tracks = sequence.getTracks();
+		long[][] trackTicks = new long[tracks.length][];
+		MidiMessage[][] trackMessages = new MidiMessage[tracks.length][];
+		int[] sizes = new int[tracks.length];
+		for (int t = 0; t < tracks.length; t++) {
+			Track track = tracks[t];
+			int n = track.size();
+			trackTicks[t] = new long[n];
+			trackMessages[t] = new MidiMessage[n];
+			for (int e = 0; e < n; e++) {
+				MidiEvent event = track.get(e);
+				MidiMessage msg = event.getMessage();
+				if (msg instanceof MetaMessage
+						&& ((MetaMessage) msg).getType() == END_OF_TRACK_TYPE)
+					continue;
+				trackTicks[t][sizes[t]] = event.getTick();
+				trackMessages[t][sizes[t]] = msg;
+				sizes[t]++;
+			}
+		}
+		// merge pairs of tracks until only one is left
+		int count = tracks.length;
+		while (count > 1) {
+			int merged = 0;
+			for (int t = 0; t < count; t += 2) {
+				if (t + 1 == count) {
+					trackTicks[merged] = trackTicks[t];
+					trackMessages[merged] = trackMessages[t];
+					sizes[merged] = sizes[t];
+				} else {
+					int n = sizes[t] + sizes[t + 1];
+					long[] mergedTicks = new long[n];
+					MidiMessage[] mergedMessages = new MidiMessage[n];
+					merge(trackTicks[t], trackMessages[t], sizes[t],
+							trackTicks[t + 1], trackMessages[t + 1],
+							sizes[t + 1], mergedTicks, mergedMessages);
+					trackTicks[merged] = mergedTicks;
+					trackMessages[merged] = mergedMessages;
+					sizes[merged] = n;
+				}
+				merged++;
+			}
+			count = merged;
+		}
+		if (count == 0) {
+			ticks = new long[0];
+			messages = new MidiMessage[0];
+			size = 0;
+		} else {
+			ticks = trackTicks[0];
+			messages = trackMessages[0];
+			size = sizes[0];
+		}
+	}
+
+	/**
+	 * Merge two sorted lists of events. Events from the first list come first
+	 * when the ticks are equal.
+	 */
+	private static void merge(long[] aTicks, MidiMessage[] aMessages, int aSize,
+			long[] bTicks, MidiMessage[] bMessages, int bSize, long[] toTicks,
+			MidiMessage[] toMessages) {
+		int a = 0;
+		int b = 0;
+		int to = 0;
+		while (a < aSize && b < bSize) {
+			if (bTicks[b] < aTicks[a]) {
+				toTicks[to] = bTicks[b];
+				toMessages[to++] = bMessages[b++];
+			} else {
+				toTicks[to] = aTicks[a];
+				toMessages[to++] = aMessages[a++];
+			}
+		}
+		while (a < aSize) {
+			toTicks[to] = aTicks[a];
+			toMessages[to++] = aMessages[a++];
+		}
+		while (b < bSize) {
+			toTicks[to] = bTicks[b];
+			toMessages[to++] = bMessages[b++];
+		}
+	}
+
+	/**
+	 * Returns the number of events.
+	 * 
+	 * @return The number of events.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the tick of an event.
+	 * 
+	 * @param i
+	 *            The position of the event (0 to size() - 1).
+	 * @return The tick of the event.
+	 */
+	public long getTick(int i) {
+		return ticks[i];
+	}
+
+	/**
+	 * Returns the message of an event.
+	 * 
+	 * @param i
+	 *            The position of the event (0 to size() - 1).
+	 * @return The message of the event.
+	 */
+	public MidiMessage getMessage(int i) {
+		return messages[i];
+	}
+
+	/**
+	 * Returns the resolution of the sequence, in ticks per quarter note.
+	 * 
+	 * @return The resolution.
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Returns the index of the program, controller and pitch bend changes in
+	 * this list. It is built the first time it is asked for.
+	 * 
+	 * @return The ChannelStateIndex of this list.
+	 */
+	public synchronized ChannelStateIndex getChannelState() {
+		if (channelState == null)
+			channelState = new ChannelStateIndex(this);
+		return channelState;
+	}
+
+	/**
+	 * Returns the TempoMap of this list, which converts between ticks and
+	 * real time. It is built the first time it is asked for.
+	 * 
+	 * @return The TempoMap of this list.
+	 */
+	public synchronized TempoMap getTempoMap() {
+		if (tempoMap == null)
+			tempoMap = new TempoMap(this);
+		return tempoMap;
+	}
+
+	/**
+	 * Returns the position of the first event at or after the given tick.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @return A position between 0 and size().
+	 */
+	public int lowerBound(long tick) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ticks[mid] < tick)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the tempo in effect at the given tick, i.e. that of the last
+	 * tempo event at or before it.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @return The tempo in microseconds per quarter note.
+	 */
+	public int tempoAt(long tick) {
+		return getTempoMap().getTempo(tick);
+	}
+
+	/**
+	 * Tells if a message is a tempo meta message.
+	 * 
+	 * @param msg
+	 *            A MIDI message.
+	 * @return true if the message sets the tempo.
+	 */
+	public static boolean isTempo(MidiMessage msg) {
+		return msg instanceof MetaMessage
+				&& ((MetaMessage) msg).getType() == TEMPO_TYPE
+				&& ((MetaMessage) msg).getData().length >= 3;
+	}
+
+	/**
+	 * Returns the tempo set by a tempo meta message.
+	 * 
+	 * @param msg
+	 *            A tempo meta message.
+	 * @return The tempo in microseconds per quarter note.
+	 */
+	public static int getTempo(MetaMessage msg) {
+		byte[] data = msg.getData();
+		return ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8)
+				| (data[2] & 0xFF);
+	}
+}
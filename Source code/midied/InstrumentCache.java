@@ -0,0 +1,221 @@
+package midied;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Patch;
+import javax.sound.midi.Synthesizer;
+import javax.swing.SwingUtilities;
+
+/**
+ * The InstrumentCache class reads the instruments of a synthesizer on a
+ * background thread as soon as the editor starts, and keeps them, so that the
+ * InstrumentChooser can open without waiting for the soundbank. It also keeps
+ * the set of loaded patches, so that checking whether an instrument is loaded
+ * takes O(1) time, and loads instruments on the same background thread. When
+ * a SoundFont is chosen its presets replace the synthesizer's instruments, and
+ * each preset's samples are only read once it is loaded.
+ * 
+ * @author 090010514
+ */
+public class InstrumentCache {
+	private final Synthesizer synth;
+	// runs the preloading and every instrument load, one at a time
+	private final ExecutorService loader = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Instrument loader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	// the first 128 instruments of bank 0, by program; null until read
+	private volatile Instrument[] instruments;
+	// the patches which are loaded, as bank * 128 + program
+	private final Set<Integer> loaded = Collections
+			.synchronizedSet(new HashSet<Integer>());
+	// run on the event dispatch thread once the instruments have been read
+	private final List<Runnable> readyListeners = new ArrayList<Runnable>();
+
+	/**
+	 * Creates a new InstrumentCache and starts reading the instruments of the
+	 * given synthesizer in the background.
+	 * 
+	 * @param synth
+	 *            An open synthesizer.
+	 */
+	public InstrumentCache(Synthesizer synth) {
+		this.synth = synth;
+		loader.execute(new Runnable() {
+			public void run() {
+				preload();
+			}
+		});
+	}
+
+	/**
+	 * Read the available instruments and the loaded patches, then tell the
+	 * listeners.
+	 */
+	private void preload() {
+		Instrument[] bank0 = new Instrument[128];
+		for (Instrument ins : synth.getAvailableInstruments()) {
+			Patch patch = ins.getPatch();
+			int program = patch.getProgram();
+			if (patch.getBank() == 0 && program < 128 && bank0[program] == null)
+				bank0[program] = ins;
+		}
+		for (Instrument ins : synth.getLoadedInstruments())
+			loaded.add(key(ins.getPatch()));
+		List<Runnable> listeners;
+		synchronized (readyListeners) {
+			instruments = bank0;
+			listeners = new ArrayList<Runnable>(readyListeners);
+			readyListeners.clear();
+		}
+		for (Runnable listener : listeners)
+			SwingUtilities.invokeLater(listener);
+	}
+
+	/**
+	 * Tells if the instruments have been read.
+	 * 
+	 * @return Whether or not getInstruments() will return the instruments.
+	 */
+	public boolean isReady() {
+		return instruments != null;
+	}
+
+	/**
+	 * Returns the first 128 instruments of bank 0, indexed by program.
+	 * 
+	 * @return An array of 128 instruments, or null if they have not been read
+	 *         yet.
+	 */
+	public Instrument[] getInstruments() {
+		return instruments;
+	}
+
+	/**
+	 * Run the given Runnable on the event dispatch thread once the
+	 * instruments have been read, or straight away if they already have.
+	 * 
+	 * @param listener
+	 *            A Runnable.
+	 */
+	public void whenReady(Runnable listener) {
+		synchronized (readyListeners) {
+			if (instruments == null) {
+				readyListeners.add(listener);
+				return;
+			}
+		}
+		SwingUtilities.invokeLater(listener);
+	}
+
+	/**
+	 * Use the presets of a SoundFont in place of the synthesizer's own
+	 * instruments, for the programs the SoundFont has. None of them are loaded
+	 * until load() or loadProgram() is called.
+	 * 
+	 * @param soundFont
+	 *            A SoundFont.
+	 */
+	public void setSoundFont(final SoundFont soundFont) {
+		loader.execute(new Runnable() {
+			public void run() {
+				Instrument[] bank0 = instruments.clone();
+				SoundFont.Preset[] presets = soundFont.getPresets(0);
+				for (int program = 0; program < 128; program++) {
+					if (presets[program] == null)
+						continue;
+					bank0[program] = presets[program];
+					loaded.remove(key(presets[program].getPatch()));
+				}
+				instruments = bank0;
+			}
+		});
+	}
+
+	/**
+	 * Load the instrument which is currently used for a program in the
+	 * background, unless it is loaded already.
+	 * 
+	 * @param program
+	 *            A program number from 0 to 127.
+	 */
+	public void loadProgram(final int program) {
+		loader.execute(new Runnable() {
+			public void run() {
+				loadNow(instruments[program]);
+			}
+		});
+	}
+
+	/**
+	 * Tells if the instrument with the given patch is loaded.
+	 * 
+	 * @param patch
+	 *            A patch (bank and program).
+	 * @return Whether or not it is loaded into the synthesizer.
+	 */
+	public boolean isLoaded(Patch patch) {
+		return loaded.contains(key(patch));
+	}
+
+	/**
+	 * Load an instrument into the synthesizer in the background, unless it
+	 * is loaded already.
+	 * 
+	 * @param instrument
+	 *            An instrument of the synthesizer's soundbank.
+	 */
+	public void load(final Instrument instrument) {
+		if (instrument == null || isLoaded(instrument.getPatch()))
+			return;
+		loader.execute(new Runnable() {
+			public void run() {
+				loadNow(instrument);
+			}
+		});
+	}
+
+	/**
+	 * Load an instrument on the loader thread. The samples of a SoundFont
+	 * preset are read here.
+	 */
+	private void loadNow(Instrument instrument) {
+		if (instrument == null || isLoaded(instrument.getPatch()))
+			return;
+		Instrument ins = instrument;
+		if (instrument instanceof SoundFont.Preset) {
+			try {
+				ins = ((SoundFont.Preset) instrument).load();
+			} catch (IOException ioe) {
+				System.err.println("Could not read " + instrument + ": " + ioe);
+				return;
+			} catch (InvalidMidiDataException imde) {
+				System.err.println("Could not read " + instrument + ": " + imde);
+				return;
+			}
+		}
+		if (synth.loadInstrument(ins))
+			loaded.add(key(instrument.getPatch()));
+	}
+
+	/**
+	 * Returns the key of a patch in the set of loaded patches.
+	 */
+	private static Integer key(Patch patch) {
+		return patch.getBank() * 128 + patch.getProgram();
+	}
+}
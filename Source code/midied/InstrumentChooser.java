@@ -6,11 +6,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
 import javax.sound.midi.Instrument;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Patch;
-import javax.sound.midi.Synthesizer;
 import javax.swing.BoxLayout;
+import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JDialog;
@@ -29,7 +27,8 @@ public class InstrumentChooser extends JDialog implements ActionListener {
 	private static final String CANCEL = "Cancel";
 
 	private JComboBox[] comboBoxes;
-	private Synthesizer synth;
+	private JButton okButton;
+	private InstrumentCache instrumentCache;
 	private PianoRollPanel pianoRollPanel;
 	private MIDIEd theFrame;
 
@@ -46,27 +45,28 @@ public class InstrumentChooser extends JDialog implements ActionListener {
 		super(theFrame, "Instrument Chooser", true);
 		this.pianoRollPanel = pianoRollPanel;
 		this.theFrame = theFrame;
-		try {
-			synth = MidiSystem.getSynthesizer();
-			if (!synth.isOpen())
-				synth.open();
-		} catch (MidiUnavailableException e) {
-			theFrame.midiUnavailable();
-		}
+		// the instruments of the synthesizer which plays the sequence
+		instrumentCache = theFrame.getInstrumentCache();
 		makeGUI();
 		pack();
 		setLocationRelativeTo(theFrame);
+		// fill in the instruments as soon as they have been read
+		instrumentCache.whenReady(new Runnable() {
+			public void run() {
+				fillComboBoxes();
+			}
+		});
 	}
 
 	/**
 	 * Creates a graphical user interface which allows the user to choose which
 	 * instruments are played on each of the 16 channels. This includes a label
 	 * (channel number) and a combo-box (to choose instruments) for each of the
-	 * channels. Additionally, there are two buttons: OK and Cancel.
+	 * channels. Additionally, there are two buttons: OK and Cancel. The
+	 * combo-boxes are empty, and OK disabled, until the instruments have been
+	 * read by the InstrumentCache.
 	 */
 	private void makeGUI() {
-		Instrument[] instruments = getAvailableInstruments();
-
 		JPanel channels = new JPanel();
 		channels.setLayout(new BoxLayout(channels, BoxLayout.Y_AXIS));
 
@@ -78,17 +78,17 @@ public class InstrumentChooser extends JDialog implements ActionListener {
 			JLabel label = new JLabel("Channel " + chan);
 			label.setPreferredSize(LABEL_DIMENSION);
 			channelPanel.add(label);
-			JComboBox cb = new JComboBox(instruments);
+			JComboBox cb = new JComboBox(new String[] { "Loading..." });
 			cb.setMaximumRowCount(25);
-			int program = pianoRollPanel.getProgram(chan);
-			cb.setSelectedIndex(program);
+			cb.setEnabled(false);
 			channelPanel.add(cb);
 			comboBoxes[chan] = cb;
 			channels.add(channelPanel);
 		}
 		add(channels, BorderLayout.CENTER);
 		JPanel buttonPanel = new JPanel();
-		JButton okButton = new JButton(OK);
+		okButton = new JButton(OK);
+		okButton.setEnabled(false);
 		okButton.setActionCommand(OK);
 		okButton.setMnemonic('O');
 		okButton.addActionListener(this);
@@ -102,22 +102,23 @@ public class InstrumentChooser extends JDialog implements ActionListener {
 	}
 
 	/**
-	 * Returns the 128 first instruments returned by the
-	 * Synthesizer.getAvailableInstruments() method. Assumes that there are 128
-	 * instruments in the first soundbank and that it is the currently selected
-	 * one.
-	 * 
-	 * @return An array of 128 instruments, all belonging to the first
-	 *         soundbank.
+	 * Put the 128 instruments of bank 0 into each combo-box, select the
+	 * current program of each channel and enable the OK button.
 	 */
-	private Instrument[] getAvailableInstruments() {
-		Instrument[] allInstruments = synth.getAvailableInstruments();
-		Instrument[] bank1 = new Instrument[128];
-		for (int i = 0; i < 128; i++) {
-			if (allInstruments[i].getPatch().getBank() == 0)
-				bank1[i] = allInstruments[i];
+	private void fillComboBoxes() {
+		if (!isDisplayable())
+			return;
+		Instrument[] instruments = instrumentCache.getInstruments();
+		for (int chan = 0; chan < 16; chan++) {
+			// the box held the "Loading..." string until now
+			@SuppressWarnings("unchecked")
+			JComboBox<Object> cb = comboBoxes[chan];
+			cb.setModel(new DefaultComboBoxModel<Object>(instruments));
+			cb.setSelectedIndex(pianoRollPanel.getProgram(chan));
+			cb.setEnabled(true);
 		}
-		return bank1;
+		okButton.setEnabled(true);
+		pack();
 	}
 
 	/**
@@ -130,11 +131,7 @@ public class InstrumentChooser extends JDialog implements ActionListener {
 	public void actionPerformed(ActionEvent evt) {
 		String ac = evt.getActionCommand();
 		if (ac == OK) {
-			try {
-				changeInstruments();
-			} catch (MidiUnavailableException e) {
-				theFrame.midiUnavailable();
-			}
+			changeInstruments();
 		}
 		// close window if OK or Cancel was pressed
 		dispose();
@@ -142,30 +139,21 @@ public class InstrumentChooser extends JDialog implements ActionListener {
 
 	/**
 	 * Change the instruments which is to be played on each of the channels of
-	 * the track.
-	 * 
-	 * @throws MidiUnavailableException
-	 *             If the Midi System is unavailable.
+	 * the track. Instruments which are not loaded yet are loaded in the
+	 * background.
 	 */
-	private void changeInstruments() throws MidiUnavailableException {
+	private void changeInstruments() {
 		for (int channel = 0; channel < 16; channel++) {
 			Instrument ins = (Instrument) comboBoxes[channel].getSelectedItem();
-			if (!isInstrumentLoaded(ins)) {
-				synth.loadInstrument(ins);
-			}
+			if (ins == null)
+				continue;
+			instrumentCache.load(ins);
 			Patch patch = ins.getPatch();
 			int program = patch.getProgram();
 			pianoRollPanel.changeProgram(channel, program);
 		}
 	}
 
-	private boolean isInstrumentLoaded(Instrument instrument) {
-		for (Instrument i : synth.getLoadedInstruments())
-			if (i == instrument)
-				return true;
-		return false;
-	}
-
 	public static void show(MIDIEd midied, PianoRollPanel pianoRollPanel) {
 		InstrumentChooser ic = new InstrumentChooser(midied, pianoRollPanel);
 		ic.setVisible(true);
@@ -0,0 +1,356 @@
+package midied;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Lets the user index folders of MIDI files and search them with a
+ * LibraryQuery, such as "uses channel 9 and is longer than 3 minutes", or
+ * for the phrase selected in the editor. A file which is found can be opened
+ * in the editor, where the phrase is then highlighted. Indexing is done on a
+ * thread of its own, so the dialog can be used while a large library is read.
+ * 
+ * @author 090010514
+ */
+public class LibraryDialog extends JDialog implements ActionListener {
+	private static final long serialVersionUID = 1L;
+	private static final String ADD_FOLDER = "Add folder";
+	private static final String REINDEX = "Re-index";
+	private static final String SEARCH = "Search";
+	private static final String FIND_PHRASE = "Find phrase";
+	private static final String OPEN = "Open";
+	private static final String CLOSE = "Close";
+
+	private final MIDIEd theFrame;
+	private final LibraryIndex index;
+	private final MelodyLibrary melodies;
+	private JTextField queryField;
+	private DefaultListModel<LibraryIndex.Entry> results;
+	private JList<LibraryIndex.Entry> resultList;
+	private JLabel status;
+	private JButton addButton;
+	private JButton reindexButton;
+	private JButton phraseButton;
+	// the phrase the listed files were found with, or null
+	private byte[] resultPhrase;
+	// the first track the phrase was found in, for each listed file
+	private Map<File, Integer> resultTracks = new HashMap<File, Integer>();
+	// the thread indexing or finding a phrase, or null
+	private Thread worker;
+
+	/**
+	 * Create a new LibraryDialog, which reads the editor's library index.
+	 * 
+	 * @param theFrame
+	 *            The MIDIEd-frame which files are opened in.
+	 */
+	public LibraryDialog(MIDIEd theFrame) {
+		super(theFrame, "MIDI Library", false);
+		this.theFrame = theFrame;
+		index = new LibraryIndex(LibraryIndex.DEFAULT_FILE);
+		melodies = new MelodyLibrary(MelodyLibrary.DEFAULT_FILE);
+		makeGUI();
+		pack();
+		setLocationRelativeTo(theFrame);
+		status.setText(index.size() + " files indexed in "
+				+ index.getRoots().size() + " folders");
+	}
+
+	/**
+	 * Creates the query field and Search button at the top, the list of
+	 * matching files in the middle, and the buttons to index folders, open a
+	 * file and close the dialog at the bottom, above a status line.
+	 */
+	private void makeGUI() {
+		JPanel queryPanel = new JPanel(new BorderLayout());
+		queryField = new JTextField(40);
+		queryField.setActionCommand(SEARCH);
+		queryField.addActionListener(this);
+		queryPanel.add(new JLabel("Find files which "), BorderLayout.WEST);
+		queryPanel.add(queryField, BorderLayout.CENTER);
+		JPanel searchPanel = new JPanel();
+		searchPanel.add(createButton(SEARCH, 'S'));
+		phraseButton = createButton(FIND_PHRASE, 'F');
+		phraseButton
+				.setToolTipText("Find the notes selected in the editor, in any key");
+		searchPanel.add(phraseButton);
+		queryPanel.add(searchPanel, BorderLayout.EAST);
+		add(queryPanel, BorderLayout.NORTH);
+
+		results = new DefaultListModel<LibraryIndex.Entry>();
+		resultList = new JList<LibraryIndex.Entry>(results);
+		resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		resultList.setCellRenderer(new EntryRenderer());
+		resultList.addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent evt) {
+				if (evt.getClickCount() == 2)
+					openSelected();
+			}
+		});
+		JScrollPane scrollPane = new JScrollPane(resultList);
+		scrollPane.setPreferredSize(new Dimension(600, 300));
+		add(scrollPane, BorderLayout.CENTER);
+
+		JPanel southPanel = new JPanel(new BorderLayout());
+		JPanel buttonPanel = new JPanel();
+		addButton = createButton(ADD_FOLDER, 'A');
+		reindexButton = createButton(REINDEX, 'R');
+		buttonPanel.add(addButton);
+		buttonPanel.add(reindexButton);
+		buttonPanel.add(createButton(OPEN, 'O'));
+		buttonPanel.add(createButton(CLOSE, 'C'));
+		southPanel.add(buttonPanel, BorderLayout.NORTH);
+		status = new JLabel(" ");
+		southPanel.add(status, BorderLayout.SOUTH);
+		add(southPanel, BorderLayout.SOUTH);
+	}
+
+	private JButton createButton(String text, char mnemonic) {
+		JButton button = new JButton(text);
+		button.setActionCommand(text);
+		button.setMnemonic(mnemonic);
+		button.addActionListener(this);
+		return button;
+	}
+
+	public void actionPerformed(ActionEvent evt) {
+		String ac = evt.getActionCommand();
+		if (ac == SEARCH) {
+			search();
+		} else if (ac == FIND_PHRASE) {
+			findPhrase();
+		} else if (ac == OPEN) {
+			openSelected();
+		} else if (ac == ADD_FOLDER) {
+			JFileChooser fc = new JFileChooser();
+			fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			if (fc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
+				startIndexing(fc.getSelectedFile());
+		} else if (ac == REINDEX) {
+			startIndexing(null);
+		} else if (ac == CLOSE) {
+			setVisible(false);
+		}
+	}
+
+	/**
+	 * Run the query and list the files which match.
+	 */
+	private void search() {
+		LibraryQuery query;
+		try {
+			query = new LibraryQuery(queryField.getText());
+		} catch (IllegalArgumentException iae) {
+			status.setText(iae.getMessage());
+			return;
+		}
+		long start = System.nanoTime();
+		List<LibraryIndex.Entry> matches = index.query(query);
+		long micros = (System.nanoTime() - start) / 1000;
+		showResults(matches, null, new HashMap<File, Integer>());
+		status.setText(matches.size() + " of " + index.size()
+				+ " files match (" + micros / 1000 + "." + micros % 1000 / 100
+				+ " ms)");
+	}
+
+	/**
+	 * List some files.
+	 * 
+	 * @param matches
+	 *            The files.
+	 * @param phrase
+	 *            The phrase they were found with, which is shown when one is
+	 *            opened, or null.
+	 * @param tracks
+	 *            The first track of each file the phrase was found in, which
+	 *            is edited when the file is opened.
+	 */
+	private void showResults(List<LibraryIndex.Entry> matches, byte[] phrase,
+			Map<File, Integer> tracks) {
+		results.clear();
+		for (LibraryIndex.Entry entry : matches)
+			results.addElement(entry);
+		resultPhrase = phrase;
+		resultTracks = tracks;
+	}
+
+	private void openSelected() {
+		LibraryIndex.Entry entry = resultList.getSelectedValue();
+		if (entry == null)
+			return;
+		theFrame.openFile(entry.getFile());
+		if (resultPhrase != null) {
+			Integer track = resultTracks.get(entry.getFile());
+			if (track != null)
+				theFrame.editTrack(track);
+			theFrame.findPhrase(resultPhrase, -1);
+		}
+	}
+
+	/**
+	 * Index a folder, or every folder indexed before, in the background, and
+	 * save the index when it is done.
+	 * 
+	 * @param folder
+	 *            The folder, or null for every folder.
+	 */
+	private void startIndexing(final File folder) {
+		runInBackground("Looking for MIDI files...", new Task() {
+			public String run() throws InterruptedException, IOException {
+				long start = System.nanoTime();
+				int read = folder == null ? index.updateAll(progress)
+						: index.update(folder, progress);
+				index.save();
+				return index.size() + " files indexed, " + read + " read in "
+						+ (System.nanoTime() - start) / 1000000 + " ms";
+			}
+		});
+	}
+
+	/**
+	 * Find the phrase selected in the editor in every indexed file, and list
+	 * the files it is found in. The melodies of files which have changed are
+	 * read first.
+	 */
+	private void findPhrase() {
+		final byte[] phrase = theFrame.getSelectedPhrase();
+		if (phrase.length < MelodyIndex.MIN_PHRASE) {
+			status.setText("Select a phrase of at least "
+					+ MelodyIndex.MIN_PHRASE + " notes in the editor first");
+			return;
+		}
+		runInBackground("Reading melodies...", new Task() {
+			public String run() throws InterruptedException, IOException {
+				if (melodies.update(index, progress) > 0)
+					melodies.save();
+				long start = System.nanoTime();
+				List<MelodyIndex.Hit> hits = melodies.find(phrase);
+				long micros = (System.nanoTime() - start) / 1000;
+				// the entries of the files with hits, in order of their paths
+				final List<LibraryIndex.Entry> matches = new ArrayList<LibraryIndex.Entry>();
+				// the hits of a file come in order of their tracks
+				final Map<File, Integer> tracks = new HashMap<File, Integer>();
+				for (MelodyIndex.Hit hit : hits)
+					if (!tracks.containsKey(hit.getFile()))
+						tracks.put(hit.getFile(), hit.getTrack());
+				for (LibraryIndex.Entry entry : index.getEntries())
+					if (tracks.containsKey(entry.getFile()))
+						matches.add(entry);
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						showResults(matches, phrase, tracks);
+					}
+				});
+				return hits.size() + " times in " + matches.size() + " files ("
+						+ micros / 1000 + "." + micros % 1000 / 100 + " ms)";
+			}
+		});
+	}
+
+	/**
+	 * Something done on a thread of its own, which says how it went.
+	 */
+	private abstract class Task {
+		// shows how many files have been read
+		final LibraryIndex.Progress progress = new LibraryIndex.Progress() {
+			public void scanned(int done, int total) {
+				if (done % 100 == 0 || done == total)
+					showStatus("Read " + done + " of " + total + " files");
+			}
+		};
+
+		abstract String run() throws InterruptedException, IOException;
+	}
+
+	/**
+	 * Run a task in the background, with the buttons which start tasks
+	 * disabled, and show its message when it is done. Nothing is done if a
+	 * task is already running.
+	 */
+	private void runInBackground(String message, final Task task) {
+		if (worker != null)
+			return;
+		addButton.setEnabled(false);
+		reindexButton.setEnabled(false);
+		phraseButton.setEnabled(false);
+		status.setText(message);
+		worker = new Thread("MIDI library indexer") {
+			public void run() {
+				String message;
+				try {
+					message = task.run();
+				} catch (InterruptedException ie) {
+					message = "Stopped";
+				} catch (IOException ioe) {
+					message = "Could not save the index: " + ioe.getMessage();
+				}
+				final String finished = message;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						worker = null;
+						addButton.setEnabled(true);
+						reindexButton.setEnabled(true);
+						phraseButton.setEnabled(true);
+						status.setText(finished);
+					}
+				});
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private void showStatus(final String text) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				status.setText(text);
+			}
+		});
+	}
+
+	/**
+	 * Shows a file's name, duration, tempo and number of notes, and the
+	 * folder it is in.
+	 */
+	private static class EntryRenderer extends DefaultListCellRenderer {
+		private static final long serialVersionUID = 1L;
+
+		public Component getListCellRendererComponent(JList<?> list,
+				Object value, int index, boolean isSelected,
+				boolean cellHasFocus) {
+			LibraryIndex.Entry entry = (LibraryIndex.Entry) value;
+			MidiSummary summary = entry.getSummary();
+			long seconds = summary.getDurationMicros() / 1000000;
+			String text = String.format("%s    %d:%02d, %.0f bpm, %d notes    %s",
+					entry.getFile().getName(), seconds / 60, seconds % 60,
+					summary.getBeatsPerMinute(), summary.getNoteCount(), entry
+							.getFile().getParent());
+			return super.getListCellRendererComponent(list, text, index,
+					isSelected, cellHasFocus);
+		}
+	}
+}
@@ -0,0 +1,373 @@
+package midied;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The LibraryIndex class keeps a MidiSummary of every MIDI file under some
+ * folders, so that a large library can be searched with a LibraryQuery
+ * without reading the files. Files are summarised in parallel with a
+ * MidiFileScanner, and only files whose modification time or length has
+ * changed since they were last indexed are read again. The index is kept in
+ * a small binary file, by default ~/.midied/library.idx.
+ * 
+ * @author 090010514
+ */
+public class LibraryIndex {
+	private static final int MAGIC = 0x4D49444C; // "MIDL"
+	private static final int VERSION = 1;
+	/**
+	 * The file the editor keeps its index in.
+	 */
+	public static final File DEFAULT_FILE = new File(
+			System.getProperty("user.home"), ".midied" + File.separator
+					+ "library.idx");
+
+	private final File indexFile;
+	private final Set<String> roots = new TreeSet<String>();
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/**
+	 * An indexed file.
+	 */
+	public static class Entry {
+		private final File file;
+		private final long modified;
+		private final long length;
+		private final MidiSummary summary;
+
+		Entry(File file, long modified, long length, MidiSummary summary) {
+			this.file = file;
+			this.modified = modified;
+			this.length = length;
+			this.summary = summary;
+		}
+
+		/**
+		 * Returns the indexed file.
+		 * 
+		 * @return The file.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Returns the time the file was last modified when it was indexed.
+		 * 
+		 * @return The time, as from File.lastModified.
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * Returns the length of the file when it was indexed.
+		 * 
+		 * @return The length in bytes.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Returns the summary of the file.
+		 * 
+		 * @return The summary, or null if the file could not be read.
+		 */
+		public MidiSummary getSummary() {
+			return summary;
+		}
+
+		public String toString() {
+			return file.getPath();
+		}
+	}
+
+	/**
+	 * Receives progress while a folder is indexed. It is called from the
+	 * indexing thread.
+	 */
+	public interface Progress {
+		/**
+		 * Called after each file which had to be read.
+		 * 
+		 * @param done
+		 *            The number of files read so far.
+		 * @param total
+		 *            The number of files to be read.
+		 */
+		void scanned(int done, int total);
+	}
+
+	/**
+	 * Creates a new LibraryIndex, loading it from a file if it exists. An
+	 * index which can not be read is started again from empty.
+	 * 
+	 * @param indexFile
+	 *            The file the index is kept in.
+	 */
+	public LibraryIndex(File indexFile) {
+		this.indexFile = indexFile;
+		if (indexFile.isFile()) {
+			try {
+				load();
+			} catch (IOException ioe) {
+				roots.clear();
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * Index the MIDI files under a folder, reading only those which are new
+	 * or have changed, and forgetting those which have gone. The index is
+	 * not saved.
+	 * 
+	 * @param root
+	 *            The folder.
+	 * @param progress
+	 *            Told how far the reading has got, or null.
+	 * @return The number of files which were read.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted, in which case the files read
+	 *             so far are kept.
+	 */
+	public int update(File root, Progress progress)
+			throws InterruptedException {
+		root = root.getAbsoluteFile();
+		List<File> files = new ArrayList<File>();
+		findMidiFiles(root, files);
+		String prefix = root.getPath() + File.separator;
+		Set<String> found = new TreeSet<String>();
+		List<File> changed = new ArrayList<File>();
+		// the index is only locked briefly, so it can be queried while the
+		// files are read
+		synchronized (this) {
+			for (File file : files) {
+				found.add(file.getPath());
+				Entry entry = entries.get(file.getPath());
+				if (entry == null || entry.modified != file.lastModified()
+						|| entry.length != file.length())
+					changed.add(file);
+			}
+			for (Iterator<String> i = entries.keySet().iterator(); i.hasNext();) {
+				String path = i.next();
+				if (path.startsWith(prefix) && !found.contains(path))
+					i.remove();
+			}
+			roots.add(root.getPath());
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			List<Future<Entry>> futures = new ArrayList<Future<Entry>>();
+			for (final File file : changed) {
+				futures.add(pool.submit(new Callable<Entry>() {
+					public Entry call() {
+						return scan(file);
+					}
+				}));
+			}
+			int done = 0;
+			for (Future<Entry> future : futures) {
+				Entry entry;
+				try {
+					entry = future.get();
+				} catch (ExecutionException ee) {
+					throw new RuntimeException(ee.getCause());
+				}
+				synchronized (this) {
+					entries.put(entry.file.getPath(), entry);
+				}
+				if (progress != null)
+					progress.scanned(++done, changed.size());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Index again every folder which has been indexed before.
+	 * 
+	 * @param progress
+	 *            Told how far the reading has got, or null.
+	 * @return The number of files which were read.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted.
+	 */
+	public int updateAll(Progress progress) throws InterruptedException {
+		int read = 0;
+		for (String root : getRoots())
+			read += update(new File(root), progress);
+		return read;
+	}
+
+	/**
+	 * Summarise a file. A file which can not be read is given an entry with
+	 * no summary, so that it is not read again until it changes.
+	 */
+	private static Entry scan(File file) {
+		long modified = file.lastModified();
+		long length = file.length();
+		MidiSummary summary;
+		try {
+			summary = MidiSummary.scan(file);
+		} catch (IOException ioe) {
+			summary = null;
+		} catch (RuntimeException re) {
+			summary = null;
+		}
+		return new Entry(file, modified, length, summary);
+	}
+
+	/**
+	 * Add the MIDI files in a folder and the folders inside it to a list.
+	 * 
+	 * @param folder
+	 *            The folder.
+	 * @param files
+	 *            The list.
+	 */
+	static void findMidiFiles(File folder, List<File> files) {
+		File[] children = folder.listFiles();
+		if (children == null)
+			return;
+		for (File child : children) {
+			if (child.isDirectory()) {
+				findMidiFiles(child, files);
+			} else {
+				String name = child.getName().toLowerCase(Locale.ENGLISH);
+				if (name.endsWith(".mid") || name.endsWith(".midi")
+						|| name.endsWith(".kar"))
+					files.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Find the files which match a query, in order of their paths.
+	 * 
+	 * @param query
+	 *            The query.
+	 * @return The matching entries.
+	 */
+	public synchronized List<Entry> query(LibraryQuery query) {
+		List<Entry> matches = new ArrayList<Entry>();
+		for (Entry entry : entries.values())
+			if (query.matches(entry))
+				matches.add(entry);
+		return matches;
+	}
+
+	/**
+	 * Returns every file indexed.
+	 * 
+	 * @return The entries, in order of their paths.
+	 */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	/**
+	 * Returns the number of files indexed.
+	 * 
+	 * @return The number of files, including those which could not be read.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the folders which have been indexed.
+	 * 
+	 * @return The folders' paths.
+	 */
+	public synchronized List<String> getRoots() {
+		return new ArrayList<String>(roots);
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not an index");
+			for (int n = in.readInt(); n > 0; n--)
+				roots.add(in.readUTF());
+			for (int n = in.readInt(); n > 0; n--) {
+				File file = new File(in.readUTF());
+				long modified = in.readLong();
+				long length = in.readLong();
+				MidiSummary summary = in.readBoolean() ? MidiSummary.read(in)
+						: null;
+				entries.put(file.getPath(), new Entry(file, modified, length,
+						summary));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the index to its file.
+	 * 
+	 * @throws IOException
+	 *             If it can not be written.
+	 */
+	public synchronized void save() throws IOException {
+		File folder = indexFile.getAbsoluteFile().getParentFile();
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Could not create " + folder);
+		// write to a temporary file first, so that the index is never left
+		// half-written
+		File temp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(roots.size());
+			for (String root : roots)
+				out.writeUTF(root);
+			out.writeInt(entries.size());
+			for (Entry entry : entries.values()) {
+				out.writeUTF(entry.file.getPath());
+				out.writeLong(entry.modified);
+				out.writeLong(entry.length);
+				out.writeBoolean(entry.summary != null);
+				if (entry.summary != null)
+					entry.summary.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		indexFile.delete();
+		if (!temp.renameTo(indexFile)) {
+			temp.delete();
+			throw new IOException("Could not write " + indexFile);
+		}
+	}
+}
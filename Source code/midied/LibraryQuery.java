@@ -0,0 +1,265 @@
+package midied;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The LibraryQuery class picks files out of a LibraryIndex. A query is a
+ * number of conditions joined by "and", each of which may start with "not",
+ * for example
+ * 
+ * <pre>
+ * uses channel 9 and is longer than 3 minutes
+ * program 0 and not named test and notes &gt; 1000
+ * </pre>
+ * 
+ * The conditions understood are:
+ * <ul>
+ * <li>channel N, program N (channels counted from 0, as in the editor)</li>
+ * <li>longer than D, shorter than D, where D is e.g. 90, 90s, 3 minutes, 3m
+ * or 2:30</li>
+ * <li>faster than N bpm, slower than N bpm</li>
+ * <li>more than N notes, fewer than N notes</li>
+ * <li>named X, i.e. the file name contains X</li>
+ * <li>F op N, where F is duration (in seconds), tempo, notes, resolution,
+ * channels (how many), lowest or highest (key), and op is one of &lt;, &lt;=,
+ * &gt;, &gt;=, = and !=</li>
+ * </ul>
+ * Words such as "is", "has" and "uses" are ignored.
+ * 
+ * @author 090010514
+ */
+public class LibraryQuery {
+	private static final Set<String> IGNORED = new HashSet<String>(
+			Arrays.asList("is", "has", "with", "uses", "use", "a", "an",
+					"the", "than"));
+
+	private final List<Condition> conditions = new ArrayList<Condition>();
+
+	/**
+	 * A single condition on an entry of the index.
+	 */
+	private interface Condition {
+		boolean matches(LibraryIndex.Entry entry);
+	}
+
+	/**
+	 * Creates a new LibraryQuery from its text.
+	 * 
+	 * @param text
+	 *            The query. An empty query matches every file.
+	 * @throws IllegalArgumentException
+	 *             If part of the query is not understood; the message says
+	 *             which.
+	 */
+	public LibraryQuery(String text) {
+		List<String> term = new ArrayList<String>();
+		for (String word : text.trim().toLowerCase(Locale.ENGLISH).split(
+				"\\s+")) {
+			if (word.length() == 0)
+				continue;
+			if (word.equals("and")) {
+				addCondition(term);
+				term.clear();
+			} else if (!IGNORED.contains(word)) {
+				term.add(word);
+			}
+		}
+		addCondition(term);
+	}
+
+	/**
+	 * Returns whether an entry satisfies every condition. Entries of files
+	 * which could not be read never match.
+	 * 
+	 * @param entry
+	 *            An entry of the index.
+	 * @return Whether it matches.
+	 */
+	public boolean matches(LibraryIndex.Entry entry) {
+		if (entry.getSummary() == null)
+			return false;
+		for (Condition condition : conditions)
+			if (!condition.matches(entry))
+				return false;
+		return true;
+	}
+
+	private void addCondition(List<String> term) {
+		if (term.isEmpty())
+			return;
+		boolean negate = term.get(0).equals("not");
+		Condition condition = parse(negate ? term.subList(1, term.size())
+				: term);
+		if (negate) {
+			final Condition positive = condition;
+			condition = new Condition() {
+				public boolean matches(LibraryIndex.Entry entry) {
+					return !positive.matches(entry);
+				}
+			};
+		}
+		conditions.add(condition);
+	}
+
+	private Condition parse(List<String> term) {
+		if (term.size() >= 2) {
+			String first = term.get(0);
+			final String rest = join(term.subList(1, term.size()));
+			if (first.equals("channel")) {
+				final int channel = number(rest, 0, 15);
+				return new Condition() {
+					public boolean matches(LibraryIndex.Entry entry) {
+						return entry.getSummary().usesChannel(channel);
+					}
+				};
+			} else if (first.equals("program")) {
+				final int program = number(rest, 0, 127);
+				return new Condition() {
+					public boolean matches(LibraryIndex.Entry entry) {
+						return entry.getSummary().usesProgram(program);
+					}
+				};
+			} else if (first.equals("named") || first.equals("name")) {
+				return new Condition() {
+					public boolean matches(LibraryIndex.Entry entry) {
+						return entry.getFile().getName().toLowerCase(
+								Locale.ENGLISH).contains(rest);
+					}
+				};
+			} else if (first.equals("longer")) {
+				return compare("duration", ">", seconds(rest));
+			} else if (first.equals("shorter")) {
+				return compare("duration", "<", seconds(rest));
+			} else if (first.equals("faster")) {
+				return compare("tempo", ">", number(strip(rest, "bpm")));
+			} else if (first.equals("slower")) {
+				return compare("tempo", "<", number(strip(rest, "bpm")));
+			} else if (first.equals("more")) {
+				return compare("notes", ">", number(strip(rest, "notes")));
+			} else if (first.equals("fewer") || first.equals("less")) {
+				return compare("notes", "<", number(strip(rest, "notes")));
+			} else if (term.size() == 3) {
+				double value = term.get(0).equals("duration") ? seconds(term
+						.get(2)) : number(term.get(2));
+				return compare(term.get(0), term.get(1), value);
+			}
+		}
+		throw new IllegalArgumentException("Can not understand \""
+				+ join(term) + "\"");
+	}
+
+	/**
+	 * A comparison of one of the numbers of a summary with a value.
+	 */
+	private Condition compare(final String field, final String op,
+			final double value) {
+		final int comparison;
+		if (op.equals("<"))
+			comparison = 0;
+		else if (op.equals("<="))
+			comparison = 1;
+		else if (op.equals(">"))
+			comparison = 2;
+		else if (op.equals(">="))
+			comparison = 3;
+		else if (op.equals("=") || op.equals("=="))
+			comparison = 4;
+		else if (op.equals("!="))
+			comparison = 5;
+		else
+			throw new IllegalArgumentException("Unknown comparison " + op);
+		if (!Arrays.asList("duration", "tempo", "notes", "resolution",
+				"channels", "lowest", "highest").contains(field))
+			throw new IllegalArgumentException("Unknown field " + field);
+		return new Condition() {
+			public boolean matches(LibraryIndex.Entry entry) {
+				double actual = field(entry.getSummary(), field);
+				switch (comparison) {
+				case 0:
+					return actual < value;
+				case 1:
+					return actual <= value;
+				case 2:
+					return actual > value;
+				case 3:
+					return actual >= value;
+				case 4:
+					return actual == value;
+				default:
+					return actual != value;
+				}
+			}
+		};
+	}
+
+	private static double field(MidiSummary summary, String field) {
+		if (field.equals("duration"))
+			return summary.getDurationMicros() / 1e6;
+		if (field.equals("tempo"))
+			return summary.getBeatsPerMinute();
+		if (field.equals("notes"))
+			return summary.getNoteCount();
+		if (field.equals("resolution"))
+			return summary.getResolution();
+		if (field.equals("channels"))
+			return Integer.bitCount(summary.getChannels());
+		if (field.equals("lowest"))
+			return summary.getLowestKey();
+		return summary.getHighestKey();
+	}
+
+	/**
+	 * Parse a duration, in seconds unless a unit is given.
+	 */
+	private static double seconds(String text) {
+		String s = text.replace(" ", "");
+		int colon = s.indexOf(':');
+		if (colon >= 0)
+			return number(s.substring(0, colon)) * 60
+					+ number(s.substring(colon + 1));
+		String[][] units = { { "minutes", "minute", "mins", "min", "m" },
+				{ "seconds", "second", "secs", "sec", "s" } };
+		for (int u = 0; u < units.length; u++)
+			for (String unit : units[u])
+				if (s.endsWith(unit))
+					return number(s.substring(0, s.length() - unit.length()))
+							* (u == 0 ? 60 : 1);
+		return number(s);
+	}
+
+	private static double number(String text) {
+		try {
+			return Double.parseDouble(text.trim());
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Not a number: " + text);
+		}
+	}
+
+	private static int number(String text, int min, int max) {
+		double value = number(text);
+		if (value != Math.floor(value) || value < min || value > max)
+			throw new IllegalArgumentException(text + " is not from " + min
+					+ " to " + max);
+		return (int) value;
+	}
+
+	private static String strip(String text, String unit) {
+		return text.endsWith(unit) ? text.substring(0,
+				text.length() - unit.length()) : text;
+	}
+
+	private static String join(List<String> words) {
+		StringBuilder sb = new StringBuilder();
+		for (String word : words) {
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(word);
+		}
+		return sb.toString();
+	}
+}
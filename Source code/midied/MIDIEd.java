@@ -3,6 +3,11 @@ package midied;
 import javax.sound.midi.*;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -29,16 +34,38 @@ public final class MIDIEd extends JFrame implements WindowListener {
 	private static final String NEW = "New";
 	private static final String OPEN = "Open";
 	private static final String SAVE = "Save";
+	private static final String SOUNDFONT = "SoundFont";
+	private static final String LIBRARY = "Library";
 	private static final String PLAY = "Play";
 	private static final String STOP = "Stop";
+	private static final String RECORD = "Record";
+	private static final String THRU = "Thru";
+	private static final String THRU_CHANNELS = "Thru channels";
 	private JButton playButton;
 	private JButton stopButton;
+	private JButton recordButton;
 	private static final String QUIT = "Quit";
 	private static final String QUANTISATION = "Quantisation";
+	private static final String QUANTISE_ALL = "Quantise all";
 	private static final String INSTRUMENT = "Instrument";
 	private static final String DISPLAY_BARS = "Display bars";
+	private static final String RESOLUTION = "Resolution";
+	private static final String TRACKS = "Tracks";
 	private static final String ADD_BAR = "Add bar";
 	private static final String REMOVE_BAR = "Remove bar";
+	private static final String SET_LOOP = "Set loop";
+	private static final String LOOP = "Loop";
+	private static final String SELECT_ALL = "Select all";
+	private static final String SELECT_NONE = "Select none";
+	private static final String DELETE_SELECTED = "Delete selected";
+	private static final String SEMITONE_UP = "Semitone up";
+	private static final String SEMITONE_DOWN = "Semitone down";
+	private static final String OCTAVE_UP = "Octave up";
+	private static final String OCTAVE_DOWN = "Octave down";
+	private static final String SCALE_VELOCITY = "Scale velocity";
+	private static final String QUANTISE_SELECTED = "Quantise selected";
+	private static final String FIND_PHRASE = "Find phrase";
+	private static final String FIND_NEXT = "Find next";
 	private static final String V_ZOOM_IN = "VIn";
 	private static final String V_ZOOM_OUT = "VOut";
 	private static final String H_ZOOM_IN = "HIn";
@@ -47,12 +74,52 @@ public final class MIDIEd extends JFrame implements WindowListener {
 	// The ScrollPane manages a viewport onto the larger piano roll
 	private JScrollPane prScrollPane;
 	private PianoRollPanel pianoRollPanel;
+	// Shows the whole sequence and where the viewport is
+	private OverviewPanel overviewPanel;
 
-	// The sequencer plays the sequence
-	private Sequencer sequencer;
+	// The player plays the sequence
+	private SequencePlayer player;
+	// The recorder records from the input device into the sequence
+	private MidiRecorder recorder;
+	private MidiDevice inputDevice;
+	// The thru passes the input device on to the synthesizer
+	private MidiThru thru;
+	private Transmitter thruTransmitter;
+	private JCheckBox thruBox;
+	// the channel each input channel is played on, and whether the chosen
+	// instruments are played
+	private int[] thruChannels;
+	private boolean thruPrograms;
+	// The tick from which the sequence is played
+	private long playPosition = 0;
+	// The synthesizer which stays open for playing and auditioning
+	private SoundOutput soundOutput;
+	// The instruments of that synthesizer, read in the background
+	private InstrumentCache instrumentCache;
+	// Times events, paints, loads and saves, and reports stalls
+	private EditorMetrics metrics;
+	// Searches the MIDI library; kept so that its results stay open
+	private LibraryDialog libraryDialog;
+	// Shows every track as a lane; kept so that its lanes stay as they are
+	private TracksDialog tracksDialog;
+	// The occurrences of the phrase last searched for, and the one shown
+	private List<List<Note>> phraseHits = new ArrayList<List<Note>>();
+	private int phraseHit;
 
 	// The Sequence object we are editing
-	private Sequence sequence;
+	private EditableSequence sequence;
+
+	// Moves the playhead while the sequence is playing
+	private Timer playheadTimer;
+	// About 60 frames per second
+	private static final int PLAYHEAD_FRAME_MILLIS = 16;
+
+	// The loop region in bars, counting from 1, and whether it is used
+	private int loopStartBar = 1;
+	private int loopEndBar = 1;
+	private JCheckBox loopBox;
+	// shows the time of the play position, and the length of the sequence
+	private JLabel timeLabel;
 
 	private NoteLength quantisationNoteLength = Constants.DEFAULT_QUANTISATION;
 
@@ -65,15 +132,49 @@ public final class MIDIEd extends JFrame implements WindowListener {
 	public MIDIEd() {
 		super(TITLE + " - Untitled");
 		// Initialise the Sequencer.
+		long synthStart = System.nanoTime();
 		try {
-			sequencer = MidiSystem.getSequencer();
+			soundOutput = new SoundOutput();
+			instrumentCache = new InstrumentCache(soundOutput.getSynthesizer());
+			player = new SequencePlayer(soundOutput.getReceiver());
+			thru = new MidiThru(soundOutput);
 		} catch (MidiUnavailableException mue) {
 			midiUnavailable();
 		}
+		long synthNanos = System.nanoTime() - synthStart;
 		// Initialise the sequence
 		sequence = null;
 		// Initialise the GUI
 		makeGUI();
+		pianoRollPanel.setSoundOutput(soundOutput);
+		recorder = new MidiRecorder(pianoRollPanel);
+		metrics = new EditorMetrics(pianoRollPanel);
+		metrics.recordSynthOpen(synthNanos);
+		metrics.addTimings(soundOutput.getAuditionLatency());
+		metrics.addTimings(thru.getLatency());
+		metrics.install();
+		player.setEndListener(new Runnable() {
+			public void run() {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						// keep recording past the end of the sequence
+						if (!recorder.isRecording())
+							stop();
+					}
+				});
+			}
+		});
+		// play edits straight away
+		pianoRollPanel.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent evt) {
+				player.refresh(sequence);
+				if (tracksDialog != null)
+					tracksDialog.trackChanged(pianoRollPanel.getTrackIndex());
+				// the instruments may have been changed
+				if (thruPrograms)
+					updateThruRouting();
+			}
+		});
 		// want to specify close operation in WindowListener.
 		setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
 		addWindowListener(this);
@@ -95,8 +196,11 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		JPanel channelOptions = initChannelOptions();
 		JPanel mainPanel = new JPanel();
 		mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS));
+		JPanel rollPanel = new JPanel(new BorderLayout());
+		rollPanel.add(prScrollPane, BorderLayout.CENTER);
+		rollPanel.add(initOverview(), BorderLayout.SOUTH);
 		JPanel firstPanel = new JPanel(new BorderLayout());
-		firstPanel.add(prScrollPane, BorderLayout.CENTER);
+		firstPanel.add(rollPanel, BorderLayout.CENTER);
 		firstPanel.add(channelOptions, BorderLayout.EAST);
 		mainPanel.add(firstPanel);
 		mainPanel.add(controls);
@@ -114,10 +218,23 @@ public final class MIDIEd extends JFrame implements WindowListener {
 	private JScrollPane initScrollPane() {
 		pianoRollPanel = new PianoRollPanel(this);
 		prScrollPane = new JScrollPane(pianoRollPanel);
+		prScrollPane.setColumnHeaderView(new TimeRuler(this, pianoRollPanel));
 		prScrollPane.setPreferredSize(new Dimension(500, 600));
 		return prScrollPane;
 	}
 
+	/**
+	 * Initialises the overview strip below the scrollPane.
+	 * 
+	 * @return The overview strip.
+	 */
+	private OverviewPanel initOverview() {
+		overviewPanel = new OverviewPanel(pianoRollPanel, prScrollPane
+				.getViewport());
+		pianoRollPanel.setOverview(overviewPanel);
+		return overviewPanel;
+	}
+
 	/**
 	 * Initialises the menus.
 	 */
@@ -125,6 +242,7 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		JMenuBar menuBar = new JMenuBar();
 		addFileMenu(menuBar);
 		addEditMenu(menuBar);
+		addSelectMenu(menuBar);
 		setJMenuBar(menuBar);
 	}
 
@@ -156,6 +274,13 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		saveItem.setAccelerator(ctrlS);
 		saveItem.setActionCommand(SAVE);
 		saveItem.addActionListener(new MidiMenuListener());
+		JMenuItem soundFontItem = new JMenuItem("Load SoundFont", KeyEvent.VK_L);
+		soundFontItem.setActionCommand(SOUNDFONT);
+		soundFontItem.addActionListener(new MidiMenuListener());
+		JMenuItem libraryItem = new JMenuItem("Search library...",
+				KeyEvent.VK_B);
+		libraryItem.setActionCommand(LIBRARY);
+		libraryItem.addActionListener(new MidiMenuListener());
 		JMenuItem quitItem = new JMenuItem("Quit", KeyEvent.VK_Q);
 		KeyStroke ctrlQ = KeyStroke.getKeyStroke(KeyEvent.VK_Q,
 				KeyEvent.CTRL_DOWN_MASK);
@@ -165,6 +290,8 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		fileMenu.add(newItem);
 		fileMenu.add(openItem);
 		fileMenu.add(saveItem);
+		fileMenu.add(soundFontItem);
+		fileMenu.add(libraryItem);
 		fileMenu.add(quitItem);
 	}
 
@@ -182,6 +309,10 @@ public final class MIDIEd extends JFrame implements WindowListener {
 				KeyEvent.VK_Q);
 		quantisationItem.setActionCommand(QUANTISATION);
 		quantisationItem.addActionListener(new MidiMenuListener());
+		JMenuItem quantiseAllItem = new JMenuItem("Quantise all notes",
+				KeyEvent.VK_N);
+		quantiseAllItem.setActionCommand(QUANTISE_ALL);
+		quantiseAllItem.addActionListener(new MidiMenuListener());
 		JMenuItem instrumentItem = new JMenuItem("Choose instruments",
 				KeyEvent.VK_I);
 		instrumentItem.setActionCommand(INSTRUMENT);
@@ -189,6 +320,10 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		JMenuItem barItem = new JMenuItem("Set bars", KeyEvent.VK_S);
 		barItem.setActionCommand(DISPLAY_BARS);
 		barItem.addActionListener(new MidiMenuListener());
+		JMenuItem resolutionItem = new JMenuItem("Set resolution",
+				KeyEvent.VK_U);
+		resolutionItem.setActionCommand(RESOLUTION);
+		resolutionItem.addActionListener(new MidiMenuListener());
 		JMenuItem addItem = new JMenuItem("Add bar", KeyEvent.VK_A);
 		KeyStroke ctrlB = KeyStroke.getKeyStroke(KeyEvent.VK_B,
 				KeyEvent.CTRL_DOWN_MASK);
@@ -198,12 +333,92 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		JMenuItem removeItem = new JMenuItem("Remove bar", KeyEvent.VK_R);
 		removeItem.setActionCommand(REMOVE_BAR);
 		removeItem.addActionListener(new MidiMenuListener());
+		JMenuItem loopItem = new JMenuItem("Set loop", KeyEvent.VK_L);
+		loopItem.setActionCommand(SET_LOOP);
+		loopItem.addActionListener(new MidiMenuListener());
+		JMenuItem thruItem = new JMenuItem("Thru channels", KeyEvent.VK_T);
+		thruItem.setActionCommand(THRU_CHANNELS);
+		thruItem.addActionListener(new MidiMenuListener());
+		JMenuItem tracksItem = new JMenuItem("Show tracks", KeyEvent.VK_K);
+		tracksItem.setActionCommand(TRACKS);
+		tracksItem.addActionListener(new MidiMenuListener());
 
 		editMenu.add(instrumentItem);
 		editMenu.add(quantisationItem);
+		editMenu.add(quantiseAllItem);
 		editMenu.add(barItem);
+		editMenu.add(resolutionItem);
 		editMenu.add(addItem);
 		editMenu.add(removeItem);
+		editMenu.add(loopItem);
+		editMenu.add(thruItem);
+		editMenu.add(tracksItem);
+	}
+
+	/**
+	 * Add a select menu, whose items act on the selected notes, to the given
+	 * menu-bar.
+	 * 
+	 * @param menuBar
+	 *            A JMenuBar.
+	 */
+	private void addSelectMenu(JMenuBar menuBar) {
+		JMenu selectMenu = new JMenu("Select");
+		selectMenu.setMnemonic(KeyEvent.VK_S);
+		menuBar.add(selectMenu);
+		selectMenu.add(createMenuItem("Select all", KeyEvent.VK_A,
+				SELECT_ALL, KeyStroke.getKeyStroke(KeyEvent.VK_A,
+						KeyEvent.CTRL_DOWN_MASK)));
+		selectMenu.add(createMenuItem("Select none", KeyEvent.VK_N,
+				SELECT_NONE, KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0)));
+		selectMenu.add(createMenuItem("Delete", KeyEvent.VK_D,
+				DELETE_SELECTED, KeyStroke.getKeyStroke(KeyEvent.VK_DELETE, 0)));
+		selectMenu.addSeparator();
+		selectMenu.add(createMenuItem("Semitone up", KeyEvent.VK_U,
+				SEMITONE_UP, KeyStroke.getKeyStroke(KeyEvent.VK_UP,
+						KeyEvent.CTRL_DOWN_MASK)));
+		selectMenu.add(createMenuItem("Semitone down", KeyEvent.VK_W,
+				SEMITONE_DOWN, KeyStroke.getKeyStroke(KeyEvent.VK_DOWN,
+						KeyEvent.CTRL_DOWN_MASK)));
+		selectMenu.add(createMenuItem("Octave up", KeyEvent.VK_O, OCTAVE_UP,
+				KeyStroke.getKeyStroke(KeyEvent.VK_UP, KeyEvent.CTRL_DOWN_MASK
+						| KeyEvent.SHIFT_DOWN_MASK)));
+		selectMenu.add(createMenuItem("Octave down", KeyEvent.VK_C,
+				OCTAVE_DOWN, KeyStroke.getKeyStroke(KeyEvent.VK_DOWN,
+						KeyEvent.CTRL_DOWN_MASK | KeyEvent.SHIFT_DOWN_MASK)));
+		selectMenu.add(createMenuItem("Scale velocity", KeyEvent.VK_V,
+				SCALE_VELOCITY, null));
+		selectMenu.add(createMenuItem("Quantise", KeyEvent.VK_Q,
+				QUANTISE_SELECTED, null));
+		selectMenu.addSeparator();
+		selectMenu.add(createMenuItem("Find phrase", KeyEvent.VK_F,
+				FIND_PHRASE, KeyStroke.getKeyStroke(KeyEvent.VK_F,
+						KeyEvent.CTRL_DOWN_MASK)));
+		selectMenu.add(createMenuItem("Find next", KeyEvent.VK_X, FIND_NEXT,
+				KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0)));
+	}
+
+	/**
+	 * Create a menu item which is handled by a MidiMenuListener.
+	 * 
+	 * @param text
+	 *            The text of the item.
+	 * @param mnemonic
+	 *            The mnemonic key of the item.
+	 * @param command
+	 *            The action command of the item.
+	 * @param accelerator
+	 *            The accelerator of the item, or null for none.
+	 * @return The new menu item.
+	 */
+	private JMenuItem createMenuItem(String text, int mnemonic,
+			String command, KeyStroke accelerator) {
+		JMenuItem item = new JMenuItem(text, mnemonic);
+		item.setActionCommand(command);
+		item.addActionListener(new MidiMenuListener());
+		if (accelerator != null)
+			item.setAccelerator(accelerator);
+		return item;
 	}
 
 	/**
@@ -228,6 +443,28 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		stopButton.setEnabled(false);
 		controls.add(stopButton);
 
+		recordButton = new JButton("Record");
+		recordButton.setActionCommand(RECORD);
+		recordButton.addActionListener(new MidiButtonListener());
+		controls.add(recordButton);
+
+		// Add the thru check-box
+		thruBox = new JCheckBox("Thru");
+		thruBox.setActionCommand(THRU);
+		thruBox.addActionListener(new MidiButtonListener());
+		controls.add(thruBox);
+
+		// Add the loop check-box
+		loopBox = new JCheckBox("Loop");
+		loopBox.setActionCommand(LOOP);
+		loopBox.addActionListener(new MidiButtonListener());
+		controls.add(loopBox);
+
+		// Add the time of the play position
+		timeLabel = new JLabel();
+		timeLabel.setBorder(BorderFactory.createEmptyBorder(0, 6, 0, 6));
+		controls.add(timeLabel);
+
 		// Add the vertical zoom in button
 		JButton vZoomInButton = new JButton("Zoom in (V)");
 		vZoomInButton.setActionCommand(V_ZOOM_IN);
@@ -384,6 +621,12 @@ public final class MIDIEd extends JFrame implements WindowListener {
 				play();
 			else if (command == STOP)
 				stop();
+			else if (command == RECORD)
+				record();
+			else if (command == THRU)
+				updateThru();
+			else if (command == LOOP)
+				updateLoop();
 			else if (command == V_ZOOM_IN)
 				pianoRollPanel.modifyVerticalZoom(true);
 			else if (command == V_ZOOM_OUT)
@@ -408,22 +651,150 @@ public final class MIDIEd extends JFrame implements WindowListener {
 				openFile();
 			} else if (command == SAVE) {
 				saveFile();
+			} else if (command == SOUNDFONT) {
+				loadSoundFont();
+			} else if (command == LIBRARY) {
+				searchLibrary();
 			} else if (command == QUIT) {
 				exit();
 			} else if (command == QUANTISATION) {
 				setQuantisation();
+			} else if (command == QUANTISE_ALL) {
+				quantise(null);
 			} else if (command == INSTRUMENT) {
 				showInstrumentChooser();
+			} else if (command == TRACKS) {
+				showTracks();
+			} else if (command == THRU_CHANNELS) {
+				ThruDialog.show(MIDIEd.this, thru);
 			} else if (command == DISPLAY_BARS) {
 				setDisplayBars();
+			} else if (command == RESOLUTION) {
+				setResolution();
 			} else if (command == ADD_BAR) {
 				pianoRollPanel.addBar();
 			} else if (command == REMOVE_BAR) {
 				pianoRollPanel.removeBar();
+			} else if (command == SET_LOOP) {
+				setLoop();
+			} else if (command == SELECT_ALL) {
+				pianoRollPanel.selectAll();
+			} else if (command == SELECT_NONE) {
+				pianoRollPanel.clearSelection();
+			} else if (command == DELETE_SELECTED) {
+				pianoRollPanel.removeSelection();
+			} else if (command == SEMITONE_UP) {
+				pianoRollPanel.transposeSelection(1);
+			} else if (command == SEMITONE_DOWN) {
+				pianoRollPanel.transposeSelection(-1);
+			} else if (command == OCTAVE_UP) {
+				pianoRollPanel.transposeSelection(12);
+			} else if (command == OCTAVE_DOWN) {
+				pianoRollPanel.transposeSelection(-12);
+			} else if (command == SCALE_VELOCITY) {
+				scaleVelocity();
+			} else if (command == QUANTISE_SELECTED) {
+				quantise(pianoRollPanel.getSelection());
+			} else if (command == FIND_PHRASE) {
+				findPhrase();
+			} else if (command == FIND_NEXT) {
+				showNextPhrase();
 			}
 		}
 	}
 
+	/**
+	 * Returns the melody of the selected notes, as a phrase to be searched
+	 * for.
+	 * 
+	 * @return The keys of the highest selected notes, in order.
+	 */
+	public byte[] getSelectedPhrase() {
+		List<Note> selected = new ArrayList<Note>(pianoRollPanel.getSelection());
+		Collections.sort(selected, new Comparator<Note>() {
+			public int compare(Note a, Note b) {
+				return a.getTick() < b.getTick() ? -1
+						: a.getTick() > b.getTick() ? 1 : 0;
+			}
+		});
+		return MelodyIndex.keys(MelodyIndex.melody(selected));
+	}
+
+	/**
+	 * Find the selected phrase everywhere in the track being edited.
+	 */
+	private void findPhrase() {
+		byte[] phrase = getSelectedPhrase();
+		if (phrase.length < MelodyIndex.MIN_PHRASE) {
+			reportError("Select a phrase of at least "
+					+ MelodyIndex.MIN_PHRASE + " notes to find.", "Find phrase");
+			return;
+		}
+		// start from the phrase itself, so that the next one is shown first
+		long from = pianoRollPanel.getSelection().isEmpty() ? 0
+				: Collections.min(pianoRollPanel.getSelection(),
+						new Comparator<Note>() {
+							public int compare(Note a, Note b) {
+								return a.getTick() < b.getTick() ? -1 : a
+										.getTick() > b.getTick() ? 1 : 0;
+							}
+						}).getTick();
+		findPhrase(phrase, from);
+	}
+
+	/**
+	 * Find a phrase everywhere in the track being edited, in any key and on
+	 * any channel, select every occurrence, and show the first which starts
+	 * after a tick.
+	 * 
+	 * @param phrase
+	 *            The keys of the phrase.
+	 * @param from
+	 *            The tick, or -1 to show the first occurrence.
+	 */
+	public void findPhrase(byte[] phrase, long from) {
+		List<List<Note>> melodies = MelodyIndex.channelMelodies(pianoRollPanel
+				.getNotes());
+		MelodyIndex index = new MelodyIndex();
+		for (int c = 0; c < 16; c++)
+			index.add(null, pianoRollPanel.getTrackIndex(), c, MelodyIndex
+					.keys(melodies.get(c)));
+		phraseHits.clear();
+		for (MelodyIndex.Hit hit : index.find(phrase))
+			phraseHits.add(melodies.get(hit.getChannel()).subList(
+					hit.getPosition(), hit.getPosition() + phrase.length));
+		// show the hits in the order they are played
+		Collections.sort(phraseHits, new Comparator<List<Note>>() {
+			public int compare(List<Note> a, List<Note> b) {
+				long ta = a.get(0).getTick();
+				long tb = b.get(0).getTick();
+				return ta < tb ? -1 : ta > tb ? 1 : 0;
+			}
+		});
+		int next = 0;
+		while (next < phraseHits.size()
+				&& phraseHits.get(next).get(0).getTick() <= from)
+			next++;
+		phraseHit = (next == phraseHits.size() ? 0 : next) - 1;
+		showNextPhrase();
+	}
+
+	/**
+	 * Select every occurrence of the phrase last searched for, and scroll to
+	 * the next one.
+	 */
+	private void showNextPhrase() {
+		if (phraseHits.isEmpty()) {
+			reportError("The phrase was not found.", "Find phrase");
+			return;
+		}
+		phraseHit = (phraseHit + 1) % phraseHits.size();
+		List<Note> all = new ArrayList<Note>();
+		for (List<Note> hit : phraseHits)
+			all.addAll(hit);
+		pianoRollPanel.selectNotes(all, phraseHits.get(phraseHit));
+	}
+
 	/**
 	 * Opens up a window from which instruments can be choosen for each of the
 	 * channels.
@@ -437,7 +808,115 @@ public final class MIDIEd extends JFrame implements WindowListener {
 	 */
 	public void setDisplayBars() {
 		int current = pianoRollPanel.getDisplayBars();
-		final JTextField textfield = new JTextField(String.valueOf(current));
+		JTextField textfield = createNumberField(current);
+		Object[] message = { "Enter number of bars", textfield };
+		int opt = JOptionPane.showConfirmDialog(this, message, "Set bars",
+				JOptionPane.OK_CANCEL_OPTION);
+		if (opt == JOptionPane.OK_OPTION) {
+			int bars = Integer.parseInt(textfield.getText());
+			pianoRollPanel.setDisplayBars(bars);
+		}
+	}
+
+	/**
+	 * Change the resolution of the sequence, using a text field in a pop-up
+	 * dialog. Every event is moved to the nearest tick at the new resolution,
+	 * so that material at another resolution can be merged with it, or it
+	 * can be saved at the resolution another program expects.
+	 */
+	private void setResolution() {
+		if (sequence.getDivisionType() != Sequence.PPQ) {
+			reportError("Only sequences timed in ticks per quarter note "
+					+ "can be given a new resolution.", "Error!");
+			return;
+		}
+		int from = sequence.getResolution();
+		JTextField textfield = createNumberField(from);
+		Object[] message = { "Ticks per quarter note", textfield };
+		int opt = JOptionPane.showConfirmDialog(this, message,
+				"Set resolution", JOptionPane.OK_CANCEL_OPTION);
+		if (opt != JOptionPane.OK_OPTION)
+			return;
+		int to;
+		try {
+			to = Integer.parseInt(textfield.getText());
+		} catch (NumberFormatException nfe) {
+			return;
+		}
+		if (to < 1 || to > 0x7FFF) {
+			reportError("The resolution must be from 1 to 32767.", "Error!");
+			return;
+		}
+		if (to == from)
+			return;
+		stop();
+		sequence.setResolution(to);
+		pianoRollPanel.clear();
+		phraseHits.clear();
+		pianoRollPanel.setSequence(sequence, pianoRollPanel.getTrackIndex());
+		updateLoop();
+		updateTracks();
+		pianoRollPanel.setChangeMade(true);
+		seek(Resampler.scale(playPosition, from, to));
+	}
+
+	/**
+	 * Set the loop region, in bars, using two text fields in a pop-up dialog.
+	 * The loop can be changed while playing. Setting it turns looping on.
+	 */
+	private void setLoop() {
+		JTextField startField = createNumberField(loopStartBar);
+		JTextField endField = createNumberField(loopEndBar);
+		Object[] message = { "First bar of the loop", startField,
+				"Last bar of the loop", endField };
+		int opt = JOptionPane.showConfirmDialog(this, message, "Set loop",
+				JOptionPane.OK_CANCEL_OPTION);
+		if (opt != JOptionPane.OK_OPTION)
+			return;
+		try {
+			int start = Integer.parseInt(startField.getText());
+			int end = Integer.parseInt(endField.getText());
+			if (start < 1 || end < start) {
+				reportError("The last bar must not come before the first.",
+						"Error!");
+				return;
+			}
+			loopStartBar = start;
+			loopEndBar = end;
+		} catch (NumberFormatException nfe) {
+			return;
+		}
+		loopBox.setSelected(true);
+		updateLoop();
+	}
+
+	/**
+	 * Pass the loop region on to the player and the PianoRollPanel, or remove
+	 * it if looping is turned off.
+	 */
+	private void updateLoop() {
+		if (loopBox.isSelected()) {
+			long barTicks = (long) Constants.BEATS_IN_BAR
+					* sequence.getResolution();
+			long start = (loopStartBar - 1) * barTicks;
+			long end = loopEndBar * barTicks;
+			player.setLoop(start, end);
+			pianoRollPanel.setLoopRegion(start, end);
+		} else {
+			player.setLoop(-1, -1);
+			pianoRollPanel.setLoopRegion(-1, -1);
+		}
+	}
+
+	/**
+	 * Create a text field which only accepts digits.
+	 * 
+	 * @param value
+	 *            The number initially shown.
+	 * @return A new JTextField.
+	 */
+	private JTextField createNumberField(int value) {
+		final JTextField textfield = new JTextField(String.valueOf(value));
 		textfield.addKeyListener(new KeyAdapter() {
 			@Override
 			public void keyTyped(KeyEvent evt) {
@@ -457,13 +936,7 @@ public final class MIDIEd extends JFrame implements WindowListener {
 				evt.consume();
 			}
 		});
-		Object[] message = { "Enter number of bars", textfield };
-		int opt = JOptionPane.showConfirmDialog(this, message, "Set bars",
-				JOptionPane.OK_CANCEL_OPTION);
-		if (opt == JOptionPane.OK_OPTION) {
-			int bars = Integer.parseInt(textfield.getText());
-			pianoRollPanel.setDisplayBars(bars);
-		}
+		return textfield;
 	}
 
 	/**
@@ -487,35 +960,145 @@ public final class MIDIEd extends JFrame implements WindowListener {
 	}
 
 	/**
-	 * Reset the sequence, i.e. remove the NoteButtons and create a blank
+	 * Reset the sequence, i.e. remove the notes and create a blank
 	 * sequence.
 	 */
 	private void resetSequence() {
+		recorder.stop();
+		playPosition = 0;
+		pianoRollPanel.setPlayhead(-1);
 		createBlankSequence();
 		pianoRollPanel.clear();
+		updateThruRouting();
+		updateTracks();
+		phraseHits.clear();
 		pianoRollPanel.setChangeMade(false);
 		setTitle(TITLE + " - Untitled");
 	}
 
 	/**
-	 * Open a midi file and read it into the sequence field.
+	 * Let the user choose a midi file and read it into the sequence field.
 	 */
 	public void openFile() {
 		FileChooser fc = new FileChooser(".mid", "MIDI file (.mid)");
+		new MidiPreview(fc);
 		int returnVal = fc.showOpenDialog(this);
-		if (returnVal == FileChooser.APPROVE_OPTION) {
-			pianoRollPanel.clear();
-			File file = fc.getSelectedFile();
-			try {
-				sequence = MidiSystem.getSequence(file);
-				pianoRollPanel.setSequence(sequence);
-				setTitle(TITLE + " - " + file.getName());
-			} catch (IOException ioe) {
-				reportError("Error reading file: " + ioe.toString(), "Error!");
-			} catch (InvalidMidiDataException imde) {
-				reportCriticalError(imde);
+		if (returnVal == FileChooser.APPROVE_OPTION)
+			openFile(fc.getSelectedFile());
+	}
+
+	/**
+	 * Open a midi file and read it into the sequence field.
+	 * 
+	 * @param file
+	 *            The file to be opened.
+	 */
+	public void openFile(File file) {
+		recorder.stop();
+		pianoRollPanel.clear();
+		phraseHits.clear();
+		try {
+			long start = System.nanoTime();
+			sequence = new EditableSequence(MidiSystem.getSequence(file));
+			playPosition = 0;
+			pianoRollPanel.setPlayhead(-1);
+			pianoRollPanel.setSequence(sequence);
+			updateThruRouting();
+			updateTracks();
+			showTime(0);
+			metrics.recordLoad(System.nanoTime() - start);
+			loadUsedPrograms();
+			setTitle(TITLE + " - " + file.getName());
+		} catch (IOException ioe) {
+			reportError("Error reading file: " + ioe.toString(), "Error!");
+		} catch (InvalidMidiDataException imde) {
+			reportCriticalError(imde);
+		}
+	}
+
+	/**
+	 * Show the library dialog, where MIDI files can be indexed and searched.
+	 */
+	private void searchLibrary() {
+		if (libraryDialog == null)
+			libraryDialog = new LibraryDialog(this);
+		libraryDialog.setVisible(true);
+	}
+
+	/**
+	 * Show the tracks of the sequence as lanes, one of which can be chosen to
+	 * edit.
+	 */
+	private void showTracks() {
+		if (tracksDialog == null)
+			tracksDialog = new TracksDialog(this);
+		updateTracks();
+		tracksDialog.setVisible(true);
+	}
+
+	/**
+	 * Show the sequence, and the track which is edited, in the lanes.
+	 */
+	private void updateTracks() {
+		if (tracksDialog != null)
+			tracksDialog.setSequence(sequence, pianoRollPanel.getTrackIndex());
+	}
+
+	/**
+	 * Edit another track of the sequence in the piano roll. Recording stops,
+	 * as it records into the track which is edited.
+	 * 
+	 * @param index
+	 *            The index of the track.
+	 */
+	public void editTrack(int index) {
+		if (index == pianoRollPanel.getTrackIndex() || index < 0
+				|| index >= sequence.getTracks().length)
+			return;
+		recorder.stop();
+		pianoRollPanel.clear();
+		phraseHits.clear();
+		pianoRollPanel.setSequence(sequence, index);
+		updateThruRouting();
+		updateTracks();
+	}
+
+	/**
+	 * Let the user choose a SoundFont whose presets are used instead of the
+	 * synthesizer's own instruments. The file is only mapped and its headers
+	 * read; the samples of a preset are read when a channel uses it.
+	 */
+	private void loadSoundFont() {
+		FileChooser fc = new FileChooser(".sf2", "SoundFont (.sf2)");
+		if (fc.showOpenDialog(this) != FileChooser.APPROVE_OPTION)
+			return;
+		File file = fc.getSelectedFile();
+		try {
+			instrumentCache.setSoundFont(new SoundFont(file));
+			loadUsedPrograms();
+		} catch (IOException ioe) {
+			reportError("Error reading SoundFont: " + ioe.toString(), "Error!");
+		}
+	}
+
+	/**
+	 * Load the instruments of every program which the sequence changes to,
+	 * and of program 0 which channels start with.
+	 */
+	private void loadUsedPrograms() {
+		boolean[] used = new boolean[128];
+		used[0] = true;
+		for (Track track : sequence.getTracks()) {
+			for (int i = 0; i < track.size(); i++) {
+				MidiMessage msg = track.get(i).getMessage();
+				if (msg instanceof ShortMessage
+						&& ((ShortMessage) msg).getCommand() == ShortMessage.PROGRAM_CHANGE)
+					used[((ShortMessage) msg).getData1()] = true;
 			}
 		}
+		for (int program = 0; program < 128; program++)
+			if (used[program])
+				instrumentCache.loadProgram(program);
 	}
 
 	/**
@@ -530,7 +1113,9 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		if (approved) {
 			File file = fc.getSelectedFile();
 			try {
+				long start = System.nanoTime();
 				MidiSystem.write(sequence, 0, file);
+				metrics.recordSave(System.nanoTime() - start);
 				pianoRollPanel.setChangeMade(false);
 				setTitle(TITLE + " - " + file.getName());
 			} catch (IOException ioe) {
@@ -545,58 +1130,247 @@ public final class MIDIEd extends JFrame implements WindowListener {
 	 */
 	public void createBlankSequence() {
 		try {
-			sequence = new Sequence(Sequence.PPQ, Constants.DEFAULT_RESOLUTION);
+			sequence = new EditableSequence(Sequence.PPQ,
+					Constants.DEFAULT_RESOLUTION);
 		} catch (InvalidMidiDataException e) {
 			reportCriticalError(e);
 		}
 		sequence.createTrack();
 		pianoRollPanel.setSequence(sequence);
+		showTime(0);
 	}
 
 	/**
-	 * This deals with waiting for a sequence to finish in an ugly way - you can
-	 * do better. Code from: http://blog.taragana.com/index.php/archive/how
-	 * -to-play-a-midi-file-from-a-java-application/
+	 * Play the sequence from the play position, through the synthesizer which
+	 * is always open. The player calls stop() when the end is reached, unless
+	 * the loop region is being repeated.
 	 */
 	public void play() {
 		playButton.setEnabled(false);
+		recordButton.setEnabled(false);
 		stopButton.setEnabled(true);
-		Thread play = new Thread() {
-			public void run() {
-
-				try {
-					sequencer.setSequence(sequence);
-					sequencer.open();
-				} catch (MidiUnavailableException mue) {
-					midiUnavailable();
-				} catch (InvalidMidiDataException imde) {
-					reportCriticalError(imde);
-				}
-				sequencer.start();
-				while (sequencer.isRunning()) {
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException ignore) {
-						break;
-					}
-				}
-				MIDIEd.this.stop();
-			}
-		};
-		play.start();
+		soundOutput.resetPrograms();
+		updateLoop();
+		player.start(sequence, playPosition);
+		startPlayhead();
 	}
 
 	/**
-	 * Stop playing. Closes the MidiDevice and frees up resources.
+	 * Stop playing and end any sounding notes. The playhead is left at the
+	 * play position.
 	 */
 	public void stop() {
-		if (sequencer.isOpen()) {
-			if (sequencer.isRunning())
-				sequencer.stop();
-			sequencer.close();
-		}
+		stopPlayhead();
+		player.stop();
+		recorder.stop();
+		pianoRollPanel.setPlayhead(playPosition > 0 ? playPosition : -1);
+		showTime(playPosition);
 		stopButton.setEnabled(false);
 		playButton.setEnabled(true);
+		recordButton.setEnabled(true);
+	}
+
+	/**
+	 * Record from a MIDI input device into the sequence, while playing it
+	 * from the play position. The user is asked which device to record from
+	 * the first time.
+	 */
+	public void record() {
+		Transmitter input = openInput("Record");
+		if (input == null)
+			return;
+		recorder.start(input, playPosition, pianoRollPanel.getTempoMap());
+		play();
+	}
+
+	/**
+	 * Pass the MIDI input on to the synthesizer if the thru check-box is
+	 * ticked, or stop passing it on if not.
+	 */
+	private void updateThru() {
+		if (thruBox.isSelected()) {
+			if (thruTransmitter != null)
+				return;
+			updateThruRouting();
+			thruTransmitter = openInput("Thru");
+			if (thruTransmitter == null)
+				thruBox.setSelected(false);
+			else
+				thruTransmitter.setReceiver(thru);
+		} else if (thruTransmitter != null) {
+			thruTransmitter.close();
+			thruTransmitter = null;
+		}
+	}
+
+	/**
+	 * Choose the channels the MIDI input is played on, and whether the
+	 * instruments chosen for them are played.
+	 * 
+	 * @param channels
+	 *            The channel that each input channel is played on.
+	 * @param programs
+	 *            Whether the chosen instruments are played rather than the
+	 *            programs the input asks for.
+	 */
+	public void setThruRouting(int[] channels, boolean programs) {
+		thruChannels = channels;
+		thruPrograms = programs;
+		updateThruRouting();
+	}
+
+	/**
+	 * Pass the thru channels, and the program of each channel if they are
+	 * played, on to the thru.
+	 */
+	private void updateThruRouting() {
+		int[] programs = null;
+		if (thruPrograms) {
+			programs = new int[16];
+			for (int chan = 0; chan < 16; chan++)
+				programs[chan] = pianoRollPanel.getProgram(chan);
+		}
+		thru.setRouting(thruChannels, programs);
+	}
+
+	/**
+	 * Open the MIDI input device, asking the user which one the first time,
+	 * and get a Transmitter from it.
+	 * 
+	 * @param title
+	 *            The title of any message shown.
+	 * @return The Transmitter, or null if there is no device or it could not
+	 *         be opened.
+	 */
+	private Transmitter openInput(String title) {
+		try {
+			if (inputDevice == null)
+				inputDevice = chooseInputDevice(title);
+			if (inputDevice == null)
+				return null;
+			if (!inputDevice.isOpen())
+				inputDevice.open();
+			return inputDevice.getTransmitter();
+		} catch (MidiUnavailableException mue) {
+			inputDevice = null;
+			reportError("The MIDI input is not available: " + mue.getMessage(),
+					title);
+			return null;
+		}
+	}
+
+	/**
+	 * Ask the user which MIDI input device to use.
+	 * 
+	 * @return The device, or null if there is none or the user cancelled.
+	 */
+	private MidiDevice chooseInputDevice(String title)
+			throws MidiUnavailableException {
+		List<MidiDevice.Info> inputs = new ArrayList<MidiDevice.Info>();
+		for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+			MidiDevice device = MidiSystem.getMidiDevice(info);
+			if (device.getMaxTransmitters() != 0
+					&& !(device instanceof Sequencer)
+					&& !(device instanceof Synthesizer))
+				inputs.add(info);
+		}
+		if (inputs.isEmpty()) {
+			reportError("There is no MIDI input.", title);
+			return null;
+		}
+		Object chosen = JOptionPane.showInputDialog(this,
+				"MIDI input:", title, JOptionPane.QUESTION_MESSAGE, null,
+				inputs.toArray(), inputs.get(0));
+		if (chosen == null)
+			return null;
+		return MidiSystem.getMidiDevice((MidiDevice.Info) chosen);
+	}
+
+	/**
+	 * Seek to the given tick. While playing, the player jumps there straight
+	 * away; otherwise playing will start from there.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 */
+	public void seek(long tick) {
+		playPosition = tick;
+		showTime(tick);
+		if (player.isRunning()) {
+			player.seek(tick);
+			pianoRollPanel.setPlayhead(tick);
+		} else {
+			pianoRollPanel.setPlayhead(tick > 0 ? tick : -1);
+		}
+	}
+
+	/**
+	 * Show the time at which a tick is played, and the length of the
+	 * sequence, converted with the TempoMap of the sequence.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 */
+	private void showTime(long tick) {
+		TempoMap tempoMap = pianoRollPanel.getTempoMap();
+		timeLabel.setText(TempoMap.formatMicros(tempoMap.tickToMicros(Math
+				.max(0, tick)))
+				+ " / "
+				+ TempoMap.formatMicros(tempoMap.tickToMicros(sequence
+						.getTickLength())));
+	}
+
+	/**
+	 * Start a timer which moves the playhead to the player's tick position on
+	 * every frame.
+	 */
+	private void startPlayhead() {
+		if (playheadTimer == null) {
+			playheadTimer = new Timer(PLAYHEAD_FRAME_MILLIS,
+					new ActionListener() {
+						public void actionPerformed(ActionEvent evt) {
+							long tick = -1;
+							if (player.isRunning())
+								tick = player.getTickPosition();
+							else if (recorder.isRecording())
+								tick = recorder.getTickPosition();
+							if (tick >= 0) {
+								pianoRollPanel.setPlayhead(tick);
+								showTime(tick);
+							}
+						}
+					});
+			playheadTimer.setCoalesce(true);
+		}
+		playheadTimer.start();
+	}
+
+	/**
+	 * Stop moving the playhead, and hide it.
+	 */
+	private void stopPlayhead() {
+		if (playheadTimer == null || !playheadTimer.isRunning())
+			return;
+		playheadTimer.stop();
+		pianoRollPanel.setPlayhead(-1);
+	}
+
+	/**
+	 * Returns the synthesizer which stays open while the editor runs.
+	 * 
+	 * @return The SoundOutput.
+	 */
+	public SoundOutput getSoundOutput() {
+		return soundOutput;
+	}
+
+	/**
+	 * Returns the cache of the synthesizer's instruments.
+	 * 
+	 * @return The InstrumentCache.
+	 */
+	public InstrumentCache getInstrumentCache() {
+		return instrumentCache;
 	}
 
 	/**
@@ -629,6 +1403,59 @@ public final class MIDIEd extends JFrame implements WindowListener {
 		}
 	}
 
+	/**
+	 * Scale the velocity of the selected notes by a percentage entered in a
+	 * pop-up dialog.
+	 */
+	private void scaleVelocity() {
+		JTextField percentField = createNumberField(100);
+		Object[] message = { "New velocity in percent of the old",
+				percentField };
+		int opt = JOptionPane.showConfirmDialog(this, message,
+				"Scale velocity", JOptionPane.OK_CANCEL_OPTION);
+		if (opt != JOptionPane.OK_OPTION)
+			return;
+		try {
+			int percent = Integer.parseInt(percentField.getText());
+			pianoRollPanel.scaleSelectionVelocity(percent);
+		} catch (NumberFormatException nfe) {
+			return;
+		}
+	}
+
+	/**
+	 * Quantise notes which have already been added, using a pop-up dialog to
+	 * choose the grid, the strength and the swing.
+	 * 
+	 * @param which
+	 *            The notes to be quantised, or null for all displayed notes.
+	 */
+	private void quantise(Collection<Note> which) {
+		if (which != null && which.isEmpty())
+			return;
+		JComboBox<NoteLength> gridBox = new JComboBox<NoteLength>(
+				Constants.QUANTISATION_OPTIONS);
+		gridBox.setSelectedItem(quantisationNoteLength);
+		JTextField strengthField = createNumberField(100);
+		JTextField swingField = createNumberField(50);
+		Object[] message = { "Grid", gridBox, "Strength (0-100%)",
+				strengthField, "Swing (50-75%)", swingField };
+		int opt = JOptionPane.showConfirmDialog(this, message, "Quantise",
+				JOptionPane.OK_CANCEL_OPTION);
+		if (opt != JOptionPane.OK_OPTION)
+			return;
+		try {
+			int grid = gridBox.getItemAt(gridBox.getSelectedIndex()).value();
+			int strength = Integer.parseInt(strengthField.getText());
+			int swing = Integer.parseInt(swingField.getText());
+			long start = System.nanoTime();
+			pianoRollPanel.quantise(grid, strength, swing, which);
+			metrics.recordQuantise(System.nanoTime() - start);
+		} catch (NumberFormatException nfe) {
+			return;
+		}
+	}
+
 	// --- Window listener methods ---
 	public void windowActivated(WindowEvent e) {
 	}
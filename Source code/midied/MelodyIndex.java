@@ -0,0 +1,409 @@
+package midied;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The MelodyIndex class finds a melodic phrase wherever it occurs, in any
+ * key, in a number of melodies. The melody of a channel of a track is the
+ * sequence of keys its notes start on; where several notes start together
+ * only the highest is kept. Tracks are kept apart, as the editor shows one
+ * track at a time. A phrase is matched by the intervals between its keys, so
+ * it is found when it has been transposed.
+ * <p>
+ * Every run of GRAM intervals of every melody is packed into an n-gram, and
+ * the places where each n-gram starts are sorted by n-gram, so the places of
+ * any n-gram are found by a binary search. A phrase is looked up by whichever
+ * of its n-grams occurs least often, and only those places are compared with
+ * the whole phrase, so a search takes time in proportion to the number of
+ * candidates rather than the number of notes indexed. The keys of all
+ * melodies are kept in one byte array, and places are offsets into it, so
+ * the index takes about five bytes a note. It is sorted when it is first
+ * searched after melodies have been added.
+ * 
+ * @author 090010514
+ */
+public class MelodyIndex {
+	// the number of intervals in an n-gram
+	private static final int GRAM = 3;
+	/**
+	 * The fewest notes a phrase can have.
+	 */
+	public static final int MIN_PHRASE = GRAM + 1;
+
+	// the keys of every melody, one after another
+	private byte[] keys = new byte[1024];
+	private int keyCount;
+	private final List<Melody> melodies = new ArrayList<Melody>();
+	// each distinct n-gram, in order, and where its places start in offsets
+	private int[] grams;
+	private int[] gramStarts;
+	// the offset in keys of the first note of every n-gram, sorted by n-gram
+	private int[] offsets;
+
+	/**
+	 * The melody of a channel of a track of a file.
+	 */
+	private static class Melody {
+		final File file;
+		final int track;
+		final int channel;
+		final int start;
+		final int length;
+
+		Melody(File file, int track, int channel, int start, int length) {
+			this.file = file;
+			this.track = track;
+			this.channel = channel;
+			this.start = start;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * An occurrence of a phrase.
+	 */
+	public static class Hit {
+		private final File file;
+		private final int track;
+		private final int channel;
+		private final int position;
+
+		Hit(File file, int track, int channel, int position) {
+			this.file = file;
+			this.track = track;
+			this.channel = channel;
+			this.position = position;
+		}
+
+		/**
+		 * Returns the file the phrase was found in.
+		 * 
+		 * @return The file given when the melody was added.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Returns the track the phrase was found in.
+		 * 
+		 * @return The index of the track.
+		 */
+		public int getTrack() {
+			return track;
+		}
+
+		/**
+		 * Returns the channel the phrase was found on.
+		 * 
+		 * @return The channel, from 0 to 15.
+		 */
+		public int getChannel() {
+			return channel;
+		}
+
+		/**
+		 * Returns where in the channel's melody the phrase starts.
+		 * 
+		 * @return The index of the first note of the phrase.
+		 */
+		public int getPosition() {
+			return position;
+		}
+	}
+
+	/**
+	 * Add a melody to the index.
+	 * 
+	 * @param file
+	 *            The file the melody is from, which is given back with its
+	 *            hits, or null.
+	 * @param track
+	 *            The index of the track the melody is in.
+	 * @param channel
+	 *            The channel the melody is played on.
+	 * @param melody
+	 *            The keys of its notes.
+	 */
+	public void add(File file, int track, int channel, byte[] melody) {
+		if (melody.length == 0)
+			return;
+		if (keyCount + melody.length > keys.length)
+			keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keyCount
+					+ melody.length));
+		int start = keyCount;
+		System.arraycopy(melody, 0, keys, start, melody.length);
+		keyCount += melody.length;
+		melodies.add(new Melody(file, track, channel, start, melody.length));
+		grams = null;
+	}
+
+	/**
+	 * Sort the places of the n-grams by n-gram, and then by place.
+	 */
+	private void build() {
+		int count = 0;
+		for (Melody melody : melodies)
+			count += Math.max(0, melody.length - GRAM);
+		long[] places = new long[count];
+		int n = 0;
+		for (Melody melody : melodies)
+			for (int i = melody.start; i + GRAM < melody.start + melody.length; i++)
+				places[n++] = (long) gram(keys, i) << 32 | i;
+		Arrays.sort(places);
+		offsets = new int[count];
+		int[] distinct = new int[count];
+		int[] starts = new int[count + 1];
+		int d = 0;
+		for (int i = 0; i < count; i++) {
+			int gram = (int) (places[i] >>> 32);
+			if (d == 0 || distinct[d - 1] != gram) {
+				distinct[d] = gram;
+				starts[d++] = i;
+			}
+			offsets[i] = (int) places[i];
+		}
+		starts[d] = count;
+		grams = Arrays.copyOf(distinct, d);
+		gramStarts = Arrays.copyOf(starts, d + 1);
+	}
+
+	/**
+	 * Returns the number of notes in the index.
+	 * 
+	 * @return The number of notes of all melodies.
+	 */
+	public int size() {
+		return keyCount;
+	}
+
+	/**
+	 * Find every occurrence of a phrase, in any key.
+	 * 
+	 * @param phrase
+	 *            The keys of the phrase, at least MIN_PHRASE of them.
+	 * @return The hits, in the order the melodies were added.
+	 * @throws IllegalArgumentException
+	 *             If the phrase is too short.
+	 */
+	public List<Hit> find(byte[] phrase) {
+		if (phrase.length < MIN_PHRASE)
+			throw new IllegalArgumentException("A phrase needs at least "
+					+ MIN_PHRASE + " notes");
+		if (grams == null)
+			build();
+		// look up the rarest n-gram of the phrase
+		int rarest = -1;
+		int rarestAt = 0;
+		for (int i = 0; i + GRAM < phrase.length; i++) {
+			int g = Arrays.binarySearch(grams, gram(phrase, i));
+			if (g < 0)
+				return Collections.emptyList();
+			if (rarest < 0
+					|| gramStarts[g + 1] - gramStarts[g] < gramStarts[rarest + 1]
+							- gramStarts[rarest]) {
+				rarest = g;
+				rarestAt = i;
+			}
+		}
+		List<Hit> hits = new ArrayList<Hit>();
+		int m = 0;
+		for (int p = gramStarts[rarest]; p < gramStarts[rarest + 1]; p++) {
+			int start = offsets[p] - rarestAt;
+			// the places are in order, so the melody only moves forwards
+			while (melodies.get(m).start + melodies.get(m).length <= offsets[p])
+				m++;
+			Melody melody = melodies.get(m);
+			if (start < melody.start
+					|| start + phrase.length > melody.start + melody.length)
+				continue;
+			if (matches(phrase, start))
+				hits.add(new Hit(melody.file, melody.track, melody.channel,
+						start - melody.start));
+		}
+		return hits;
+	}
+
+	private boolean matches(byte[] phrase, int start) {
+		int transpose = keys[start] - phrase[0];
+		for (int i = 1; i < phrase.length; i++)
+			if (keys[start + i] - phrase[i] != transpose)
+				return false;
+		return true;
+	}
+
+	/**
+	 * The GRAM intervals starting at a key, packed into an int.
+	 */
+	private static int gram(byte[] keys, int i) {
+		int gram = 0;
+		for (int j = 0; j < GRAM; j++)
+			gram = gram << 8 | (keys[i + j + 1] - keys[i + j] + 127);
+		return gram;
+	}
+
+	/**
+	 * Find the melody of each channel of some notes.
+	 * 
+	 * @param notes
+	 *            Notes, sorted by the tick they start at.
+	 * @return A list of notes for each of the 16 channels.
+	 */
+	public static List<List<Note>> channelMelodies(List<Note> notes) {
+		List<List<Note>> channels = new ArrayList<List<Note>>();
+		for (int c = 0; c < 16; c++)
+			channels.add(new ArrayList<Note>());
+		for (Note note : notes)
+			channels.get(note.getChannel()).add(note);
+		for (int c = 0; c < 16; c++)
+			channels.set(c, melody(channels.get(c)));
+		return channels;
+	}
+
+	/**
+	 * Find the melody of some notes, whatever their channels, by keeping only
+	 * the highest of the notes which start together.
+	 * 
+	 * @param notes
+	 *            Notes, sorted by the tick they start at.
+	 * @return The notes of the melody.
+	 */
+	public static List<Note> melody(List<Note> notes) {
+		List<Note> melody = new ArrayList<Note>();
+		for (Note note : notes) {
+			int last = melody.size() - 1;
+			if (last >= 0 && melody.get(last).getTick() == note.getTick()) {
+				if (note.getKey() > melody.get(last).getKey())
+					melody.set(last, note);
+			} else {
+				melody.add(note);
+			}
+		}
+		return melody;
+	}
+
+	/**
+	 * Returns the keys of some notes.
+	 * 
+	 * @param notes
+	 *            The notes.
+	 * @return Their keys.
+	 */
+	public static byte[] keys(List<Note> notes) {
+		byte[] keys = new byte[notes.size()];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = (byte) notes.get(i).getKey();
+		return keys;
+	}
+
+	/**
+	 * Find the melody of each channel of each track of a MIDI file, without
+	 * building a Sequence. Notes are paired within a track as the
+	 * PianoRollPanel pairs them, so the melodies are those of the notes the
+	 * editor shows when it edits the track.
+	 * 
+	 * @param file
+	 *            A MIDI file.
+	 * @return The keys of the melody of each channel of each track, at
+	 *         track * 16 + channel.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	public static byte[][] scan(File file) throws IOException {
+		MelodyScanner scanner = new MelodyScanner();
+		MidiFileScanner.scan(file, scanner);
+		return scanner.melodies();
+	}
+
+	/**
+	 * Collects the start tick and key of every note of each channel of each
+	 * track.
+	 */
+	private static class MelodyScanner implements MidiFileScanner.Handler {
+		// the tick each key of each channel started at, or -1
+		private final long[][] noteStarts = new long[16][128];
+		// tick << 7 | key of each note, at track * 16 + channel
+		private long[][] starts = new long[0][];
+		private int[] counts = new int[0];
+		// track * 16 of the track being read
+		private int base;
+
+		public void header(int format, int trackCount, int division) {
+		}
+
+		public void startTrack(int track) {
+			for (long[] channel : noteStarts)
+				Arrays.fill(channel, -1);
+			base = starts.length;
+			starts = Arrays.copyOf(starts, base + 16);
+			counts = Arrays.copyOf(counts, base + 16);
+		}
+
+		public void shortMessage(long tick, int status, int data1, int data2) {
+			int command = status & 0xF0;
+			int channel = status & 0x0F;
+			long[] pending = noteStarts[channel];
+			if (command == 0x90) {
+				if (pending[data1] < 0)
+					pending[data1] = tick;
+				else if (data2 == 0)
+					endNote(channel, data1);
+			} else if (command == 0x80) {
+				if (pending[data1] >= 0)
+					endNote(channel, data1);
+			}
+		}
+
+		private void endNote(int channel, int key) {
+			int c = base + channel;
+			long[] channelStarts = starts[c];
+			if (channelStarts == null)
+				channelStarts = starts[c] = new long[64];
+			else if (counts[c] == channelStarts.length)
+				channelStarts = starts[c] = Arrays.copyOf(channelStarts,
+						channelStarts.length * 2);
+			channelStarts[counts[c]++] = noteStarts[channel][key] << 7 | key;
+			noteStarts[channel][key] = -1;
+		}
+
+		public void metaMessage(long tick, int type, byte[] data, int length) {
+		}
+
+		public void sysexMessage(long tick, int status, byte[] data, int length) {
+		}
+
+		public void endTrack(long tick) {
+		}
+
+		/**
+		 * Sort the notes of each channel of each track and keep the highest
+		 * of those which start together.
+		 */
+		byte[][] melodies() {
+			byte[][] melodies = new byte[starts.length][];
+			for (int c = 0; c < starts.length; c++) {
+				long[] channelStarts = starts[c];
+				int n = counts[c];
+				byte[] melody = new byte[n];
+				int length = 0;
+				if (n > 0) {
+					// sorted by tick, and then by key
+					Arrays.sort(channelStarts, 0, n);
+					for (int i = 0; i < n; i++) {
+						if (i + 1 < n
+								&& channelStarts[i + 1] >>> 7 == channelStarts[i] >>> 7)
+							continue;
+						melody[length++] = (byte) (channelStarts[i] & 0x7F);
+					}
+				}
+				melodies[c] = Arrays.copyOf(melody, length);
+			}
+			return melodies;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package midied;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The MelodyLibrary class keeps the melodies of the files of a LibraryIndex,
+ * so that a phrase can be searched for in the whole library. Only the keys of
+ * the melody of each channel of each track are kept, a byte a note, in a file of their own, by
+ * default ~/.midied/melodies.idx, as they are much bigger than the summaries.
+ * Like the LibraryIndex, only files which have changed are read again, in
+ * parallel. The MelodyIndex is built when it is first searched.
+ * 
+ * @author 090010514
+ */
+public class MelodyLibrary {
+	private static final int MAGIC = 0x4D49444D; // "MIDM"
+	private static final int VERSION = 2;
+	/**
+	 * The file the editor keeps the melodies of its library in.
+	 */
+	public static final File DEFAULT_FILE = new File(
+			System.getProperty("user.home"), ".midied" + File.separator
+					+ "melodies.idx");
+
+	private final File melodyFile;
+	private final Map<String, Melodies> files = new TreeMap<String, Melodies>();
+	// built from files when it is needed, and thrown away when they change
+	private MelodyIndex index;
+
+	/**
+	 * The melodies of a file.
+	 */
+	private static class Melodies {
+		final long modified;
+		final long length;
+		// the keys of the melody of each channel of each track, at
+		// track * 16 + channel
+		final byte[][] keys;
+
+		Melodies(long modified, long length, byte[][] keys) {
+			this.modified = modified;
+			this.length = length;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * Creates a new MelodyLibrary, loading it from a file if it exists.
+	 * 
+	 * @param melodyFile
+	 *            The file the melodies are kept in.
+	 */
+	public MelodyLibrary(File melodyFile) {
+		this.melodyFile = melodyFile;
+		if (melodyFile.isFile()) {
+			try {
+				load();
+			} catch (IOException ioe) {
+				files.clear();
+			}
+		}
+	}
+
+	/**
+	 * Bring the melodies up to date with a library index, reading the files
+	 * which are new or have changed since their melodies were found, and
+	 * forgetting those which are no longer in the index.
+	 * 
+	 * @param library
+	 *            The index of the library.
+	 * @param progress
+	 *            Told how far the reading has got, or null.
+	 * @return The number of files which were read.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted.
+	 */
+	public int update(LibraryIndex library, LibraryIndex.Progress progress)
+			throws InterruptedException {
+		List<LibraryIndex.Entry> changed = new ArrayList<LibraryIndex.Entry>();
+		Set<String> paths = new HashSet<String>();
+		synchronized (this) {
+			for (LibraryIndex.Entry entry : library.getEntries()) {
+				// files which could not be summarised are left out
+				if (entry.getSummary() == null)
+					continue;
+				String path = entry.getFile().getPath();
+				paths.add(path);
+				Melodies melodies = files.get(path);
+				if (melodies == null
+						|| melodies.modified != entry.getModified()
+						|| melodies.length != entry.getLength())
+					changed.add(entry);
+			}
+			if (files.keySet().retainAll(paths))
+				index = null;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			List<Future<Melodies>> futures = new ArrayList<Future<Melodies>>();
+			for (final LibraryIndex.Entry entry : changed) {
+				futures.add(pool.submit(new Callable<Melodies>() {
+					public Melodies call() {
+						return scan(entry);
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				Melodies melodies;
+				try {
+					melodies = futures.get(i).get();
+				} catch (ExecutionException ee) {
+					throw new RuntimeException(ee.getCause());
+				}
+				synchronized (this) {
+					files.put(changed.get(i).getFile().getPath(), melodies);
+					index = null;
+				}
+				if (progress != null)
+					progress.scanned(i + 1, changed.size());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Find the melodies of a file. A file which can not be read is given no
+	 * melodies, so that it is not read again until it changes.
+	 */
+	private static Melodies scan(LibraryIndex.Entry entry) {
+		byte[][] keys;
+		try {
+			keys = MelodyIndex.scan(entry.getFile());
+		} catch (IOException ioe) {
+			keys = new byte[0][];
+		} catch (RuntimeException re) {
+			keys = new byte[0][];
+		}
+		return new Melodies(entry.getModified(), entry.getLength(), keys);
+	}
+
+	/**
+	 * Find a phrase, in any key, in every file.
+	 * 
+	 * @param phrase
+	 *            The keys of the phrase, at least MelodyIndex.MIN_PHRASE of
+	 *            them.
+	 * @return The hits, in order of the files' paths.
+	 */
+	public synchronized List<MelodyIndex.Hit> find(byte[] phrase) {
+		if (index == null) {
+			index = new MelodyIndex();
+			for (Map.Entry<String, Melodies> file : files.entrySet()) {
+				File f = new File(file.getKey());
+				byte[][] keys = file.getValue().keys;
+				for (int c = 0; c < keys.length; c++)
+					index.add(f, c / 16, c % 16, keys[c]);
+			}
+		}
+		return index.find(phrase);
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(melodyFile)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a melody index");
+			for (int n = in.readInt(); n > 0; n--) {
+				String path = in.readUTF();
+				long modified = in.readLong();
+				long length = in.readLong();
+				byte[][] keys = new byte[in.readInt()][];
+				for (int c = 0; c < keys.length; c++) {
+					keys[c] = new byte[in.readInt()];
+					in.readFully(keys[c]);
+				}
+				files.put(path, new Melodies(modified, length, keys));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the melodies to their file.
+	 * 
+	 * @throws IOException
+	 *             If it can not be written.
+	 */
+	public synchronized void save() throws IOException {
+		File folder = melodyFile.getAbsoluteFile().getParentFile();
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Could not create " + folder);
+		File temp = new File(melodyFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(files.size());
+			for (Map.Entry<String, Melodies> file : files.entrySet()) {
+				Melodies melodies = file.getValue();
+				out.writeUTF(file.getKey());
+				out.writeLong(melodies.modified);
+				out.writeLong(melodies.length);
+				out.writeInt(melodies.keys.length);
+				for (byte[] keys : melodies.keys) {
+					out.writeInt(keys.length);
+					out.write(keys);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		melodyFile.delete();
+		if (!temp.renameTo(melodyFile)) {
+			temp.delete();
+			throw new IOException("Could not write " + melodyFile);
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package midied;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The MidiFileScanner class reads a standard MIDI file one event at a time
+ * and passes each event to a Handler, without building a Sequence. Only one
+ * event is held in memory at a time, so files far larger than the heap can be
+ * scanned.
+ * 
+ * @author 090010514
+ */
+public class MidiFileScanner {
+	// the end of track meta event
+	private static final int END_OF_TRACK = 0x2F;
+
+	private final DataInputStream in;
+	// holds the data of meta and system exclusive events; grows as needed
+	private byte[] buffer = new byte[256];
+	// bytes left in the track being read
+	private long remaining;
+
+	/**
+	 * The Handler interface receives the events of a MIDI file in the order
+	 * they appear in the file.
+	 * 
+	 * @author 090010514
+	 */
+	public interface Handler {
+		/**
+		 * Called once, before any track.
+		 * 
+		 * @param format
+		 *            The file format (0, 1 or 2).
+		 * @param trackCount
+		 *            The number of tracks the header announces.
+		 * @param division
+		 *            The division field of the header, i.e. the resolution.
+		 * @throws IOException
+		 *             If the handler fails to write.
+		 */
+		void header(int format, int trackCount, int division)
+				throws IOException;
+
+		/**
+		 * Called at the start of each track.
+		 * 
+		 * @param track
+		 *            The index of the track, from 0.
+		 * @throws IOException
+		 *             If the handler fails to write.
+		 */
+		void startTrack(int track) throws IOException;
+
+		/**
+		 * Called for each channel message.
+		 * 
+		 * @param tick
+		 *            The tick of the event.
+		 * @param status
+		 *            The status byte, including the channel.
+		 * @param data1
+		 *            The first data byte.
+		 * @param data2
+		 *            The second data byte, or 0 if the message has one.
+		 * @throws IOException
+		 *             If the handler fails to write.
+		 */
+		void shortMessage(long tick, int status, int data1, int data2)
+				throws IOException;
+
+		/**
+		 * Called for each meta event other than the end of track. The data
+		 * is only valid until the handler returns.
+		 * 
+		 * @param tick
+		 *            The tick of the event.
+		 * @param type
+		 *            The meta event type.
+		 * @param data
+		 *            A buffer holding the event's data.
+		 * @param length
+		 *            The number of bytes of data.
+		 * @throws IOException
+		 *             If the handler fails to write.
+		 */
+		void metaMessage(long tick, int type, byte[] data, int length)
+				throws IOException;
+
+		/**
+		 * Called for each system exclusive event. The data is only valid
+		 * until the handler returns.
+		 * 
+		 * @param tick
+		 *            The tick of the event.
+		 * @param status
+		 *            0xF0 or 0xF7.
+		 * @param data
+		 *            A buffer holding the event's data.
+		 * @param length
+		 *            The number of bytes of data.
+		 * @throws IOException
+		 *             If the handler fails to write.
+		 */
+		void sysexMessage(long tick, int status, byte[] data, int length)
+				throws IOException;
+
+		/**
+		 * Called at the end of each track, whether or not it has an end of
+		 * track event.
+		 * 
+		 * @param tick
+		 *            The tick at which the track ends.
+		 * @throws IOException
+		 *             If the handler fails to write.
+		 */
+		void endTrack(long tick) throws IOException;
+	}
+
+	/**
+	 * Creates a new MidiFileScanner reading from a stream.
+	 * 
+	 * @param in
+	 *            An input stream positioned at the start of a MIDI file.
+	 */
+	public MidiFileScanner(InputStream in) {
+		this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+	}
+
+	/**
+	 * Scan a MIDI file, passing each event to the handler.
+	 * 
+	 * @param file
+	 *            A MIDI file.
+	 * @param handler
+	 *            The Handler which receives the events.
+	 * @throws IOException
+	 *             If the file can not be read, or is not a MIDI file.
+	 */
+	public static void scan(File file, Handler handler) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			new MidiFileScanner(in).scan(handler);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the whole stream, passing each event to the handler. Chunks which
+	 * are not tracks are skipped.
+	 * 
+	 * @param handler
+	 *            The Handler which receives the events.
+	 * @throws IOException
+	 *             If the stream can not be read, or is not a MIDI file.
+	 */
+	public void scan(Handler handler) throws IOException {
+		if (in.readInt() != 0x4D546864) // "MThd"
+			throw new IOException("Not a MIDI file");
+		int headerLength = in.readInt();
+		int format = in.readUnsignedShort();
+		int trackCount = in.readUnsignedShort();
+		int division = in.readUnsignedShort();
+		skipFully(headerLength - 6);
+		handler.header(format, trackCount, division);
+		int track = 0;
+		while (true) {
+			int id;
+			try {
+				id = in.readInt();
+			} catch (EOFException eof) {
+				return;
+			}
+			long length = in.readInt() & 0xFFFFFFFFL;
+			if (id != 0x4D54726B) { // "MTrk"
+				skipFully(length);
+				continue;
+			}
+			remaining = length;
+			handler.startTrack(track++);
+			scanTrack(handler);
+			skipFully(remaining);
+		}
+	}
+
+	/**
+	 * Read the events of one track.
+	 */
+	private void scanTrack(Handler handler) throws IOException {
+		long tick = 0;
+		int runningStatus = 0;
+		while (remaining > 0) {
+			tick += readVariableLength();
+			int status = readByte();
+			int data1;
+			if (status < 0x80) {
+				// running status: this byte is the first data byte
+				if (runningStatus == 0)
+					throw new IOException("Data byte without status at tick "
+							+ tick);
+				data1 = status;
+				status = runningStatus;
+			} else if (status < 0xF0) {
+				runningStatus = status;
+				data1 = readByte();
+			} else if (status == 0xFF) {
+				int type = readByte();
+				int length = readData();
+				if (type == END_OF_TRACK) {
+					handler.endTrack(tick);
+					return;
+				}
+				handler.metaMessage(tick, type, buffer, length);
+				continue;
+			} else if (status == 0xF0 || status == 0xF7) {
+				runningStatus = 0;
+				int length = readData();
+				handler.sysexMessage(tick, status, buffer, length);
+				continue;
+			} else {
+				throw new IOException("Unexpected status " + status
+						+ " at tick " + tick);
+			}
+			int command = status & 0xF0;
+			int data2 = 0;
+			if (command != 0xC0 && command != 0xD0)
+				data2 = readByte();
+			handler.shortMessage(tick, status, data1, data2);
+		}
+		// the track has no end of track event
+		handler.endTrack(tick);
+	}
+
+	/**
+	 * Read a length followed by that many bytes into the buffer.
+	 */
+	private int readData() throws IOException {
+		long length = readVariableLength();
+		if (length > remaining)
+			throw new IOException("Event longer than its track");
+		if (length > buffer.length)
+			buffer = new byte[(int) Math.max(length, buffer.length * 2L)];
+		in.readFully(buffer, 0, (int) length);
+		remaining -= length;
+		return (int) length;
+	}
+
+	private long readVariableLength() throws IOException {
+		long value = 0;
+		int b;
+		do {
+			b = readByte();
+			value = (value << 7) | (b & 0x7F);
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private int readByte() throws IOException {
+		if (remaining-- <= 0)
+			throw new IOException("Unexpected end of track");
+		return in.readUnsignedByte();
+	}
+
+	private void skipFully(long n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				if (in.read() < 0)
+					return;
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package midied;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The MidiFileWriter class writes a standard MIDI file one event at a time,
+ * so that files far larger than the heap can be written. The length of each
+ * track is filled in when the track ends, and the number of tracks when the
+ * file is closed. It implements MidiFileScanner.Handler, so a scanned file can
+ * be copied, or repaired on its way through, without being held in memory.
+ * 
+ * @author 090010514
+ */
+public class MidiFileWriter implements MidiFileScanner.Handler {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final RandomAccessFile out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int buffered;
+	// where the current track's length is to be written, or -1
+	private long trackStart = -1;
+	// the tick of the last event written to the current track
+	private long lastTick;
+	private int tracksWritten;
+
+	/**
+	 * Creates a new MidiFileWriter, replacing the given file.
+	 * 
+	 * @param file
+	 *            The file to be written.
+	 * @throws IOException
+	 *             If the file can not be opened for writing.
+	 */
+	public MidiFileWriter(File file) throws IOException {
+		out = new RandomAccessFile(file, "rw");
+		out.setLength(0);
+	}
+
+	public void header(int format, int trackCount, int division)
+			throws IOException {
+		writeInt(0x4D546864); // "MThd"
+		writeInt(6);
+		writeShort(format);
+		writeShort(trackCount);
+		writeShort(division);
+	}
+
+	public void startTrack(int track) throws IOException {
+		if (trackStart >= 0)
+			endTrack(lastTick);
+		writeInt(0x4D54726B); // "MTrk"
+		trackStart = position();
+		writeInt(0);
+		lastTick = 0;
+	}
+
+	public void shortMessage(long tick, int status, int data1, int data2)
+			throws IOException {
+		writeDelta(tick);
+		write(status);
+		write(data1);
+		int command = status & 0xF0;
+		if (command != 0xC0 && command != 0xD0)
+			write(data2);
+	}
+
+	public void metaMessage(long tick, int type, byte[] data, int length)
+			throws IOException {
+		writeDelta(tick);
+		write(0xFF);
+		write(type);
+		writeVariableLength(length);
+		write(data, length);
+	}
+
+	public void sysexMessage(long tick, int status, byte[] data, int length)
+			throws IOException {
+		writeDelta(tick);
+		write(status);
+		writeVariableLength(length);
+		write(data, length);
+	}
+
+	/**
+	 * Write the end of track event and fill in the length of the track.
+	 */
+	public void endTrack(long tick) throws IOException {
+		if (trackStart < 0)
+			return;
+		writeDelta(Math.max(tick, lastTick));
+		write(0xFF);
+		write(0x2F);
+		write(0);
+		flush();
+		long end = out.getFilePointer();
+		out.seek(trackStart);
+		out.writeInt((int) (end - trackStart - 4));
+		out.seek(end);
+		trackStart = -1;
+		tracksWritten++;
+	}
+
+	/**
+	 * End the last track, correct the number of tracks in the header if it
+	 * was wrong, and close the file.
+	 * 
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	public void close() throws IOException {
+		try {
+			if (trackStart >= 0)
+				endTrack(lastTick);
+			flush();
+			out.seek(10);
+			out.writeShort(tracksWritten);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeDelta(long tick) throws IOException {
+		// events must not go back in time
+		long delta = Math.max(0, tick - lastTick);
+		lastTick += delta;
+		writeVariableLength(delta);
+	}
+
+	private void writeVariableLength(long value) throws IOException {
+		int shift = 63 - Long.numberOfLeadingZeros(value | 1);
+		shift -= shift % 7;
+		for (; shift > 0; shift -= 7)
+			write((int) ((value >>> shift) & 0x7F) | 0x80);
+		write((int) (value & 0x7F));
+	}
+
+	private void writeInt(int value) throws IOException {
+		writeShort(value >>> 16);
+		writeShort(value);
+	}
+
+	private void writeShort(int value) throws IOException {
+		write(value >>> 8);
+		write(value);
+	}
+
+	private void write(int b) throws IOException {
+		if (buffered == BUFFER_SIZE)
+			flush();
+		buffer[buffered++] = (byte) b;
+	}
+
+	private void write(byte[] data, int length) throws IOException {
+		for (int i = 0; i < length; i++)
+			write(data[i]);
+	}
+
+	private long position() throws IOException {
+		return out.getFilePointer() + buffered;
+	}
+
+	private void flush() throws IOException {
+		out.write(buffer, 0, buffered);
+		buffered = 0;
+	}
+}
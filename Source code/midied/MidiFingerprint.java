@@ -0,0 +1,150 @@
+package midied;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The MidiFingerprint class computes a MinHash signature of the notes of a
+ * MIDI file, so that copies of a song which have been exported again with a
+ * different tempo, resolution or choice of channels can be recognised. The
+ * file is read in one streaming pass by a MidiFileScanner.
+ * <p>
+ * Only when each note starts and its key are used. Start times are measured
+ * in sixteenth notes, so they do not depend on the resolution or the tempo,
+ * and the notes of every track and channel are merged. Every run of SHINGLE
+ * notes, with their keys and their start times relative to the first, is
+ * hashed, and the signature holds, for each of SIZE hash functions, the
+ * smallest hash of any run. The fraction of places at which two signatures
+ * agree estimates the Jaccard similarity of their sets of runs.
+ * 
+ * @author 090010514
+ */
+public class MidiFingerprint implements MidiFileScanner.Handler {
+	/**
+	 * The number of hashes in a signature.
+	 */
+	public static final int SIZE = 64;
+	// the number of notes in a run
+	private static final int SHINGLE = 3;
+	// the start times are rounded to this many parts of a beat
+	private static final int STEPS_PER_BEAT = 4;
+	private static final int[] SEEDS = new int[SIZE];
+	static {
+		int seed = 0x5F3759DF;
+		for (int i = 0; i < SIZE; i++)
+			SEEDS[i] = seed = mix(seed + i);
+	}
+
+	private int ticksPerBeat = 1;
+	// step << 7 | key of each note
+	private long[] notes = new long[1024];
+	private int count;
+
+	/**
+	 * Compute the signature of a MIDI file.
+	 * 
+	 * @param file
+	 *            A MIDI file.
+	 * @return The signature, or null if the file has too few notes to have
+	 *         one.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	public static int[] compute(File file) throws IOException {
+		MidiFingerprint fingerprint = new MidiFingerprint();
+		MidiFileScanner.scan(file, fingerprint);
+		return fingerprint.signature();
+	}
+
+	/**
+	 * Estimate how alike two files are.
+	 * 
+	 * @param a
+	 *            The signature of a file.
+	 * @param b
+	 *            The signature of another.
+	 * @return The fraction of their hashes which are equal, from 0 to 1.
+	 */
+	public static double similarity(int[] a, int[] b) {
+		int same = 0;
+		for (int i = 0; i < SIZE; i++)
+			if (a[i] == b[i])
+				same++;
+		return (double) same / SIZE;
+	}
+
+	public void header(int format, int trackCount, int division) {
+		if ((division & 0x8000) != 0) {
+			// SMPTE: take a beat to be half a second
+			int fps = -(byte) (division >> 8);
+			ticksPerBeat = Math.max(1, fps * (division & 0xFF) / 2);
+		} else {
+			ticksPerBeat = Math.max(1, division);
+		}
+	}
+
+	public void startTrack(int track) {
+	}
+
+	public void shortMessage(long tick, int status, int data1, int data2) {
+		if ((status & 0xF0) != 0x90 || data2 == 0)
+			return;
+		if (count == notes.length)
+			notes = Arrays.copyOf(notes, count * 2);
+		long step = (tick * STEPS_PER_BEAT + ticksPerBeat / 2) / ticksPerBeat;
+		notes[count++] = step << 7 | data1;
+	}
+
+	public void metaMessage(long tick, int type, byte[] data, int length) {
+	}
+
+	public void sysexMessage(long tick, int status, byte[] data, int length) {
+	}
+
+	public void endTrack(long tick) {
+	}
+
+	/**
+	 * Sort the notes, drop those which double another on a different channel
+	 * or track, and hash every run of them.
+	 */
+	private int[] signature() {
+		Arrays.sort(notes, 0, count);
+		int n = 0;
+		for (int i = 0; i < count; i++)
+			if (n == 0 || notes[n - 1] != notes[i])
+				notes[n++] = notes[i];
+		if (n < SHINGLE)
+			return null;
+		int[] signature = new int[SIZE];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		for (int i = 0; i + SHINGLE <= n; i++) {
+			long first = notes[i] >>> 7;
+			int hash = 0;
+			for (int j = i; j < i + SHINGLE; j++) {
+				long step = (notes[j] >>> 7) - first;
+				hash = mix(hash ^ (int) (step << 7 | notes[j] & 0x7F));
+			}
+			for (int h = 0; h < SIZE; h++) {
+				int value = mix(hash ^ SEEDS[h]);
+				if (value < signature[h])
+					signature[h] = value;
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * The finalisation step of MurmurHash3, which spreads the bits of its
+	 * argument over the whole of the result.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
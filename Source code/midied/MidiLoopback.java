@@ -0,0 +1,55 @@
+package midied;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+/**
+ * The MidiLoopback class is a software MIDI cable: every message sent to it
+ * as a Receiver is passed straight on, on the same thread, to the receiver
+ * of its Transmitter. It stands in for an input device, so that recording
+ * can be tested without a keyboard. Passing a message on neither allocates
+ * nor locks.
+ * 
+ * @author 090010514
+ */
+public class MidiLoopback implements Receiver {
+	private final Transmitter transmitter = new LoopbackTransmitter();
+	private volatile Receiver receiver;
+
+	/**
+	 * The end of the cable which messages come out of.
+	 */
+	private class LoopbackTransmitter implements Transmitter {
+		public void setReceiver(Receiver r) {
+			receiver = r;
+		}
+
+		public Receiver getReceiver() {
+			return receiver;
+		}
+
+		public void close() {
+			receiver = null;
+		}
+	}
+
+	/**
+	 * Returns the Transmitter which messages sent to this are passed to.
+	 * 
+	 * @return The Transmitter.
+	 */
+	public Transmitter getTransmitter() {
+		return transmitter;
+	}
+
+	public void send(MidiMessage msg, long timeStamp) {
+		Receiver r = receiver;
+		if (r != null)
+			r.send(msg, timeStamp);
+	}
+
+	public void close() {
+		transmitter.close();
+	}
+}
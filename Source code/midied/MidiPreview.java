@@ -0,0 +1,396 @@
+package midied;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
+
+/**
+ * The MidiPreview class is an accessory for a JFileChooser which shows a
+ * small piano roll of the highlighted MIDI file, with its duration, number of
+ * notes and channels.
+ * <p>
+ * Previews are made on a small pool of background threads, by scanning the
+ * file without building a Sequence, so the dialog never waits for them. When
+ * the highlighted file changes, the preview being made for the last one is
+ * cancelled, and only the newest few requests are queued. Finished previews
+ * are cached on disk under the SHA-1 hash of the file's contents, so a file
+ * which has been previewed once, under any name, is shown at once.
+ * 
+ * @author 090010514
+ */
+public class MidiPreview extends JComponent implements PropertyChangeListener {
+	private static final long serialVersionUID = 1L;
+	private static final int WIDTH = 240;
+	private static final int ROLL_HEIGHT = 128;
+	private static final int TEXT_HEIGHT = 60;
+	// the most columns a preview has; longer files get coarser columns
+	private static final int MAX_BINS = 1024;
+	private static final int CACHE_VERSION = 2;
+	private static final File CACHE_DIR = new File(
+			System.getProperty("user.home"), ".midied" + File.separator
+					+ "previews");
+	private static final int THREADS = 2;
+	private static final int QUEUE_SIZE = 4;
+
+	// shared by every dialog; the oldest waiting request is dropped when
+	// the queue is full, as the user has moved on from it
+	private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+			THREADS, THREADS, 30, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MIDI preview");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			}, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+	static {
+		POOL.allowCoreThreadTimeOut(true);
+	}
+
+	// the file being previewed, the preview being made, and the result
+	private File file;
+	private Future<?> pending;
+	private Preview preview;
+	private String message;
+
+	/**
+	 * A summary of a MIDI file, and which keys sound in each column of the
+	 * small piano roll.
+	 */
+	private static class Preview {
+		MidiSummary summary;
+		int bins;
+		// per column, two longs holding a bit per key
+		long[] keys;
+	}
+
+	/**
+	 * Creates a new MidiPreview and adds it to a file chooser.
+	 * 
+	 * @param chooser
+	 *            The file chooser.
+	 */
+	public MidiPreview(JFileChooser chooser) {
+		setPreferredSize(new Dimension(WIDTH, ROLL_HEIGHT + TEXT_HEIGHT));
+		setOpaque(true);
+		setBackground(Color.white);
+		chooser.setAccessory(this);
+		chooser.addPropertyChangeListener(this);
+	}
+
+	/**
+	 * Start previewing the file which has been highlighted.
+	 */
+	public void propertyChange(PropertyChangeEvent evt) {
+		if (!JFileChooser.SELECTED_FILE_CHANGED_PROPERTY.equals(evt
+				.getPropertyName()))
+			return;
+		if (pending != null)
+			pending.cancel(true);
+		pending = null;
+		preview = null;
+		file = (File) evt.getNewValue();
+		message = null;
+		if (file != null && file.isFile()) {
+			message = "Loading...";
+			final File requested = file;
+			pending = POOL.submit(new Runnable() {
+				public void run() {
+					load(requested);
+				}
+			});
+		}
+		repaint();
+	}
+
+	/**
+	 * Make the preview of a file, on a pool thread, and show it if the file
+	 * is still highlighted.
+	 */
+	private void load(final File requested) {
+		Preview result = null;
+		String error = null;
+		try {
+			result = getPreview(requested);
+		} catch (InterruptedIOException iioe) {
+			return;
+		} catch (IOException ioe) {
+			error = ioe.getMessage();
+		}
+		final Preview done = result;
+		final String doneMessage = error;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (requested != file)
+					return;
+				pending = null;
+				preview = done;
+				message = doneMessage;
+				repaint();
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached preview of a file, or makes and caches it.
+	 */
+	private static Preview getPreview(File file) throws IOException {
+		String hash = hash(file);
+		File cached = new File(CACHE_DIR, hash + ".preview");
+		if (cached.isFile()) {
+			try {
+				return read(cached);
+			} catch (IOException ioe) {
+				// fall through and make it again
+			}
+		}
+		Preview preview = scan(file);
+		if (CACHE_DIR.isDirectory() || CACHE_DIR.mkdirs()) {
+			try {
+				write(preview, cached);
+			} catch (IOException ioe) {
+				// the preview still shows, it just is not cached
+				cached.delete();
+			}
+		}
+		return preview;
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException(nsae.getMessage());
+		}
+		byte[] buffer = new byte[1 << 16];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				if (Thread.interrupted())
+					throw new InterruptedIOException();
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	/**
+	 * Scan a file, marking the keys which sound in each column. Columns start
+	 * a sixteenth note wide, and are merged in pairs whenever there would be
+	 * more than MAX_BINS, so the work per note and the memory used are
+	 * bounded however long the file is.
+	 */
+	private static Preview scan(File file) throws IOException {
+		final Preview preview = new Preview();
+		final MidiSummary summary = new MidiSummary();
+		final long[] keys = new long[2 * MAX_BINS];
+		final long[] binTicks = new long[1];
+		final long[] noteStart = new long[16 * 128];
+		Arrays.fill(noteStart, -1);
+		MidiFileScanner.scan(file, new MidiFileScanner.Handler() {
+			private int events;
+
+			public void header(int format, int trackCount, int division) {
+				summary.header(format, trackCount, division);
+				binTicks[0] = Math.max(1, (division & 0x7FFF) / 4);
+			}
+
+			public void startTrack(int track) {
+				summary.startTrack(track);
+				Arrays.fill(noteStart, -1);
+			}
+
+			public void shortMessage(long tick, int status, int data1,
+					int data2) throws IOException {
+				if ((++events & 0xFFF) == 0 && Thread.interrupted())
+					throw new InterruptedIOException();
+				summary.shortMessage(tick, status, data1, data2);
+				int command = status & 0xF0;
+				int note = (status & 0x0F) * 128 + data1;
+				if (command == 0x90 && data2 > 0) {
+					if (noteStart[note] < 0)
+						noteStart[note] = tick;
+				} else if ((command == 0x80 || command == 0x90)
+						&& noteStart[note] >= 0) {
+					mark(noteStart[note], tick, data1);
+					noteStart[note] = -1;
+				}
+			}
+
+			private void mark(long from, long to, int key) {
+				while (to / binTicks[0] >= MAX_BINS) {
+					// merge pairs of columns
+					for (int bin = 0; bin < MAX_BINS / 2; bin++) {
+						keys[2 * bin] = keys[4 * bin] | keys[4 * bin + 2];
+						keys[2 * bin + 1] = keys[4 * bin + 1]
+								| keys[4 * bin + 3];
+					}
+					Arrays.fill(keys, MAX_BINS, keys.length, 0);
+					binTicks[0] *= 2;
+					preview.bins = (preview.bins + 1) / 2;
+				}
+				int last = (int) (to / binTicks[0]);
+				for (int bin = (int) (from / binTicks[0]); bin <= last; bin++)
+					keys[2 * bin + key / 64] |= 1L << (key % 64);
+				preview.bins = Math.max(preview.bins, last + 1);
+			}
+
+			public void metaMessage(long tick, int type, byte[] data,
+					int length) {
+				summary.metaMessage(tick, type, data, length);
+			}
+
+			public void sysexMessage(long tick, int status, byte[] data,
+					int length) {
+			}
+
+			public void endTrack(long tick) {
+				summary.endTrack(tick);
+			}
+		});
+		summary.finish();
+		preview.summary = summary;
+		preview.keys = Arrays.copyOf(keys, 2 * preview.bins);
+		return preview;
+	}
+
+	private static Preview read(File cached) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(cached)));
+		try {
+			if (in.readInt() != CACHE_VERSION)
+				throw new IOException("Old preview");
+			Preview preview = new Preview();
+			preview.summary = MidiSummary.read(in);
+			preview.bins = in.readInt();
+			if (preview.bins < 0 || preview.bins > MAX_BINS)
+				throw new IOException("Bad preview");
+			preview.keys = new long[2 * preview.bins];
+			for (int i = 0; i < preview.keys.length; i++)
+				preview.keys[i] = in.readLong();
+			return preview;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(Preview preview, File cached) throws IOException {
+		// write to a temporary file first, so that a half-written preview is
+		// never read
+		File temp = new File(cached.getPath() + ".tmp");
+		OutputStream stream = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream));
+		try {
+			out.writeInt(CACHE_VERSION);
+			preview.summary.write(out);
+			out.writeInt(preview.bins);
+			for (long keys : preview.keys)
+				out.writeLong(keys);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(cached)) {
+			temp.delete();
+			throw new IOException("Could not cache preview");
+		}
+	}
+
+	/**
+	 * Draws the small piano roll, with the duration, the number of notes and
+	 * the channels underneath.
+	 */
+	protected void paintComponent(Graphics g) {
+		int width = getWidth();
+		g.setColor(getBackground());
+		g.fillRect(0, 0, width, getHeight());
+		g.setColor(Color.LIGHT_GRAY);
+		g.drawRect(0, 0, width - 1, ROLL_HEIGHT + 1);
+		FontMetrics metrics = g.getFontMetrics();
+		int line = metrics.getHeight();
+		int y = ROLL_HEIGHT + 2 + line;
+		g.setColor(Color.black);
+		if (preview == null) {
+			if (message != null)
+				g.drawString(message, 4, y);
+			return;
+		}
+		Preview p = preview;
+		if (p.bins > 0) {
+			g.setColor(Constants.CHANNEL_COLORS[3]);
+			int inner = width - 2;
+			for (int bin = 0; bin < p.bins; bin++) {
+				int x = 1 + (int) ((long) bin * inner / p.bins);
+				int w = Math.max(1, 1 + (int) ((long) (bin + 1) * inner / p.bins)
+						- x);
+				for (int key = 0; key < 128; key++)
+					if ((p.keys[2 * bin + key / 64] & 1L << (key % 64)) != 0)
+						g.fillRect(x, 1 + 127 - key, w, 1);
+			}
+		}
+		g.setColor(Color.black);
+		long seconds = p.summary.getDurationMicros() / 1000000;
+		g.drawString(String.format("Duration %d:%02d", seconds / 60,
+				seconds % 60), 4, y);
+		g.drawString(p.summary.getNoteCount() + " notes", 4, y + line);
+		g.drawString("Channels " + channelRanges(p.summary.getChannels()), 4,
+				y + 2 * line);
+	}
+
+	/**
+	 * Describe a set of channels as ranges, e.g. "0-2, 9", numbered as in the
+	 * editor.
+	 */
+	private static String channelRanges(int channels) {
+		StringBuilder sb = new StringBuilder();
+		for (int c = 0; c < 16; c++) {
+			if ((channels & 1 << c) == 0)
+				continue;
+			int last = c;
+			while (last < 15 && (channels & 1 << (last + 1)) != 0)
+				last++;
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(c);
+			if (last > c)
+				sb.append('-').append(last);
+			c = last;
+		}
+		return sb.length() == 0 ? "none" : sb.toString();
+	}
+}
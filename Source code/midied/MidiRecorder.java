@@ -0,0 +1,192 @@
+package midied;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+import javax.swing.Timer;
+
+/**
+ * The MidiRecorder class records what is played on a MIDI input into a
+ * PianoRollPanel. It is the Receiver of the input's Transmitter, and its
+ * send method, which runs on the input's thread, only stamps each message
+ * with System.nanoTime() and writes it into a preallocated MidiRingBuffer;
+ * it never allocates or locks, so fast playing or dense controller data is
+ * not held up by the event dispatch thread. A Swing Timer drains the buffer
+ * every DRAIN_MILLIS on the event dispatch thread, turns the messages into
+ * MidiEvents and adds them to the panel in one batch.
+ * <p>
+ * Times are turned into ticks with the TempoMap of the sequence, so that
+ * recording follows its tempo changes as it is played. Only
+ * channel messages are recorded; system messages, such as the clock and
+ * active sensing, are ignored. A recorder must only be connected to one
+ * Transmitter at a time.
+ * 
+ * @author 090010514
+ */
+public class MidiRecorder implements Receiver {
+	// about a minute of the densest controller data a MIDI cable can carry
+	private static final int CAPACITY = 1 << 16;
+	private static final int DRAIN_MILLIS = 10;
+	private static final int BATCH = 4096;
+
+	private final PianoRollPanel panel;
+	private final MidiRingBuffer buffer = new MidiRingBuffer(CAPACITY);
+	// used on the event dispatch thread only
+	private final long[] times = new long[BATCH];
+	private final int[] messages = new int[BATCH];
+	private final Timer timer;
+	private Transmitter transmitter;
+	private volatile boolean recording;
+	private long startNanos;
+	private long startTick;
+	// the time of the tick at which recording started, in microseconds
+	private long startMicros;
+	private TempoMap tempoMap;
+
+	/**
+	 * Creates a new MidiRecorder.
+	 * 
+	 * @param panel
+	 *            The panel whose track is recorded into.
+	 */
+	public MidiRecorder(PianoRollPanel panel) {
+		this.panel = panel;
+		timer = new Timer(DRAIN_MILLIS, new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				drain();
+			}
+		});
+	}
+
+	/**
+	 * Start recording from a Transmitter. Must be called on the event
+	 * dispatch thread.
+	 * 
+	 * @param input
+	 *            The Transmitter of an open input device, which is closed
+	 *            when recording stops.
+	 * @param fromTick
+	 *            The tick at which recording starts.
+	 * @param tempoMap
+	 *            The TempoMap of the sequence being recorded into.
+	 */
+	public void start(Transmitter input, long fromTick, TempoMap tempoMap) {
+		stop();
+		this.tempoMap = tempoMap;
+		startTick = Math.max(0, fromTick);
+		startMicros = tempoMap.tickToMicros(startTick);
+		startNanos = System.nanoTime();
+		recording = true;
+		transmitter = input;
+		transmitter.setReceiver(this);
+		timer.start();
+	}
+
+	/**
+	 * Stop recording, close the Transmitter, and add whatever has not been
+	 * added yet. Must be called on the event dispatch thread.
+	 */
+	public void stop() {
+		if (!recording)
+			return;
+		recording = false;
+		transmitter.setReceiver(null);
+		transmitter.close();
+		transmitter = null;
+		timer.stop();
+		drain();
+		panel.endRecording(getTickPosition());
+	}
+
+	/**
+	 * Returns whether recording is going on.
+	 * 
+	 * @return Whether it is.
+	 */
+	public boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * Returns the tick being recorded at now.
+	 * 
+	 * @return The tick.
+	 */
+	public long getTickPosition() {
+		return toTick(System.nanoTime());
+	}
+
+	/**
+	 * Returns the number of messages which were lost because the buffer was
+	 * full.
+	 * 
+	 * @return The number of messages.
+	 */
+	public long getDropped() {
+		return buffer.getDropped();
+	}
+
+	/**
+	 * Returns the number of messages waiting to be added to the panel.
+	 * 
+	 * @return The number of messages.
+	 */
+	public int getBacklog() {
+		return buffer.size();
+	}
+
+	/**
+	 * Receive a message from the input. This runs on the input's thread, so
+	 * it must not allocate or lock.
+	 */
+	public void send(MidiMessage msg, long timeStamp) {
+		long now = System.nanoTime();
+		if (!recording || !(msg instanceof ShortMessage))
+			return;
+		ShortMessage sm = (ShortMessage) msg;
+		int status = sm.getStatus();
+		if (status >= 0xF0)
+			return;
+		buffer.offer(now, status | sm.getData1() << 8 | sm.getData2() << 16);
+	}
+
+	public void close() {
+		stop();
+	}
+
+	/**
+	 * Add the messages waiting in the buffer to the panel.
+	 */
+	private void drain() {
+		List<MidiEvent> events = new ArrayList<MidiEvent>();
+		int n;
+		do {
+			n = buffer.drain(times, messages);
+			for (int i = 0; i < n; i++) {
+				int message = messages[i];
+				try {
+					events.add(new MidiEvent(new ShortMessage(message & 0xFF,
+							message >> 8 & 0xFF, message >> 16 & 0xFF),
+							toTick(times[i])));
+				} catch (InvalidMidiDataException imde) {
+					// a malformed message from the device; leave it out
+				}
+			}
+		} while (n == BATCH);
+		panel.addRecorded(events);
+	}
+
+	private long toTick(long nanos) {
+		// never before the start, though the time of a tick is rounded
+		return Math.max(startTick, tempoMap.microsToTick(startMicros
+				+ Math.max(0, nanos - startNanos) / 1000));
+	}
+}
@@ -0,0 +1,114 @@
+package midied;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MidiRingBuffer class passes short MIDI messages, with the time they
+ * arrived, from one thread to another without locking or allocating. It is
+ * a single-producer, single-consumer queue: exactly one thread may call
+ * offer, and exactly one other thread may call drain.
+ * <p>
+ * The slots are preallocated arrays, and each thread only writes its own
+ * counter, which the other thread reads. A message is written into its slot
+ * before the producer's counter is published, so the consumer never sees a
+ * half-written message. When the buffer is full the message is counted as
+ * dropped rather than the producer waiting.
+ * 
+ * @author 090010514
+ */
+public class MidiRingBuffer {
+	private final int mask;
+	private final long[] times;
+	private final int[] messages;
+	// the number of messages ever offered, written only by the producer
+	private final AtomicLong head = new AtomicLong();
+	// the number of messages ever drained, written only by the consumer
+	private final AtomicLong tail = new AtomicLong();
+	// the producer's last sight of tail, so it is read only when the buffer
+	// looks full
+	private long cachedTail;
+	// written only by the producer
+	private volatile long dropped;
+
+	/**
+	 * Creates a new MidiRingBuffer.
+	 * 
+	 * @param capacity
+	 *            The most messages it holds; a power of two.
+	 */
+	public MidiRingBuffer(int capacity) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("capacity: " + capacity);
+		mask = capacity - 1;
+		times = new long[capacity];
+		messages = new int[capacity];
+	}
+
+	/**
+	 * Add a message. Only the producer thread may call this.
+	 * 
+	 * @param time
+	 *            The time the message arrived, e.g. from System.nanoTime().
+	 * @param message
+	 *            The status byte, first data byte and second data byte of a
+	 *            short message, in the lowest, next and third byte.
+	 * @return Whether there was room for it.
+	 */
+	public boolean offer(long time, int message) {
+		long h = head.get();
+		if (h - cachedTail > mask) {
+			cachedTail = tail.get();
+			if (h - cachedTail > mask) {
+				dropped++;
+				return false;
+			}
+		}
+		int slot = (int) h & mask;
+		times[slot] = time;
+		messages[slot] = message;
+		// publish the slot; lazySet orders the writes above before it
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	/**
+	 * Take the waiting messages, as many as fit, oldest first. Only the
+	 * consumer thread may call this.
+	 * 
+	 * @param timesOut
+	 *            Receives the times of the messages.
+	 * @param messagesOut
+	 *            Receives the messages; at least as long as timesOut.
+	 * @return The number of messages taken.
+	 */
+	public int drain(long[] timesOut, int[] messagesOut) {
+		long t = tail.get();
+		int n = (int) Math.min(head.get() - t, timesOut.length);
+		for (int i = 0; i < n; i++) {
+			int slot = (int) (t + i) & mask;
+			timesOut[i] = times[slot];
+			messagesOut[i] = messages[slot];
+		}
+		// free the slots
+		tail.lazySet(t + n);
+		return n;
+	}
+
+	/**
+	 * Returns the number of messages which did not fit.
+	 * 
+	 * @return The number of messages dropped so far.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be drained.
+	 * 
+	 * @return The number of messages.
+	 */
+	public int size() {
+		return (int) (head.get() - tail.get());
+	}
+}
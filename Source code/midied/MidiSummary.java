@@ -0,0 +1,261 @@
+package midied;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The MidiSummary class describes a MIDI file in a few numbers: its
+ * resolution, first tempo, duration, the channels and programs it uses, how
+ * many notes it has and its range of pitches. It is filled in as a
+ * MidiFileScanner.Handler, so a file is summarised in one streaming pass
+ * without building a Sequence, and it can be written to and read from a
+ * compact binary form.
+ * 
+ * @author 090010514
+ */
+public class MidiSummary implements MidiFileScanner.Handler {
+	private static final int SET_TEMPO = 0x51;
+	private static final int DEFAULT_TEMPO = 500000;
+
+	private int division;
+	// microseconds per quarter note, at the start
+	private int tempo = DEFAULT_TEMPO;
+	private long durationMicros;
+	// a bit per channel, and a bit per program
+	private int channels;
+	private final long[] programs = new long[2];
+	private long notes;
+	private int lowestKey = 127;
+	private int highestKey = 0;
+
+	// used while scanning: the tempo changes, and the last tick of any track
+	private List<long[]> tempos = new ArrayList<long[]>();
+	private long lastTick;
+
+	/**
+	 * Summarise a MIDI file.
+	 * 
+	 * @param file
+	 *            A MIDI file.
+	 * @return Its summary.
+	 * @throws IOException
+	 *             If the file can not be read, or is not a MIDI file.
+	 */
+	public static MidiSummary scan(File file) throws IOException {
+		MidiSummary summary = new MidiSummary();
+		MidiFileScanner.scan(file, summary);
+		summary.finish();
+		return summary;
+	}
+
+	public void header(int format, int trackCount, int division) {
+		this.division = division;
+	}
+
+	public void startTrack(int track) {
+	}
+
+	public void shortMessage(long tick, int status, int data1, int data2) {
+		int command = status & 0xF0;
+		if (command == 0x90 && data2 > 0) {
+			notes++;
+			channels |= 1 << (status & 0x0F);
+			lowestKey = Math.min(lowestKey, data1);
+			highestKey = Math.max(highestKey, data1);
+		} else if (command == 0xC0) {
+			programs[data1 / 64] |= 1L << (data1 % 64);
+		}
+		lastTick = Math.max(lastTick, tick);
+	}
+
+	public void metaMessage(long tick, int type, byte[] data, int length) {
+		if (type == SET_TEMPO && length == 3)
+			tempos.add(new long[] {
+					tick,
+					(data[0] & 0xFF) << 16 | (data[1] & 0xFF) << 8
+							| (data[2] & 0xFF) });
+		lastTick = Math.max(lastTick, tick);
+	}
+
+	public void sysexMessage(long tick, int status, byte[] data, int length) {
+	}
+
+	public void endTrack(long tick) {
+		lastTick = Math.max(lastTick, tick);
+	}
+
+	/**
+	 * Work out the tempo and duration, once the whole file has been scanned.
+	 */
+	public void finish() {
+		// tempo changes may come from several tracks
+		Collections.sort(tempos, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+			}
+		});
+		if (!tempos.isEmpty() && tempos.get(0)[0] == 0)
+			tempo = (int) tempos.get(0)[1];
+		durationMicros = duration();
+		tempos = null;
+	}
+
+	private long duration() {
+		if ((division & 0x8000) != 0) {
+			// SMPTE: frames per second and ticks per frame
+			int fps = -(byte) (division >> 8);
+			int ticksPerFrame = division & 0xFF;
+			return fps == 0 || ticksPerFrame == 0 ? 0 : lastTick * 1000000L
+					/ (fps * ticksPerFrame);
+		}
+		if (division == 0)
+			return 0;
+		double micros = 0;
+		long tick = 0;
+		long current = DEFAULT_TEMPO;
+		for (long[] change : tempos) {
+			if (change[0] >= lastTick)
+				break;
+			micros += (change[0] - tick) * (double) current / division;
+			tick = change[0];
+			current = change[1];
+		}
+		micros += (lastTick - tick) * (double) current / division;
+		return (long) micros;
+	}
+
+	/**
+	 * Write this summary in its binary form.
+	 * 
+	 * @param out
+	 *            The output to write to.
+	 * @throws IOException
+	 *             If it can not be written.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeShort(division);
+		out.writeInt(tempo);
+		out.writeLong(durationMicros);
+		out.writeShort(channels);
+		out.writeLong(programs[0]);
+		out.writeLong(programs[1]);
+		out.writeLong(notes);
+		out.writeByte(lowestKey);
+		out.writeByte(highestKey);
+	}
+
+	/**
+	 * Read a summary which was written by write.
+	 * 
+	 * @param in
+	 *            The input to read from.
+	 * @return The summary.
+	 * @throws IOException
+	 *             If it can not be read.
+	 */
+	public static MidiSummary read(DataInput in) throws IOException {
+		MidiSummary summary = new MidiSummary();
+		summary.division = in.readUnsignedShort();
+		summary.tempo = in.readInt();
+		summary.durationMicros = in.readLong();
+		summary.channels = in.readUnsignedShort();
+		summary.programs[0] = in.readLong();
+		summary.programs[1] = in.readLong();
+		summary.notes = in.readLong();
+		summary.lowestKey = in.readUnsignedByte();
+		summary.highestKey = in.readUnsignedByte();
+		summary.tempos = null;
+		return summary;
+	}
+
+	/**
+	 * Returns the division field of the header, i.e. the resolution.
+	 * 
+	 * @return The ticks per quarter note, or an SMPTE division.
+	 */
+	public int getResolution() {
+		return division;
+	}
+
+	/**
+	 * Returns the tempo at the start of the file.
+	 * 
+	 * @return The tempo in beats per minute.
+	 */
+	public double getBeatsPerMinute() {
+		return 60000000.0 / tempo;
+	}
+
+	/**
+	 * Returns how long the file plays for.
+	 * 
+	 * @return The duration in microseconds.
+	 */
+	public long getDurationMicros() {
+		return durationMicros;
+	}
+
+	/**
+	 * Returns whether any note is played on a channel.
+	 * 
+	 * @param channel
+	 *            A channel, from 0 to 15.
+	 * @return Whether the channel is used.
+	 */
+	public boolean usesChannel(int channel) {
+		return (channels & 1 << channel) != 0;
+	}
+
+	/**
+	 * Returns the channels which notes are played on.
+	 * 
+	 * @return A bit per channel.
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Returns whether any channel is changed to a program.
+	 * 
+	 * @param program
+	 *            A program, from 0 to 127.
+	 * @return Whether the program is used.
+	 */
+	public boolean usesProgram(int program) {
+		return (programs[program / 64] & 1L << (program % 64)) != 0;
+	}
+
+	/**
+	 * Returns the number of notes.
+	 * 
+	 * @return The number of NOTE_ONs.
+	 */
+	public long getNoteCount() {
+		return notes;
+	}
+
+	/**
+	 * Returns the lowest key played.
+	 * 
+	 * @return The key, or 127 if there are no notes.
+	 */
+	public int getLowestKey() {
+		return lowestKey;
+	}
+
+	/**
+	 * Returns the highest key played.
+	 * 
+	 * @return The key, or 0 if there are no notes.
+	 */
+	public int getHighestKey() {
+		return highestKey;
+	}
+}
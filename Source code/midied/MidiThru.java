@@ -0,0 +1,166 @@
+package midied;
+
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * The MidiThru class passes what is played on a MIDI input straight on to the
+ * synthesizer, so that it can be heard while recording or auditioning. Each
+ * channel of the input can be sent to another channel, and the instrument
+ * chosen for the channel it is sent to, in the InstrumentChooser, can be
+ * played instead of whatever program the input asks for.
+ * <p>
+ * Its send method runs on the input's thread. It does not allocate: channel
+ * messages are copied into a single ShortMessage which is reused, as the
+ * synthesizer has finished with a message without a time-stamp by the time
+ * send returns. The channels and programs are kept in a Routing which is
+ * replaced as a whole when they change, so the input thread never sees half
+ * of a change. The time from a message arriving to the synthesizer having
+ * taken it is measured.
+ * 
+ * @author 090010514
+ */
+public class MidiThru implements Receiver {
+	private final SoundOutput soundOutput;
+	private final Receiver out;
+	// used on the input's thread only
+	private final ShortMessage message = new ShortMessage();
+	private volatile Routing routing = new Routing(null, null);
+	// the routing the programs below were sent for
+	private Routing programsRouting;
+	// the program last sent on each channel, or -1
+	private final int[] programs = new int[16];
+	private final TimingStats latency = new TimingStats("thru latency");
+
+	/**
+	 * Where the messages of each channel go.
+	 */
+	private static class Routing {
+		// the channel each channel is sent to
+		final int[] channels = new int[16];
+		// the program each channel is played with, or -1 to leave it to the
+		// input; null if no program is overridden
+		final int[] programs;
+
+		Routing(int[] channels, int[] programs) {
+			for (int chan = 0; chan < 16; chan++)
+				this.channels[chan] = channels == null ? chan : channels[chan];
+			this.programs = programs == null ? null : programs.clone();
+		}
+	}
+
+	/**
+	 * Creates a new MidiThru which sends every channel to itself.
+	 * 
+	 * @param soundOutput
+	 *            The synthesizer to send to.
+	 */
+	public MidiThru(SoundOutput soundOutput) {
+		this.soundOutput = soundOutput;
+		out = soundOutput.getReceiver();
+	}
+
+	/**
+	 * Choose where the messages of each channel go.
+	 * 
+	 * @param channels
+	 *            The channel (0-15) that each channel is sent to, or null to
+	 *            send every channel to itself.
+	 * @param programs
+	 *            The program that each channel it is sent to is played with,
+	 *            or -1 to leave it to the input; null to leave them all to the
+	 *            input.
+	 */
+	public void setRouting(int[] channels, int[] programs) {
+		if (channels != null)
+			for (int chan = 0; chan < 16; chan++)
+				if (channels[chan] < 0 || channels[chan] > 15)
+					throw new IllegalArgumentException("channel: "
+							+ channels[chan]);
+		Routing r = new Routing(channels, programs);
+		// keep the programs which have been sent if nothing has changed
+		if (!Arrays.equals(r.channels, routing.channels)
+				|| !Arrays.equals(r.programs, routing.programs))
+			routing = r;
+	}
+
+	/**
+	 * Returns the channel that a channel is sent to.
+	 * 
+	 * @param channel
+	 *            A channel of the input (0-15).
+	 * @return The channel of the synthesizer.
+	 */
+	public int getChannel(int channel) {
+		return routing.channels[channel];
+	}
+
+	/**
+	 * Returns whether the programs of the channels are overridden.
+	 * 
+	 * @return Whether they are.
+	 */
+	public boolean isOverridingPrograms() {
+		return routing.programs != null;
+	}
+
+	/**
+	 * Returns how long it took from a message arriving to the synthesizer
+	 * having taken it.
+	 * 
+	 * @return The TimingStats for messages passed on.
+	 */
+	public TimingStats getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Pass a message on to the synthesizer. This runs on the input's thread.
+	 */
+	public void send(MidiMessage msg, long timeStamp) {
+		long start = System.nanoTime();
+		if (!(msg instanceof ShortMessage))
+			return;
+		ShortMessage sm = (ShortMessage) msg;
+		int status = sm.getStatus();
+		// system messages, such as the clock, are not passed on
+		if (status >= 0xF0)
+			return;
+		Routing r = routing;
+		if (r != programsRouting) {
+			for (int chan = 0; chan < 16; chan++)
+				programs[chan] = -1;
+			programsRouting = r;
+		}
+		int command = status & 0xF0;
+		int channel = r.channels[status & 0x0F];
+		int program = r.programs == null ? -1 : r.programs[channel];
+		try {
+			if (command == ShortMessage.PROGRAM_CHANGE) {
+				if (program >= 0)
+					return;
+				// the synthesizer is no longer playing what SoundOutput
+				// thinks it is
+				soundOutput.resetPrograms();
+			} else if (program >= 0 && programs[channel] != program) {
+				message.setMessage(ShortMessage.PROGRAM_CHANGE, channel,
+						program, 0);
+				out.send(message, -1);
+				programs[channel] = program;
+			}
+			message.setMessage(command, channel, sm.getData1(), sm.getData2());
+		} catch (InvalidMidiDataException imde) {
+			// the data bytes came from a valid message and are in range
+			throw new IllegalArgumentException(imde);
+		}
+		out.send(message, -1);
+		latency.record(System.nanoTime() - start);
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,292 @@
+package midied;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+
+/**
+ * The MidiTool class runs the editor's file tools from the command line,
+ * without opening a window. Every tool but export streams the files it
+ * reads, so they work on files larger than the heap; export reads the whole
+ * file into a sequence, as the piano roll it draws needs every note.
+ * 
+ * @author 090010514
+ */
+public class MidiTool {
+	private static final String USAGE = "Usage:\n"
+			+ "  java midied.MidiTool check <file.mid>\n"
+			+ "  java midied.MidiTool repair <in.mid> <out.mid>\n"
+			+ "  java midied.MidiTool generate <out.mid> [--seed n] [--notes n]\n"
+			+ "      [--tracks n] [--channels n] [--polyphony n]\n"
+			+ "      [--controllers perBar] [--tempo barsPerChange]\n"
+			+ "      [--resolution n]\n"
+			+ "  java midied.MidiTool export <in.mid> <out.png> [beatWidth]\n"
+			+ "  java midied.MidiTool index <folder> [query]\n"
+			+ "  java midied.MidiTool dupes <folder> [similarity]\n"
+			+ "  java midied.MidiTool resample <in.mid> <out.mid> <resolution>";
+
+	/**
+	 * Run a tool.
+	 * 
+	 * @param args
+	 *            The name of the tool followed by its arguments.
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		String tool = args[0];
+		try {
+			if (tool.equals("check") && args.length == 2)
+				System.exit(check(new File(args[1])));
+			else if (tool.equals("repair") && args.length == 3)
+				repair(new File(args[1]), new File(args[2]));
+			else if (tool.equals("generate") && args.length % 2 == 0)
+				generate(args);
+			else if (tool.equals("export") && (args.length == 3 || args.length == 4))
+				export(new File(args[1]), new File(args[2]),
+						args.length == 4 ? Double.parseDouble(args[3]) : 10);
+			else if (tool.equals("index") && args.length >= 2)
+				index(new File(args[1]), args);
+			else if (tool.equals("dupes") && (args.length == 2 || args.length == 3))
+				dupes(new File(args[1]),
+						args.length == 3 ? Double.parseDouble(args[2]) : 0.7);
+			else if (tool.equals("resample") && args.length == 4)
+				resample(new File(args[1]), new File(args[2]), Integer
+						.parseInt(args[3]));
+			else {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+		} catch (IOException ioe) {
+			System.err.println("Error: " + ioe.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Error: " + iae.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Report the orphan, overlapping and duplicate notes of a file.
+	 * 
+	 * @param file
+	 *            A MIDI file.
+	 * @return 0 if the file has no problems, 3 otherwise.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	private static int check(File file) throws IOException {
+		NoteRepair repair = new NoteRepair(null, false);
+		MidiFileScanner.scan(file, repair);
+		repair.printReport(System.out);
+		return repair.getProblemCount() == 0 ? 0 : 3;
+	}
+
+	/**
+	 * Write a copy of a file with its orphan, overlapping and duplicate
+	 * notes repaired.
+	 * 
+	 * @param in
+	 *            A MIDI file.
+	 * @param out
+	 *            The file to be written.
+	 * @throws IOException
+	 *             If a file can not be read or written.
+	 */
+	private static void repair(File in, File out) throws IOException {
+		MidiFileWriter writer = new MidiFileWriter(out);
+		NoteRepair repair = new NoteRepair(writer, true);
+		try {
+			MidiFileScanner.scan(in, repair);
+		} finally {
+			writer.close();
+		}
+		repair.printReport(System.out);
+	}
+
+	/**
+	 * Write a synthetic file. The settings used are printed, so that the
+	 * same file can be generated again.
+	 * 
+	 * @param args
+	 *            "generate", the file to be written and pairs of option names
+	 *            and values.
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	private static void generate(String[] args) throws IOException {
+		long seed = 0;
+		for (int i = 2; i < args.length; i += 2)
+			if (args[i].equals("--seed"))
+				seed = Long.parseLong(args[i + 1]);
+		CorpusGenerator generator = new CorpusGenerator(seed);
+		for (int i = 2; i < args.length; i += 2) {
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("--seed"))
+				continue;
+			else if (option.equals("--notes"))
+				generator.setNotes(Long.parseLong(value));
+			else if (option.equals("--tracks"))
+				generator.setTracks(Integer.parseInt(value));
+			else if (option.equals("--channels"))
+				generator.setChannels(Integer.parseInt(value));
+			else if (option.equals("--polyphony"))
+				generator.setPolyphony(Integer.parseInt(value));
+			else if (option.equals("--controllers"))
+				generator.setControllersPerBar(Integer.parseInt(value));
+			else if (option.equals("--tempo"))
+				generator.setBarsPerTempoChange(Integer.parseInt(value));
+			else if (option.equals("--resolution"))
+				generator.setResolution(Integer.parseInt(value));
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+		long start = System.nanoTime();
+		generator.generate(new File(args[1]));
+		System.out.println("Wrote " + args[1] + " in "
+				+ (System.nanoTime() - start) / 1000000 + " ms with "
+				+ generator);
+	}
+
+	/**
+	 * Save the piano roll of a file as a PNG image, without opening a window.
+	 * 
+	 * @param in
+	 *            A MIDI file.
+	 * @param out
+	 *            The image to be written.
+	 * @param beatWidth
+	 *            The width of a beat in pixels.
+	 * @throws IOException
+	 *             If a file can not be read or written.
+	 */
+	private static void export(File in, File out, double beatWidth)
+			throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		PianoRollPanel panel = new PianoRollPanel(null);
+		try {
+			panel.setSequence(new EditableSequence(MidiSystem.getSequence(in)));
+		} catch (InvalidMidiDataException imde) {
+			throw new IOException(imde.getMessage());
+		}
+		panel.zoomHorizontally(beatWidth / panel.getBeatWidth(), 0);
+		long start = System.nanoTime();
+		new PianoRollExporter(panel).export(out);
+		Dimension size = panel.getPreferredSize();
+		System.out.println("Wrote " + size.width + " x " + size.height
+				+ " pixels to " + out + " in " + (System.nanoTime() - start)
+				/ 1000000 + " ms");
+	}
+
+	/**
+	 * Bring the editor's library index up to date with a folder, and then
+	 * list the files which match a query, if one is given.
+	 * 
+	 * @param folder
+	 *            The folder of MIDI files.
+	 * @param args
+	 *            The arguments; those after the folder are the query.
+	 * @throws IOException
+	 *             If the index can not be saved.
+	 */
+	private static void index(File folder, String[] args) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 2; i < args.length; i++)
+			text.append(args[i]).append(' ');
+		LibraryQuery query = new LibraryQuery(text.toString());
+		LibraryIndex index = new LibraryIndex(LibraryIndex.DEFAULT_FILE);
+		long start = System.nanoTime();
+		int read;
+		try {
+			read = index.update(folder, null);
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted");
+		}
+		index.save();
+		System.out.println(index.size() + " files indexed, " + read
+				+ " read in " + (System.nanoTime() - start) / 1000000 + " ms");
+		if (args.length == 2)
+			return;
+		start = System.nanoTime();
+		List<LibraryIndex.Entry> matches = index.query(query);
+		long micros = (System.nanoTime() - start) / 1000;
+		for (LibraryIndex.Entry entry : matches)
+			System.out.println(entry);
+		System.out.println(matches.size() + " files match (" + micros
+				+ " us)");
+	}
+
+	/**
+	 * List the groups of MIDI files under a folder which are copies of the
+	 * same song, going by their fingerprints.
+	 * 
+	 * @param folder
+	 *            The folder of MIDI files.
+	 * @param similarity
+	 *            How alike the fingerprints of copies must be, from 0 to 1.
+	 * @throws IOException
+	 *             If the folder can not be read.
+	 */
+	private static void dupes(File folder, double similarity)
+			throws IOException {
+		if (!folder.isDirectory())
+			throw new IOException(folder + " is not a folder");
+		long start = System.nanoTime();
+		List<File> files = new ArrayList<File>();
+		LibraryIndex.findMidiFiles(folder, files);
+		List<List<File>> groups;
+		try {
+			groups = new DuplicateFinder(similarity).find(files, null);
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted");
+		}
+		int duplicates = 0;
+		for (List<File> group : groups) {
+			System.out.println(group.size() + " copies:");
+			for (File file : group)
+				System.out.println("  " + file);
+			duplicates += group.size() - 1;
+		}
+		System.out.println(files.size() + " files, " + groups.size()
+				+ " songs with copies, " + duplicates + " duplicates, in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Write a copy of a file at another resolution, moving every event to
+	 * the nearest tick at the new resolution.
+	 * 
+	 * @param in
+	 *            A MIDI file.
+	 * @param out
+	 *            The file to be written.
+	 * @param resolution
+	 *            The new resolution, in ticks per quarter note.
+	 * @throws IOException
+	 *             If a file can not be read or written.
+	 */
+	private static void resample(File in, File out, int resolution)
+			throws IOException {
+		long start = System.nanoTime();
+		MidiFileWriter writer = new MidiFileWriter(out);
+		Resampler resampler = new Resampler(writer, resolution);
+		try {
+			MidiFileScanner.scan(in, resampler);
+		} finally {
+			writer.close();
+		}
+		System.out.println("Wrote " + out + " at " + resolution + " PPQ in "
+				+ (System.nanoTime() - start) / 1000000 + " ms; "
+				+ resampler.getLengthenedNotes()
+				+ " notes kept one tick long");
+	}
+}
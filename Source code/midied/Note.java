@@ -0,0 +1,214 @@
+package midied;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * The Note class represents a single note in a track, i.e. a noteOn event and
+ * its corresponding noteOff event. Notes are drawn by the PianoRollPanel.
+ * 
+ * @author 090010514
+ */
+public final class Note {
+	// The track in which this note exists.
+	private Track track;
+	// MIDI noteOn event
+	private MidiEvent onEvent;
+	// MIDI noteOff event
+	private MidiEvent offEvent;
+	// the channel on which this note exists.
+	private int channel;
+	// the key this note appears
+	private int key;
+	// the velocity at which this note is played
+	private int velocity;
+	// whether the note is part of the selection in the PianoRollPanel
+	private boolean selected;
+
+	/**
+	 * Creates a new Note with a given track, noteOn- and noteOff-event,
+	 * channel, note-key and velocity.
+	 * 
+	 * @param t
+	 *            The track onto which this note belongs.
+	 * @param on
+	 *            A noteOn-event.
+	 * @param off
+	 *            A noteOff-event.
+	 * @param chan
+	 *            A channel (0-15)
+	 * @param key
+	 *            A note-key.
+	 * @param vel
+	 *            The velocity at which this note is to be played.
+	 */
+	public Note(Track t, MidiEvent on, MidiEvent off, int chan, int key, int vel) {
+		track = t;
+		onEvent = on;
+		offEvent = off;
+		channel = chan;
+		this.key = key;
+		velocity = vel;
+	}
+
+	/**
+	 * toString method which includes the channel, key and velocity of this
+	 * note.
+	 */
+	public String toString() {
+		StringBuffer result = new StringBuffer();
+		result.append(" channel: " + channel);
+		result.append(" key: " + key);
+		result.append(" vel: " + velocity);
+		return result.toString();
+	}
+
+	/**
+	 * Returns the tick at which this note starts.
+	 * 
+	 * @return The tick of the noteOn event.
+	 */
+	public long getTick() {
+		return onEvent.getTick();
+	}
+
+	/**
+	 * Returns the tick at which this note ends.
+	 * 
+	 * @return The tick of the noteOff event.
+	 */
+	public long getEndTick() {
+		return offEvent.getTick();
+	}
+
+	/**
+	 * Returns the channel on which this note is played.
+	 * 
+	 * @return A channel (0-15).
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the key of this note.
+	 * 
+	 * @return A note-key (0-127).
+	 */
+	public int getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the velocity at which this note is played.
+	 * 
+	 * @return A velocity (0-127).
+	 */
+	public int getVelocity() {
+		return velocity;
+	}
+
+	/**
+	 * Change the key of this note. The note's MIDI messages are changed in
+	 * place, so the events keep their place in the track.
+	 * 
+	 * @param newKey
+	 *            A note-key (0-127).
+	 * @throws InvalidMidiDataException
+	 *             If the key is out of range.
+	 */
+	public void setKey(int newKey) throws InvalidMidiDataException {
+		ShortMessage on = (ShortMessage) onEvent.getMessage();
+		ShortMessage off = (ShortMessage) offEvent.getMessage();
+		on.setMessage(on.getCommand(), channel, newKey, on.getData2());
+		off.setMessage(off.getCommand(), channel, newKey, off.getData2());
+		key = newKey;
+	}
+
+	/**
+	 * Change the velocity of this note, by changing its noteOn message in
+	 * place.
+	 * 
+	 * @param newVelocity
+	 *            A velocity (1-127).
+	 * @throws InvalidMidiDataException
+	 *             If the velocity is out of range.
+	 */
+	public void setVelocity(int newVelocity) throws InvalidMidiDataException {
+		ShortMessage on = (ShortMessage) onEvent.getMessage();
+		on.setMessage(on.getCommand(), channel, key, newVelocity);
+		velocity = newVelocity;
+	}
+
+	/**
+	 * Tells if this note is selected.
+	 * 
+	 * @return Whether or not the note is part of the selection.
+	 */
+	public boolean isSelected() {
+		return selected;
+	}
+
+	/**
+	 * Set whether or not this note is selected.
+	 * 
+	 * @param selected
+	 *            Whether or not the note is part of the selection.
+	 */
+	public void setSelected(boolean selected) {
+		this.selected = selected;
+	}
+
+	/**
+	 * Returns the noteOn event of this note.
+	 * 
+	 * @return A NOTE_ON MidiEvent.
+	 */
+	public MidiEvent getOnEvent() {
+		return onEvent;
+	}
+
+	/**
+	 * Returns the noteOff event of this note.
+	 * 
+	 * @return A NOTE_OFF MidiEvent, or a NOTE_ON with velocity 0.
+	 */
+	public MidiEvent getOffEvent() {
+		return offEvent;
+	}
+
+	/**
+	 * Move this note to another track, after its events have been put into
+	 * that track.
+	 * 
+	 * @param t
+	 *            The track which now holds this note's events.
+	 */
+	public void setTrack(Track t) {
+		track = t;
+	}
+
+	/**
+	 * Moves this note by the given number of ticks, keeping its length. The
+	 * events are not moved within the track, so the track must be rebuilt
+	 * afterwards.
+	 * 
+	 * @param ticks
+	 *            How many ticks to move the note by.
+	 */
+	public void shift(long ticks) {
+		onEvent.setTick(onEvent.getTick() + ticks);
+		offEvent.setTick(offEvent.getTick() + ticks);
+	}
+
+	/**
+	 * Removes the MidiEvents (noteOn and noteOff) corresponding to this Note
+	 * from the track.
+	 */
+	public void remove() {
+		track.remove(onEvent);
+		track.remove(offEvent);
+	}
+}
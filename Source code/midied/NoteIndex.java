@@ -0,0 +1,196 @@
+package midied;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+
+/**
+ * The NoteIndex class keeps the notes of a track sorted by the tick at which
+ * they start, so that the notes overlapping any range of ticks can be found
+ * with a binary search instead of looking at every note.
+ * 
+ * @author 090010514
+ */
+public class NoteIndex {
+	// notes sorted by start tick, in the order they were added for equal ticks
+	private final ArrayList<Note> notes = new ArrayList<Note>();
+	// the length of the longest note which has been added
+	private long maxLength;
+
+	/**
+	 * Add a note to the index.
+	 * 
+	 * @param note
+	 *            The note to be added.
+	 */
+	public void add(Note note) {
+		notes.add(upperBound(note.getTick()), note);
+		long length = note.getEndTick() - note.getTick();
+		if (length > maxLength)
+			maxLength = length;
+	}
+
+	/**
+	 * Remove a note from the index.
+	 * 
+	 * @param note
+	 *            The note to be removed.
+	 * @return Whether or not the note was found.
+	 */
+	public boolean remove(Note note) {
+		long tick = note.getTick();
+		for (int i = lowerBound(tick); i < notes.size(); i++) {
+			Note n = notes.get(i);
+			if (n == note) {
+				notes.remove(i);
+				return true;
+			}
+			if (n.getTick() != tick)
+				break;
+		}
+		return false;
+	}
+
+	/**
+	 * Remove every note in the given set from the index, in one pass.
+	 * 
+	 * @param removed
+	 *            The notes to be removed.
+	 */
+	public void removeAll(Set<Note> removed) {
+		int kept = 0;
+		for (int i = 0; i < notes.size(); i++) {
+			Note note = notes.get(i);
+			if (!removed.contains(note))
+				notes.set(kept++, note);
+		}
+		notes.subList(kept, notes.size()).clear();
+	}
+
+	/**
+	 * Sort the notes again after their ticks have been changed. Notes which
+	 * start at the same tick keep their order.
+	 */
+	public void sort() {
+		Collections.sort(notes, new Comparator<Note>() {
+			public int compare(Note a, Note b) {
+				long ta = a.getTick();
+				long tb = b.getTick();
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * Remove all notes from the index.
+	 */
+	public void clear() {
+		notes.clear();
+		maxLength = 0;
+	}
+
+	/**
+	 * Returns the number of notes in the index.
+	 * 
+	 * @return The number of notes.
+	 */
+	public int size() {
+		return notes.size();
+	}
+
+	/**
+	 * Returns the note at a given position in start-tick order.
+	 * 
+	 * @param i
+	 *            A position (0 to size() - 1).
+	 * @return The note at that position.
+	 */
+	public Note get(int i) {
+		return notes.get(i);
+	}
+
+	/**
+	 * Returns the length of the longest note in the index. Notes overlapping a
+	 * given tick must start at most this many ticks before it.
+	 * 
+	 * @return A length in ticks.
+	 */
+	public long getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Returns the position of the first note which starts at or after the
+	 * given tick.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @return A position between 0 and size().
+	 */
+	public int lowerBound(long tick) {
+		int lo = 0;
+		int hi = notes.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (notes.get(mid).getTick() < tick)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the position of the first note which starts after the given
+	 * tick.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @return A position between 0 and size().
+	 */
+	public int upperBound(long tick) {
+		int lo = 0;
+		int hi = notes.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (notes.get(mid).getTick() <= tick)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the position of the first note which may overlap the given tick,
+	 * i.e. where to start looking for notes sounding at or after that tick.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @return A position between 0 and size().
+	 */
+	public int firstOverlapping(long tick) {
+		return lowerBound(tick - maxLength);
+	}
+
+	/**
+	 * Find the note sounding at the given tick and key. If several notes
+	 * overlap, the one which starts last (i.e. is drawn on top) is returned.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @param key
+	 *            A note-key.
+	 * @return The note, or null if there is no note there.
+	 */
+	public Note find(long tick, int key) {
+		int first = firstOverlapping(tick);
+		for (int i = upperBound(tick) - 1; i >= first; i--) {
+			Note note = notes.get(i);
+			if (note.getKey() == key && note.getEndTick() > tick)
+				return note;
+		}
+		return null;
+	}
+}
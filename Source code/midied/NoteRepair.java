@@ -0,0 +1,196 @@
+package midied;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * The NoteRepair class looks for broken notes in a stream of MIDI events,
+ * one track at a time:
+ * <ul>
+ * <li>orphan NOTE_ONs, which never get a NOTE_OFF,</li>
+ * <li>orphan NOTE_OFFs, which end a note that is not sounding,</li>
+ * <li>overlapping notes, where a key is struck again on the same channel
+ * before it has been released, and</li>
+ * <li>exact duplicates, where the same key is struck twice at the same tick.</li>
+ * </ul>
+ * NOTE_OFFs are paired with NOTE_ONs first in, first out. The state kept is a
+ * fixed number of values per key and channel, however long the track is.
+ * Events are passed on to another Handler, with the problems fixed if fixing
+ * is turned on: an orphan NOTE_ON is ended at the end of its track, orphan
+ * NOTE_OFFs and duplicates are dropped, and an overlapped note is ended just
+ * before the note which overlaps it.
+ * 
+ * @author 090010514
+ */
+public class NoteRepair implements MidiFileScanner.Handler {
+	// how many problems are described in the report
+	private static final int MAX_EXAMPLES = 20;
+
+	private final MidiFileScanner.Handler next;
+	private final boolean fix;
+
+	// per channel * 128 + key: whether a note is sounding, when it started,
+	// and how many NOTE_OFFs are still to come for notes already ended
+	private final boolean[] sounding = new boolean[16 * 128];
+	private final long[] startTick = new long[16 * 128];
+	private final int[] surplusOffs = new int[16 * 128];
+
+	private int track;
+	private int tracks;
+	private long orphanOns;
+	private long orphanOffs;
+	private long overlaps;
+	private long duplicates;
+	private long events;
+	private final StringBuilder examples = new StringBuilder();
+	private long exampleCount;
+
+	/**
+	 * Creates a new NoteRepair.
+	 * 
+	 * @param next
+	 *            The Handler to which the events are passed on, or null.
+	 * @param fix
+	 *            Whether to pass on the events repaired, or as they are.
+	 */
+	public NoteRepair(MidiFileScanner.Handler next, boolean fix) {
+		this.next = next;
+		this.fix = fix;
+	}
+
+	public void header(int format, int trackCount, int division)
+			throws IOException {
+		if (next != null)
+			next.header(format, trackCount, division);
+	}
+
+	public void startTrack(int track) throws IOException {
+		this.track = track;
+		tracks++;
+		Arrays.fill(sounding, false);
+		Arrays.fill(surplusOffs, 0);
+		if (next != null)
+			next.startTrack(track);
+	}
+
+	public void shortMessage(long tick, int status, int data1, int data2)
+			throws IOException {
+		events++;
+		int command = status & 0xF0;
+		int channel = status & 0x0F;
+		int note = channel * 128 + data1;
+		if (command == 0x90 && data2 > 0) {
+			if (sounding[note] && startTick[note] == tick) {
+				duplicates++;
+				report(tick, channel, data1, "duplicate note");
+				// the duplicate's NOTE_OFF is dropped too
+				surplusOffs[note]++;
+				if (fix)
+					return;
+			} else if (sounding[note]) {
+				overlaps++;
+				report(tick, channel, data1, "overlaps the note at tick "
+						+ startTick[note]);
+				surplusOffs[note]++;
+				// end the earlier note just before this one starts
+				if (fix)
+					pass(tick, 0x80 | channel, data1, 0);
+			}
+			sounding[note] = true;
+			startTick[note] = tick;
+		} else if (command == 0x80 || command == 0x90) {
+			if (surplusOffs[note] > 0) {
+				// ends a note which was ended already
+				surplusOffs[note]--;
+				if (fix)
+					return;
+			} else if (sounding[note]) {
+				sounding[note] = false;
+			} else {
+				orphanOffs++;
+				report(tick, channel, data1, "NOTE_OFF without NOTE_ON");
+				if (fix)
+					return;
+			}
+		}
+		pass(tick, status, data1, data2);
+	}
+
+	public void metaMessage(long tick, int type, byte[] data, int length)
+			throws IOException {
+		events++;
+		if (next != null)
+			next.metaMessage(tick, type, data, length);
+	}
+
+	public void sysexMessage(long tick, int status, byte[] data, int length)
+			throws IOException {
+		events++;
+		if (next != null)
+			next.sysexMessage(tick, status, data, length);
+	}
+
+	/**
+	 * End the notes which are still sounding.
+	 */
+	public void endTrack(long tick) throws IOException {
+		for (int note = 0; note < sounding.length; note++) {
+			if (!sounding[note])
+				continue;
+			orphanOns++;
+			report(startTick[note], note / 128, note % 128,
+					"NOTE_ON without NOTE_OFF");
+			if (fix)
+				pass(tick, 0x80 | note / 128, note % 128, 0);
+		}
+		if (next != null)
+			next.endTrack(tick);
+	}
+
+	private void pass(long tick, int status, int data1, int data2)
+			throws IOException {
+		if (next != null)
+			next.shortMessage(tick, status, data1, data2);
+	}
+
+	/**
+	 * Remember the first few problems, to be shown in the report.
+	 */
+	private void report(long tick, int channel, int key, String problem) {
+		if (exampleCount++ >= MAX_EXAMPLES)
+			return;
+		examples.append("  track ").append(track).append(" tick ")
+				.append(tick).append(" channel ").append(channel)
+				.append(" key ").append(key).append(": ").append(problem)
+				.append('\n');
+	}
+
+	/**
+	 * Returns the total number of problems found.
+	 * 
+	 * @return The number of orphans, overlaps and duplicates.
+	 */
+	public long getProblemCount() {
+		return orphanOns + orphanOffs + overlaps + duplicates;
+	}
+
+	/**
+	 * Print what was found.
+	 * 
+	 * @param out
+	 *            The stream to print to.
+	 */
+	public void printReport(PrintStream out) {
+		out.println(events + " events in " + tracks + " tracks");
+		out.println(orphanOns + " NOTE_ONs without NOTE_OFF");
+		out.println(orphanOffs + " NOTE_OFFs without NOTE_ON");
+		out.println(overlaps + " overlapping notes");
+		out.println(duplicates + " duplicate notes");
+		out.print(examples);
+		if (exampleCount > MAX_EXAMPLES)
+			out.println("  ... and " + (exampleCount - MAX_EXAMPLES) + " more");
+		if (fix && getProblemCount() > 0)
+			out.println("All of them were repaired.");
+	}
+}
@@ -0,0 +1,127 @@
+package midied;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * The OverviewPanel class is a thin strip which shows the note density of the
+ * whole sequence and the part of it currently visible in the piano roll.
+ * Clicking or dragging in the strip moves the piano roll's viewport.
+ * 
+ * @author 090010514
+ */
+public class OverviewPanel extends JComponent {
+	private static final long serialVersionUID = 1L;
+	private static final int HEIGHT = 40;
+	private static final Color DENSITY_COLOR = new Color(42, 75, 215);
+	private static final Color VIEW_FILL = new Color(173, 35, 35, 40);
+	private static final Color VIEW_BORDER = new Color(173, 35, 35);
+
+	private final PianoRollPanel pianoRollPanel;
+	private final JViewport viewport;
+
+	/**
+	 * Creates a new OverviewPanel.
+	 * 
+	 * @param pianoRollPanel
+	 *            The PianoRollPanel whose notes are shown.
+	 * @param viewport
+	 *            The viewport onto the PianoRollPanel which is moved when the
+	 *            strip is clicked.
+	 */
+	public OverviewPanel(PianoRollPanel pianoRollPanel, JViewport viewport) {
+		this.pianoRollPanel = pianoRollPanel;
+		this.viewport = viewport;
+		setPreferredSize(new Dimension(500, HEIGHT));
+		setOpaque(true);
+		setBackground(Color.white);
+		// repaint whenever the view is scrolled or resized
+		viewport.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent evt) {
+				repaint();
+			}
+		});
+		MouseAdapter mouse = new MouseAdapter() {
+			public void mousePressed(MouseEvent evt) {
+				moveViewport(evt.getX());
+			}
+
+			public void mouseDragged(MouseEvent evt) {
+				moveViewport(evt.getX());
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+	}
+
+	/**
+	 * Draws one density bar per pixel column, using range counts from the
+	 * DensityPyramid, followed by the rectangle of the visible area.
+	 */
+	protected void paintComponent(Graphics g) {
+		int width = getWidth();
+		int height = getHeight();
+		g.setColor(getBackground());
+		g.fillRect(0, 0, width, height);
+		long totalTicks = pianoRollPanel.getDisplayTicks();
+		if (width <= 0 || totalTicks <= 0)
+			return;
+		DensityPyramid density = pianoRollPanel.getDensity();
+		int[] columns = new int[width];
+		int max = 1;
+		for (int x = 0; x < width; x++) {
+			long from = x * totalTicks / width;
+			long to = (x + 1) * totalTicks / width;
+			columns[x] = density.count(from, Math.max(to, from + 1));
+			if (columns[x] > max)
+				max = columns[x];
+		}
+		g.setColor(DENSITY_COLOR);
+		for (int x = 0; x < width; x++) {
+			if (columns[x] == 0)
+				continue;
+			int barHeight = Math.max(1, columns[x] * (height - 2) / max);
+			g.drawLine(x, height - 1, x, height - 1 - barHeight);
+		}
+		// the visible part of the piano roll
+		int viewWidth = pianoRollPanel.getWidth();
+		if (viewWidth <= 0)
+			return;
+		Rectangle view = viewport.getViewRect();
+		int x = (int) ((long) view.x * width / viewWidth);
+		int w = (int) Math.max(2, (long) view.width * width / viewWidth);
+		g.setColor(VIEW_FILL);
+		g.fillRect(x, 0, w, height);
+		g.setColor(VIEW_BORDER);
+		g.drawRect(x, 0, w - 1, height - 1);
+	}
+
+	/**
+	 * Centre the viewport horizontally on the position corresponding to the
+	 * given x-coordinate in this strip.
+	 * 
+	 * @param stripX
+	 *            An x-coordinate in this strip.
+	 */
+	private void moveViewport(int stripX) {
+		int width = getWidth();
+		int viewWidth = pianoRollPanel.getWidth();
+		if (width <= 0 || viewWidth <= 0)
+			return;
+		Rectangle view = viewport.getViewRect();
+		long centre = (long) stripX * viewWidth / width;
+		int x = (int) (centre - view.width / 2);
+		x = Math.max(0, Math.min(x, viewWidth - view.width));
+		viewport.setViewPosition(new Point(x, view.y));
+	}
+}
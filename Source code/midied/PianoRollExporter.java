@@ -0,0 +1,254 @@
+package midied;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The PianoRollExporter class saves the whole of a PianoRollPanel as a PNG
+ * image, however large. The image is painted in bands of tiles, the tiles of
+ * a band in parallel, and each band is compressed and written out while the
+ * next one is painted. Only two bands are held at a time, and a band is never
+ * more than MAX_BAND_PIXELS, so memory does not grow with the image. Tiles
+ * are painted with the panel's own paintArea, so the image looks just like
+ * the panel on screen. It works with java.awt.headless=true.
+ * 
+ * @author 090010514
+ */
+public class PianoRollExporter {
+	private static final int TILE_WIDTH = 1024;
+	private static final int TILE_HEIGHT = 256;
+	// limits the height of a band when the image is very wide
+	private static final int MAX_BAND_PIXELS = 1 << 23;
+	// the size of the IDAT chunks written
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final PianoRollPanel panel;
+	private final int threads;
+
+	/**
+	 * Creates a new PianoRollExporter, which paints with a thread per
+	 * processor.
+	 * 
+	 * @param panel
+	 *            The panel to be saved. It must not be edited while it is
+	 *            being saved.
+	 */
+	public PianoRollExporter(PianoRollPanel panel) {
+		this.panel = panel;
+		this.threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Save the panel, at its current zoom, as a PNG image.
+	 * 
+	 * @param file
+	 *            The file to be written.
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	public void export(File file) throws IOException {
+		Dimension size = panel.getPreferredSize();
+		final int width = size.width;
+		final int height = size.height;
+		if (width <= 0 || height <= 0)
+			throw new IOException("Nothing to export");
+		panel.setSize(size);
+		int bandHeight = Math.max(1, Math.min(TILE_HEIGHT, MAX_BAND_PIXELS
+				/ width));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+				CHUNK_SIZE);
+		try {
+			PngWriter png = new PngWriter(out, width, height);
+			List<Future<BufferedImage>> band = paintBand(pool, 0, bandHeight,
+					width, height);
+			for (int y = 0; y < height; y += bandHeight) {
+				// paint the next band while this one is being written
+				List<Future<BufferedImage>> next = paintBand(pool, y
+						+ bandHeight, bandHeight, width, height);
+				png.writeBand(get(band), Math.min(bandHeight, height - y));
+				band = next;
+			}
+			png.finish();
+		} finally {
+			pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	/**
+	 * Start painting the tiles of a band.
+	 */
+	private List<Future<BufferedImage>> paintBand(ExecutorService pool,
+			final int y, int bandHeight, int width, int height) {
+		List<Future<BufferedImage>> tiles = new ArrayList<Future<BufferedImage>>();
+		if (y >= height)
+			return tiles;
+		final int h = Math.min(bandHeight, height - y);
+		for (int x = 0; x < width; x += TILE_WIDTH) {
+			final Rectangle clip = new Rectangle(x, y, Math.min(TILE_WIDTH,
+					width - x), h);
+			tiles.add(pool.submit(new Callable<BufferedImage>() {
+				public BufferedImage call() {
+					return paintTile(clip);
+				}
+			}));
+		}
+		return tiles;
+	}
+
+	private BufferedImage paintTile(Rectangle clip) {
+		BufferedImage tile = new BufferedImage(clip.width, clip.height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = tile.createGraphics();
+		try {
+			g.setColor(panel.getBackground());
+			g.fillRect(0, 0, clip.width, clip.height);
+			g.setFont(panel.getFont());
+			g.translate(-clip.x, -clip.y);
+			g.setClip(clip);
+			panel.paintArea(g, clip);
+		} finally {
+			g.dispose();
+		}
+		return tile;
+	}
+
+	private static List<BufferedImage> get(List<Future<BufferedImage>> futures)
+			throws IOException {
+		List<BufferedImage> tiles = new ArrayList<BufferedImage>();
+		try {
+			for (Future<BufferedImage> future : futures)
+				tiles.add(future.get());
+		} catch (InterruptedException ie) {
+			throw new IOException("Export interrupted");
+		} catch (ExecutionException ee) {
+			throw new IOException("Painting failed: " + ee.getCause());
+		}
+		return tiles;
+	}
+
+	/**
+	 * Writes an 8 bit RGB PNG image one band of rows at a time. Each row is
+	 * filtered against the one above it, which suits the long horizontal
+	 * runs of the piano roll, and deflated into IDAT chunks as it goes.
+	 */
+	private static class PngWriter {
+		private final DataOutputStream out;
+		private final DeflaterOutputStream deflater;
+		private final Deflater def = new Deflater(Deflater.BEST_SPEED);
+		private byte[] row;
+		private byte[] previous;
+
+		PngWriter(OutputStream out, int width, int height) throws IOException {
+			this.out = new DataOutputStream(out);
+			row = new byte[1 + 3 * width];
+			previous = new byte[1 + 3 * width];
+			this.out.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r',
+					'\n', 0x1A, '\n' });
+			byte[] header = new byte[13];
+			putInt(header, 0, width);
+			putInt(header, 4, height);
+			header[8] = 8; // bit depth
+			header[9] = 2; // RGB
+			writeChunk("IHDR", header, header.length);
+			deflater = new DeflaterOutputStream(new ChunkStream(), def,
+					CHUNK_SIZE);
+		}
+
+		/**
+		 * Write the given number of rows from tiles which lie side by side.
+		 */
+		void writeBand(List<BufferedImage> tiles, int rows) throws IOException {
+			for (int r = 0; r < rows; r++) {
+				int i = 1;
+				for (BufferedImage tile : tiles) {
+					int[] pixels = ((DataBufferInt) tile.getRaster()
+							.getDataBuffer()).getData();
+					int w = tile.getWidth();
+					for (int p = r * w, end = p + w; p < end; p++) {
+						int rgb = pixels[p];
+						row[i++] = (byte) (rgb >> 16);
+						row[i++] = (byte) (rgb >> 8);
+						row[i++] = (byte) rgb;
+					}
+				}
+				byte[] filtered = previous;
+				filtered[0] = 2; // the Up filter
+				for (int b = 1; b < row.length; b++)
+					filtered[b] = (byte) (row[b] - filtered[b]);
+				deflater.write(filtered);
+				// filtered now holds garbage; keep this row as the previous
+				previous = row;
+				row = filtered;
+			}
+		}
+
+		void finish() throws IOException {
+			deflater.finish();
+			def.end();
+			writeChunk("IEND", new byte[0], 0);
+			out.flush();
+		}
+
+		private void writeChunk(String type, byte[] data, int length)
+				throws IOException {
+			byte[] typeBytes = type.getBytes("US-ASCII");
+			CRC32 crc = new CRC32();
+			crc.update(typeBytes);
+			crc.update(data, 0, length);
+			out.writeInt(length);
+			out.write(typeBytes);
+			out.write(data, 0, length);
+			out.writeInt((int) crc.getValue());
+		}
+
+		private static void putInt(byte[] b, int offset, int value) {
+			b[offset] = (byte) (value >>> 24);
+			b[offset + 1] = (byte) (value >>> 16);
+			b[offset + 2] = (byte) (value >>> 8);
+			b[offset + 3] = (byte) value;
+		}
+
+		/**
+		 * Turns whatever the deflater writes into IDAT chunks.
+		 */
+		private class ChunkStream extends OutputStream {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int offset, int length)
+					throws IOException {
+				if (length == 0)
+					return;
+				if (offset == 0) {
+					writeChunk("IDAT", b, length);
+				} else {
+					byte[] copy = new byte[length];
+					System.arraycopy(b, offset, copy, 0, length);
+					writeChunk("IDAT", copy, length);
+				}
+			}
+		}
+	}
+}
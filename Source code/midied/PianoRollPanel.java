@@ -2,15 +2,31 @@ package midied;
 
 import javax.sound.midi.*;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * The PianoRollPanel class deals with the editing and graphical representation
@@ -27,17 +43,40 @@ public final class PianoRollPanel extends JPanel {
 	// Useful colour
 	private static final Color LIGHT_GREY = new Color(180, 180, 180);
 
-	// vertical zoom varies from 1-10
-	private int verticalZoom = 1;
-	private int horizontalZoom = 1;
-	private static int NOTE_HEIGHT_UNIT = 10;
-	private static int NOTE_WIDTH_UNIT = 100;
+	// zoom is continuous, between these limits
+	private static final double MIN_NOTE_HEIGHT = 3;
+	private static final double MAX_NOTE_HEIGHT = 100;
+	private static final double MIN_BEAT_WIDTH = 10;
+	private static final double MAX_BEAT_WIDTH = 2000;
+	// how much the zoom buttons zoom by
+	private static final double ZOOM_STEP = 1.25;
+	// how much one notch of the mouse wheel zooms by
+	private static final double WHEEL_ZOOM_STEP = 1.1;
+	// the playhead and the area repainted around it
+	private static final Color PLAYHEAD_COLOR = new Color(42, 75, 215);
+	// shading of the loop region
+	private static final Color LOOP_COLOR = new Color(255, 238, 51, 60);
+	private static final int PLAYHEAD_STRIP_WIDTH = 3;
+	// how far from the left edge the playhead is put when the view follows it
+	private static final int FOLLOW_MARGIN = 20;
+	// selected notes, the rubber band and notes being dragged
+	private static final Color SELECTED_COLOR = new Color(157, 175, 255);
+	private static final Color RUBBER_BAND_FILL = new Color(42, 75, 215, 40);
+	// grid lines closer than this (in pixels) are not drawn
+	private static final double MIN_LINE_SPACING = 4;
+	// the velocity labels drawn on notes
+	private static final String[] VELOCITY_LABELS = new String[128];
+	static {
+		for (int i = 0; i < VELOCITY_LABELS.length; i++)
+			VELOCITY_LABELS[i] = Integer.toString(i);
+	}
+
 	// noteHeight varies with vertical zoom
-	private int noteHeight = 10;
+	private double noteHeight = 10;
 	// beatWidth varies with horizontal zoom
-	private int beatWidth = 100;
-	// beatScaleFactor translates from panel positions to ticks
-	private float beatScaleFactor = 1f;
+	private double beatWidth = 100;
+	// tickToPixel translates from (tick, 127 - key) to panel positions
+	private AffineTransform tickToPixel = new AffineTransform();
 
 	// Ticks per beat?
 	private int resolution = 96;
@@ -47,8 +86,11 @@ public final class PianoRollPanel extends JPanel {
 			* Constants.BEATS_IN_BAR;
 
 	// The sequence that this panel displays.
-	private Sequence sequence;
+	private EditableSequence sequence;
 	private Track track;
+	private int trackIndex;
+	// converts between ticks and real time; built when the sequence is set
+	private TempoMap tempoMap = new TempoMap(Constants.DEFAULT_RESOLUTION);
 	private int noteChannel = Constants.DEFAULT_NOTE_CHANNEL;
 	private int noteVelocity = Constants.DEFAULT_NOTE_VELOCITY;
 	private int noteLength = Constants.DEFAULT_NOTE_LENGTH;
@@ -58,6 +100,39 @@ public final class PianoRollPanel extends JPanel {
 	private boolean[] ignoreChannel = new boolean[16];
 	private MidiEvent[] programEvent = new MidiEvent[16];
 
+	// the displayed notes, sorted by start tick
+	private NoteIndex notes = new NoteIndex();
+	// counts the displayed notes for the overview strip
+	private DensityPyramid density = new DensityPyramid(resolution / 4);
+	private OverviewPanel overview;
+	// plays notes as they are clicked
+	private SoundOutput soundOutput;
+	// microseconds per quarter note when auditioning
+	private static final long AUDITION_TEMPO = 500000;
+
+	// the selected notes, each of which has its selected flag set
+	private final ArrayList<Note> selection = new ArrayList<Note>();
+	// where a rubber band selection was started, and its current area
+	private Point rubberBandStart;
+	private Rectangle rubberBand;
+	// where the selection was grabbed, and how far it has been dragged
+	private Point dragStart;
+	private long dragTicks;
+	private int dragKeys;
+
+	// the NOTE_ON of each recorded key which has not been released yet
+	private final MidiEvent[][] recordStarts = new MidiEvent[16][128];
+
+	// the tick being played, or -1 if nothing is playing
+	private long playheadTick = -1;
+	// the loop region in ticks, or -1 if there is none
+	private long loopStartTick = -1;
+	private long loopEndTick = -1;
+	// how long it takes to repaint small strips, and bigger areas
+	private final TimingStats stripPaintStats = new TimingStats(
+			"strip repaint");
+	private final TimingStats fullPaintStats = new TimingStats("full repaint");
+
 	/**
 	 * Creates a new PianoRollPanel.
 	 * 
@@ -66,12 +141,11 @@ public final class PianoRollPanel extends JPanel {
 	 */
 	public PianoRollPanel(MIDIEd inFrame) {
 		theFrame = inFrame;
-		// want to position the noteButtons manually
+		// notes are painted, not laid out
 		setLayout(null);
 		// parent paintComponent can take care of the bg
 		setBackground(Color.white);
-		setHorizontalZoom(horizontalZoom);
-		setVerticalZoom(verticalZoom);
+		updateTransform();
 
 		handleMouseInput();
 		setFocusable(true);
@@ -79,152 +153,525 @@ public final class PianoRollPanel extends JPanel {
 	} // end of PianoRollPanel constructor
 
 	/**
-	 * paintComponents method which draws the bar and note boundaries.
+	 * paintComponents method which draws the bar and note boundaries, and the
+	 * notes. Only the part of the panel inside the clip is drawn.
 	 */
 	protected void paintComponent(Graphics g) {
+		long start = System.nanoTime();
 		super.paintComponent(g);
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		paintArea(g, clip);
+		long elapsed = System.nanoTime() - start;
+		// the old and new playhead strips are usually merged into one clip
+		if (clip.width < getVisibleRect().width / 4)
+			stripPaintStats.record(elapsed);
+		else
+			fullPaintStats.record(elapsed);
+	}
+
+	/**
+	 * Draw everything but the background inside the given clip. Only reads
+	 * the state of the panel, so several threads may paint different areas
+	 * at once, as long as nothing is edited meanwhile.
+	 * 
+	 * @param g
+	 *            The graphics context.
+	 * @param clip
+	 *            The area to be drawn.
+	 */
+	void paintArea(Graphics g, Rectangle clip) {
+		paintGrid(g, clip);
+		paintNotes(g, clip);
+		paintDraggedNotes(g, clip);
+		paintRubberBand(g);
+		paintPlayhead(g, clip);
+	}
+
+	/**
+	 * Draw the playhead, if it is inside the given clip.
+	 * 
+	 * @param g
+	 *            The graphics context.
+	 * @param clip
+	 *            The area to be drawn.
+	 */
+	private void paintPlayhead(Graphics g, Rectangle clip) {
+		if (playheadTick < 0)
+			return;
+		int x = tickToX(playheadTick);
+		if (x < clip.x - 1 || x > clip.x + clip.width)
+			return;
+		g.setColor(PLAYHEAD_COLOR);
+		g.drawLine(x, clip.y, x, clip.y + clip.height);
+	}
+
+	/**
+	 * Move the playhead to the given tick. Only the strips around the old and
+	 * new position of the playhead are repainted, unless the playhead has left
+	 * the visible area, in which case the view is scrolled so that it follows
+	 * the playhead.
+	 * 
+	 * @param tick
+	 *            The tick being played, or -1 to hide the playhead.
+	 */
+	public void setPlayhead(long tick) {
+		if (tick == playheadTick)
+			return;
+		int height = getHeight();
+		if (playheadTick >= 0) {
+			int oldX = tickToX(playheadTick);
+			repaint(oldX - 1, 0, PLAYHEAD_STRIP_WIDTH, height);
+		}
+		playheadTick = tick;
+		if (tick < 0)
+			return;
+		int x = tickToX(tick);
+		Rectangle view = getVisibleRect();
+		if (getParent() instanceof JViewport
+				&& (x < view.x || x >= view.x + view.width)) {
+			JViewport viewport = (JViewport) getParent();
+			int maxX = Math.max(0, getWidth() - view.width);
+			int newX = Math.max(0, Math.min(maxX, x - FOLLOW_MARGIN));
+			viewport.setViewPosition(new Point(newX, view.y));
+		} else {
+			repaint(x - 1, 0, PLAYHEAD_STRIP_WIDTH, height);
+		}
+	}
+
+	/**
+	 * Set the loop region which is shaded in the panel.
+	 * 
+	 * @param startTick
+	 *            The first tick of the loop, or -1 for no loop.
+	 * @param endTick
+	 *            The tick after the last tick of the loop.
+	 */
+	public void setLoopRegion(long startTick, long endTick) {
+		loopStartTick = startTick;
+		loopEndTick = endTick;
+		repaint();
+	}
+
+	/**
+	 * Returns the time taken by repaints of narrow strips, such as the
+	 * playhead moving.
+	 * 
+	 * @return The TimingStats for strip repaints.
+	 */
+	public TimingStats getStripPaintStats() {
+		return stripPaintStats;
+	}
+
+	/**
+	 * Returns the time taken by repaints of anything wider than a strip.
+	 * 
+	 * @return The TimingStats for full repaints.
+	 */
+	public TimingStats getFullPaintStats() {
+		return fullPaintStats;
+	}
+
+	/**
+	 * Returns the number of notes displayed.
+	 * 
+	 * @return The number of notes.
+	 */
+	public int getNoteCount() {
+		return notes.size();
+	}
+
+	/**
+	 * Draw the note boundaries and the sub-beat, beat and bar boundaries
+	 * inside the given clip.
+	 * 
+	 * @param g
+	 *            The graphics context.
+	 * @param clip
+	 *            The area to be drawn.
+	 */
+	private void paintGrid(Graphics g, Rectangle clip) {
+		int displayWidth = (int) Math.min(Integer.MAX_VALUE, Math
+				.round(beatWidth * displayBeats));
+		int panelHeight = (int) Math.round(noteHeight * 128);
+		int left = clip.x;
+		int right = Math.min(clip.x + clip.width, displayWidth);
+		int top = clip.y;
+		int bottom = Math.min(clip.y + clip.height, panelHeight);
+		// the loop region
+		if (loopStartTick >= 0) {
+			int loopLeft = Math.max(left, tickToX(loopStartTick));
+			int loopRight = Math.min(right, tickToX(loopEndTick));
+			if (loopLeft < loopRight) {
+				g.setColor(LOOP_COLOR);
+				g.fillRect(loopLeft, top, loopRight - loopLeft, bottom - top);
+			}
+		}
 		// horizontal note boundaries
-		g.setColor(LIGHT_GREY);
-		for (int i = 0; i < 128; i++)
-			g.drawLine(0, i * noteHeight, displayBeats * beatWidth, i
-					* noteHeight);
+		if (noteHeight >= MIN_LINE_SPACING) {
+			g.setColor(LIGHT_GREY);
+			int firstRow = (int) (top / noteHeight);
+			int lastRow = Math.min(128, (int) (bottom / noteHeight) + 1);
+			for (int row = firstRow; row <= lastRow; row++) {
+				int y = (int) Math.round(row * noteHeight);
+				g.drawLine(left, y, right, y);
+			}
+		}
 		// Draw sub-beat, beat, bar boundaries
-		int panelHeight = noteHeight * 128;
-		int x = 0;
-		for (int bar = 0; bar < displayBeats / 4; bar++) {
-			g.setColor(Color.RED);
-			g.drawLine(x, 0, x, panelHeight);
-			x += beatWidth / 4;
-			for (int beat = 0; beat < 4; beat++) {
+		double subBeatWidth = beatWidth / 4;
+		int subBeatsInBar = 4 * Constants.BEATS_IN_BAR;
+		int first = (int) (left / subBeatWidth);
+		int last = Math.min(displayBeats * 4, (int) (right / subBeatWidth) + 1);
+		for (int subBeat = first; subBeat <= last; subBeat++) {
+			if (subBeat % subBeatsInBar == 0) {
+				if (subBeatWidth * subBeatsInBar < MIN_LINE_SPACING
+						&& subBeat % (subBeatsInBar * 8) != 0)
+					continue;
+				g.setColor(Color.RED);
+			} else if (subBeat % 4 == 0) {
+				if (beatWidth < MIN_LINE_SPACING)
+					continue;
+				g.setColor(Color.black);
+			} else {
+				if (subBeatWidth < MIN_LINE_SPACING)
+					continue;
 				g.setColor(LIGHT_GREY);
-				for (int subBeat = 1; subBeat < 4; subBeat++) {
-					g.drawLine(x, 0, x, panelHeight);
-					x += beatWidth / 4;
-				}
-				if (beat < 3) {
-					g.setColor(Color.black);
-					g.drawLine(x, 0, x, panelHeight);
-					x += beatWidth / 4;
-				}
 			}
+			int x = (int) Math.round(subBeat * subBeatWidth);
+			g.drawLine(x, top, x, bottom);
 		}
 	}
 
 	/**
-	 * Clear the graphical interface and HashMap for note buttons.
+	 * Draw the notes which overlap the given clip. Every note is placed by the
+	 * tickToPixel transform, so zooming does not touch the notes at all.
+	 * 
+	 * @param g
+	 *            The graphics context.
+	 * @param clip
+	 *            The area to be drawn.
 	 */
-	public void clear() {
-		Component[] components = getComponents();
-		for (Component c : components) {
-			if (c instanceof NoteButton)
-				remove(c);
+	private void paintNotes(Graphics g, Rectangle clip) {
+		double scaleX = tickToPixel.getScaleX();
+		double scaleY = tickToPixel.getScaleY();
+		double translateX = tickToPixel.getTranslateX();
+		double translateY = tickToPixel.getTranslateY();
+		long fromTick = (long) Math.floor((clip.x - translateX) / scaleX);
+		long toTick = (long) Math.ceil((clip.x + clip.width - translateX)
+				/ scaleX);
+		int lowestKey = 127 - (int) ((clip.y + clip.height) / scaleY);
+		int highestKey = 127 - (int) (clip.y / scaleY);
+		FontMetrics metrics = g.getFontMetrics();
+		int textHeight = metrics.getAscent();
+		for (int i = notes.firstOverlapping(fromTick); i < notes.size(); i++) {
+			Note note = notes.get(i);
+			long onTick = note.getTick();
+			if (onTick > toTick)
+				break;
+			int key = note.getKey();
+			if (note.getEndTick() < fromTick || key < lowestKey
+					|| key > highestKey)
+				continue;
+			int x = (int) Math.round(onTick * scaleX + translateX);
+			int y = (int) Math.round((127 - key) * scaleY + translateY);
+			int w = Math.max(1, (int) Math.round(note.getEndTick() * scaleX
+					+ translateX) - x);
+			int h = Math.max(1, (int) Math.round((128 - key) * scaleY
+					+ translateY) - y);
+			Color colour = Constants.CHANNEL_COLORS[note.getChannel()];
+			g.setColor(note.isSelected() ? SELECTED_COLOR : Color.white);
+			g.fillRect(x, y, w, h);
+			g.setColor(colour);
+			g.drawRect(x, y, w - 1, h - 1);
+			String label = VELOCITY_LABELS[note.getVelocity()];
+			if (h > textHeight && w > metrics.stringWidth(label) + 2)
+				g.drawString(label, x + 2, y + (h + textHeight) / 2 - 1);
 		}
+	}
+
+	/**
+	 * Draw the outlines of the selected notes where they would be put if the
+	 * mouse was released, while they are being dragged.
+	 * 
+	 * @param g
+	 *            The graphics context.
+	 * @param clip
+	 *            The area to be drawn.
+	 */
+	private void paintDraggedNotes(Graphics g, Rectangle clip) {
+		if (dragTicks == 0 && dragKeys == 0)
+			return;
+		// the notes which would be moved into the clip
+		long fromTick = (long) Math.floor(xToTick(clip.x)) - dragTicks;
+		long toTick = (long) Math.ceil(xToTick(clip.x + clip.width))
+				- dragTicks;
+		g.setColor(PLAYHEAD_COLOR);
+		for (int i = notes.firstOverlapping(fromTick); i < notes.size(); i++) {
+			Note note = notes.get(i);
+			if (note.getTick() > toTick)
+				break;
+			if (!note.isSelected() || note.getEndTick() < fromTick)
+				continue;
+			int x = tickToX(note.getTick() + dragTicks);
+			int y = (int) Math.round((127 - note.getKey() - dragKeys)
+					* noteHeight);
+			int w = Math.max(1, tickToX(note.getEndTick() + dragTicks) - x);
+			int h = Math.max(1, (int) Math.round(noteHeight));
+			g.drawRect(x, y, w - 1, h - 1);
+		}
+	}
+
+	/**
+	 * Draw the rubber band, if a selection is being made.
+	 * 
+	 * @param g
+	 *            The graphics context.
+	 */
+	private void paintRubberBand(Graphics g) {
+		if (rubberBand == null)
+			return;
+		g.setColor(RUBBER_BAND_FILL);
+		g.fillRect(rubberBand.x, rubberBand.y, rubberBand.width,
+				rubberBand.height);
+		g.setColor(PLAYHEAD_COLOR);
+		g.drawRect(rubberBand.x, rubberBand.y, rubberBand.width,
+				rubberBand.height);
+	}
+
+	/**
+	 * Returns the area covered by a note in this panel.
+	 * 
+	 * @param note
+	 *            A note.
+	 * @return The bounds of the note.
+	 */
+	private Rectangle getNoteBounds(Note note) {
+		int x = tickToX(note.getTick());
+		int y = (int) Math.round((127 - note.getKey()) * noteHeight);
+		int w = Math.max(1, tickToX(note.getEndTick()) - x);
+		return new Rectangle(x, y, w + 1, (int) Math.ceil(noteHeight) + 1);
+	}
+
+	/**
+	 * Clear the graphical interface and the index of notes.
+	 */
+	public void clear() {
+		selection.clear();
+		notes.clear();
+		density.clear();
 		repaint();
+		repaintOverview();
+	}
+
+	/**
+	 * Set the sequence displayed in this pianoRollPanel, editing its first
+	 * track.
+	 * 
+	 * @param inSequence
+	 *            A Midi Sequence object.
+	 */
+	public void setSequence(EditableSequence inSequence) {
+		setSequence(inSequence, 0);
 	}
 
 	/**
-	 * Set the sequence displayed in this pianoRollPanel.
+	 * Set the sequence displayed in this pianoRollPanel, and the track of it
+	 * which is edited.
 	 * 
 	 * @param inSequence
 	 *            A Midi Sequence object.
+	 * @param trackIndex
+	 *            The index of the track to edit.
 	 */
-	public void setSequence(Sequence inSequence) {
+	public void setSequence(EditableSequence inSequence, int trackIndex) {
 		sequence = inSequence;
-		track = sequence.getTracks()[0];
+		this.trackIndex = trackIndex;
+		track = sequence.getTracks()[trackIndex];
+		Arrays.fill(programEvent, null);
 		resolution = sequence.getResolution();
+		tempoMap = new TempoMap(sequence);
 		// assumes that the division type is PPQ
-		System.out.println(sequence.getDivisionType() == Sequence.PPQ);
-		System.out.println(sequence.getTickLength());
 		int beats = (int) (sequence.getTickLength() / resolution);
 		int bars = beats / 4 + 1;
 		if (bars < Constants.DEFAULT_NUM_BARS)
 			bars = Constants.DEFAULT_NUM_BARS;
 		setDisplayBars(bars);
-		// beatScaleFactor translates from panel positions to ticks
-		beatScaleFactor = resolution / (float) beatWidth;
+		// a bucket in the overview is a sixteenth note
+		density = new DensityPyramid(resolution / 4);
+		updateTransform();
 		findNotes();
 		update();
+		repaintOverview();
 	}
 
 	/**
-	 * Modify vertical zoom.
+	 * Modify vertical zoom, keeping the middle of the view in place.
 	 * 
 	 * @param in
 	 *            whether to zoom in or out.
 	 */
 	public void modifyVerticalZoom(boolean in) {
-		if (in && (verticalZoom < 10)) {
-			verticalZoom++;
-		} else if (!in && (verticalZoom > 1)) {
-			verticalZoom--;
-		}
-		setVerticalZoom(verticalZoom);
+		Rectangle view = getVisibleRect();
+		zoomVertically(in ? ZOOM_STEP : 1 / ZOOM_STEP, view.y + view.height
+				/ 2);
 	}
 
 	/**
-	 * Set the vertical zoom.
+	 * Zoom vertically by the given factor, keeping the key at the given
+	 * y-coordinate at the same place on screen.
 	 * 
-	 * @param zoom
-	 *            Integer representation of the zoom value (1-10, 1 is zoomed
-	 *            out completely, 10 zoomed in completely.
+	 * @param factor
+	 *            How much to multiply the note height by.
+	 * @param anchorY
+	 *            A y-coordinate in this panel.
 	 */
-	private void setVerticalZoom(int zoom) {
-		noteHeight = verticalZoom * NOTE_HEIGHT_UNIT;
-		update();
+	public void zoomVertically(double factor, int anchorY) {
+		double newHeight = clamp(noteHeight * factor, MIN_NOTE_HEIGHT,
+				MAX_NOTE_HEIGHT);
+		if (newHeight == noteHeight)
+			return;
+		double row = anchorY / noteHeight;
+		Rectangle view = getVisibleRect();
+		noteHeight = newHeight;
+		updateTransform();
+		int newY = (int) Math.round(row * noteHeight) - (anchorY - view.y);
+		zoomTo(new Point(view.x, newY));
+	}
+
+	/**
+	 * Returns the width of a beat.
+	 * 
+	 * @return The width of a beat in pixels.
+	 */
+	public double getBeatWidth() {
+		return beatWidth;
 	}
 
 	/**
-	 * Modify horizontal zoom.
+	 * Modify horizontal zoom, keeping the middle of the view in place.
 	 * 
 	 * @param in
 	 *            whether to zoom in or out.
 	 */
 	public void modifyHorizontalZoom(boolean in) {
-		if (in && (horizontalZoom < 10)) {
-			horizontalZoom++;
-		} else if (!in && (horizontalZoom > 1)) {
-			horizontalZoom--;
+		Rectangle view = getVisibleRect();
+		zoomHorizontally(in ? ZOOM_STEP : 1 / ZOOM_STEP, view.x + view.width
+				/ 2);
+	}
+
+	/**
+	 * Zoom horizontally by the given factor, keeping the tick at the given
+	 * x-coordinate at the same place on screen.
+	 * 
+	 * @param factor
+	 *            How much to multiply the beat width by.
+	 * @param anchorX
+	 *            An x-coordinate in this panel.
+	 */
+	public void zoomHorizontally(double factor, int anchorX) {
+		double newWidth = clamp(beatWidth * factor, MIN_BEAT_WIDTH,
+				MAX_BEAT_WIDTH);
+		if (newWidth == beatWidth)
+			return;
+		double tick = xToTick(anchorX);
+		Rectangle view = getVisibleRect();
+		beatWidth = newWidth;
+		updateTransform();
+		int newX = (int) Math.round(tick * tickToPixel.getScaleX())
+				- (anchorX - view.x);
+		zoomTo(new Point(newX, view.y));
+	}
+
+	/**
+	 * Resize the panel after the zoom has changed and scroll the viewport to
+	 * the given position, before anything is painted at the new size.
+	 * 
+	 * @param viewPosition
+	 *            The new top-left corner of the view.
+	 */
+	private void zoomTo(Point viewPosition) {
+		setPreferredSize();
+		if (getParent() instanceof JViewport) {
+			JViewport viewport = (JViewport) getParent();
+			Dimension size = getPreferredSize();
+			viewport.setViewSize(size);
+			Dimension extent = viewport.getExtentSize();
+			viewPosition.x = (int) clamp(viewPosition.x, 0, Math.max(0,
+					size.width - extent.width));
+			viewPosition.y = (int) clamp(viewPosition.y, 0, Math.max(0,
+					size.height - extent.height));
+			viewport.setViewPosition(viewPosition);
 		}
-		setHorizontalZoom(horizontalZoom);
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Recompute the transform from ticks and keys to panel positions.
+	 */
+	private void updateTransform() {
+		tickToPixel = AffineTransform.getScaleInstance(beatWidth / resolution,
+				noteHeight);
 	}
 
 	/**
-	 * Set the horizontal zoom.
+	 * Convert a tick to an x-coordinate in this panel.
 	 * 
-	 * @param zoom
-	 *            Integer representation of the zoom value (1-10, 1 is zoomed
-	 *            out completely, 10 zoomed in completely.
+	 * @param tick
+	 *            A tick.
+	 * @return The corresponding x-coordinate.
 	 */
-	private void setHorizontalZoom(int zoom) {
-		beatWidth = horizontalZoom * NOTE_WIDTH_UNIT;
-		beatScaleFactor = 100F / beatWidth;
-		update();
+	public int tickToX(long tick) {
+		return (int) Math.round(tick * tickToPixel.getScaleX()
+				+ tickToPixel.getTranslateX());
 	}
 
 	/**
-	 * Update the displayed noteButtons.
+	 * Convert an x-coordinate in this panel to a tick.
+	 * 
+	 * @param x
+	 *            An x-coordinate.
+	 * @return The corresponding tick.
+	 */
+	public double xToTick(int x) {
+		return (x - tickToPixel.getTranslateX()) / tickToPixel.getScaleX();
+	}
+
+	/**
+	 * Convert a y-coordinate in this panel to a note-key.
+	 * 
+	 * @param y
+	 *            A y-coordinate.
+	 * @return The corresponding key (0-127).
+	 */
+	private int yToKey(int y) {
+		int row = (int) ((y - tickToPixel.getTranslateY()) / tickToPixel
+				.getScaleY());
+		return (int) clamp(127 - row, 0, 127);
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * Update the size of the panel, and redraw it.
 	 */
 	public void update() {
 		setPreferredSize();
-		// make sure the note buttons are the right size.
-		Component[] components = getComponents();
-		for (Component c : components) {
-			if (c instanceof NoteButton) {
-				NoteButton but = (NoteButton) c;
-				but.setPositionAndSize(beatScaleFactor, noteHeight);
-			}
-		}
 		revalidate();
+		repaint();
 	}
 
 	private void setPreferredSize() {
-		setPreferredSize(new Dimension(beatWidth * displayBeats,
-				noteHeight * 128));
+		long width = Math.round(beatWidth * displayBeats);
+		setPreferredSize(new Dimension((int) Math.min(width,
+				Integer.MAX_VALUE), (int) Math.round(noteHeight * 128)));
 	}
 
 	/**
-	 * Find notes in on the first track of the selected sequence. Assumes that
-	 * the sequence only has a single track, i.e. is of type 0.
+	 * Find notes in the edited track of the selected sequence.
 	 */
 	private void findNotes() {
 		// Keep a reference to the start of each note
@@ -247,7 +694,7 @@ public final class PianoRollPanel extends JPanel {
 						noteStarts[key][channel] = event;
 					// if not, check that vel is 0 (note end)
 					else if (shortMsg.getData2() == 0) {
-						addNoteButton(track, noteStarts[key][channel], event);
+						addNote(track, noteStarts[key][channel], event);
 						// get ready for new note
 						noteStarts[key][channel] = null;
 					}
@@ -256,7 +703,7 @@ public final class PianoRollPanel extends JPanel {
 					int key = shortMsg.getData1();
 					// have we seen a corresponding note on?
 					if (noteStarts[key][channel] != null) {
-						addNoteButton(track, noteStarts[key][channel], event);
+						addNote(track, noteStarts[key][channel], event);
 						// get ready for new note
 						noteStarts[key][channel] = null;
 					}
@@ -269,7 +716,7 @@ public final class PianoRollPanel extends JPanel {
 	}
 
 	/**
-	 * Add a note-button which is associated the given on- and off-events.
+	 * Add a note which is associated with the given on- and off-events.
 	 * 
 	 * @param t
 	 *            A track.
@@ -277,53 +724,505 @@ public final class PianoRollPanel extends JPanel {
 	 *            A NOTE_ON event.
 	 * @param offEvent
 	 *            A corresponding NOTE_OFF event.
+	 * @return The new note.
 	 */
-	private void addNoteButton(Track t, MidiEvent onEvent, MidiEvent offEvent) {
+	private Note addNote(Track t, MidiEvent onEvent, MidiEvent offEvent) {
 		ShortMessage shortMsg = (ShortMessage) onEvent.getMessage();
-		NoteButton newNoteButton = new NoteButton(t, onEvent, offEvent,
-				shortMsg.getChannel(), shortMsg.getData1(), shortMsg.getData2());
-		newNoteButton.addActionListener(new NoteButtonListener());
-		add(newNoteButton);
+		Note note = new Note(t, onEvent, offEvent, shortMsg.getChannel(),
+				shortMsg.getData1(), shortMsg.getData2());
+		notes.add(note);
+		density.add(onEvent.getTick());
+		return note;
 	}
 
 	/**
-	 * Add a mouse listener which adds notes when the mouse is clicked anywhere
-	 * where there isn't already a note.
+	 * Add a mouse listener which plays notes which are clicked, removes notes
+	 * which are right-clicked, and adds notes when the mouse is clicked
+	 * anywhere where there isn't already a note. Clicking a note selects it,
+	 * and dragging a selected note moves the whole selection. Dragging with
+	 * Shift held down selects the notes inside a rubber band. The mouse wheel
+	 * zooms horizontally with Ctrl held down, and vertically with Ctrl and
+	 * Shift held down; otherwise it scrolls.
 	 */
 	private void handleMouseInput() {
-		addMouseListener(new MouseAdapter() {
+		MouseAdapter mouse = new MouseAdapter() {
 			public void mousePressed(MouseEvent evt) {
+				long clickNanos = System.nanoTime();
+				requestFocusInWindow();
 				int x = evt.getX();
 				int y = evt.getY();
-				addNote(x, y);
+				Note note = getNoteAt(x, y);
+				if (evt.isShiftDown() && note == null) {
+					rubberBandStart = evt.getPoint();
+					return;
+				}
+				if (note == null) {
+					clearSelection();
+					note = addNote(x, y);
+				} else if (SwingUtilities.isRightMouseButton(evt)) {
+					if (note.isSelected())
+						removeSelection();
+					else
+						removeNote(note);
+					return;
+				} else if (evt.isShiftDown()) {
+					setSelected(note, !note.isSelected());
+					repaint(getNoteBounds(note));
+				} else {
+					if (!note.isSelected()) {
+						clearSelection();
+						setSelected(note, true);
+						repaint(getNoteBounds(note));
+					}
+					dragStart = evt.getPoint();
+				}
+				audition(note, clickNanos);
+			}
+
+			public void mouseDragged(MouseEvent evt) {
+				if (rubberBandStart != null) {
+					Point p = evt.getPoint();
+					Rectangle old = rubberBand;
+					rubberBand = new Rectangle(Math.min(p.x, rubberBandStart.x),
+							Math.min(p.y, rubberBandStart.y), Math.abs(p.x
+									- rubberBandStart.x), Math.abs(p.y
+									- rubberBandStart.y));
+					Rectangle dirty = new Rectangle(rubberBand);
+					if (old != null)
+						dirty.add(old);
+					repaint(dirty.x, dirty.y, dirty.width + 1,
+							dirty.height + 1);
+				} else if (dragStart != null) {
+					// move by whole quantisation steps and whole keys
+					long ticksPerQuantum = Math.max(1, resolution * 4L
+							/ quantisationNoteLength);
+					double ticks = xToTick(evt.getX())
+							- xToTick(dragStart.x);
+					dragTicks = Math.round(ticks / ticksPerQuantum)
+							* ticksPerQuantum;
+					dragKeys = yToKey(evt.getY()) - yToKey(dragStart.y);
+					repaint();
+				}
+			}
+
+			public void mouseReleased(MouseEvent evt) {
+				if (rubberBand != null)
+					selectArea(rubberBand);
+				else if (dragStart != null && (dragTicks != 0 || dragKeys != 0))
+					moveSelection(dragTicks, dragKeys);
+				rubberBandStart = null;
+				rubberBand = null;
+				dragStart = null;
+				dragTicks = 0;
+				dragKeys = 0;
+			}
+
+			public void mouseWheelMoved(MouseWheelEvent evt) {
+				if (!evt.isControlDown()) {
+					// let the scroll pane scroll
+					Component scrollPane = SwingUtilities.getAncestorOfClass(
+							JScrollPane.class, PianoRollPanel.this);
+					if (scrollPane != null)
+						scrollPane.dispatchEvent(SwingUtilities
+								.convertMouseEvent(PianoRollPanel.this, evt,
+										scrollPane));
+					return;
+				}
+				double factor = Math.pow(WHEEL_ZOOM_STEP, -evt
+						.getPreciseWheelRotation());
+				if (evt.isShiftDown())
+					zoomVertically(factor, evt.getY());
+				else
+					zoomHorizontally(factor, evt.getX());
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+	}
+
+	/**
+	 * Add the notes inside an area of the panel to the selection. The notes
+	 * are found through the NoteIndex, so only notes near the area are
+	 * looked at.
+	 * 
+	 * @param area
+	 *            An area of the panel.
+	 */
+	private void selectArea(Rectangle area) {
+		long fromTick = (long) Math.floor(xToTick(area.x));
+		long toTick = (long) Math.ceil(xToTick(area.x + area.width));
+		int highestKey = yToKey(area.y);
+		int lowestKey = yToKey(area.y + area.height);
+		int end = notes.upperBound(toTick);
+		for (int i = notes.firstOverlapping(fromTick); i < end; i++) {
+			Note note = notes.get(i);
+			int key = note.getKey();
+			if (note.getEndTick() > fromTick && key >= lowestKey
+					&& key <= highestKey && !note.isSelected())
+				setSelected(note, true);
+		}
+		repaint();
+	}
+
+	/**
+	 * Add a note to, or remove it from, the selection.
+	 */
+	private void setSelected(Note note, boolean selected) {
+		if (note.isSelected() == selected)
+			return;
+		note.setSelected(selected);
+		if (selected)
+			selection.add(note);
+		else
+			selection.remove(note);
+	}
+
+	/**
+	 * Select every displayed note.
+	 */
+	public void selectAll() {
+		for (int i = 0; i < notes.size(); i++)
+			setSelected(notes.get(i), true);
+		repaint();
+	}
+
+	/**
+	 * Select some notes in place of the selection, and scroll so that a few
+	 * of them can be seen.
+	 * 
+	 * @param selected
+	 *            The notes to be selected.
+	 * @param shown
+	 *            The notes to be scrolled to.
+	 */
+	public void selectNotes(Collection<Note> selected, List<Note> shown) {
+		clearSelection();
+		for (Note note : selected)
+			setSelected(note, true);
+		if (!shown.isEmpty()) {
+			Rectangle area = null;
+			for (Note note : shown) {
+				int y = (int) Math.round(tickToPixel.getTranslateY()
+						+ (127 - note.getKey()) * tickToPixel.getScaleY());
+				Rectangle r = new Rectangle(tickToX(note.getTick()), y,
+						tickToX(note.getEndTick()) - tickToX(note.getTick()),
+						(int) Math.ceil(noteHeight));
+				if (area == null)
+					area = r;
+				else
+					area.add(r);
 			}
-		});
+			// leave some room around the notes
+			area.grow(FOLLOW_MARGIN, (int) Math.ceil(noteHeight) * 2);
+			scrollRectToVisible(area);
+		}
+		repaint();
+	}
+
+	/**
+	 * Returns the displayed notes.
+	 * 
+	 * @return A new list of the notes, sorted by the tick they start at.
+	 */
+	public List<Note> getNotes() {
+		List<Note> list = new ArrayList<Note>(notes.size());
+		for (int i = 0; i < notes.size(); i++)
+			list.add(notes.get(i));
+		return list;
+	}
+
+	/**
+	 * Deselect every note.
+	 */
+	public void clearSelection() {
+		if (selection.isEmpty())
+			return;
+		for (Note note : selection)
+			note.setSelected(false);
+		selection.clear();
+		repaint();
+	}
+
+	/**
+	 * Returns the selected notes.
+	 * 
+	 * @return An unmodifiable list of the selected notes.
+	 */
+	public List<Note> getSelection() {
+		return Collections.unmodifiableList(selection);
+	}
+
+	/**
+	 * Transpose the selected notes. Their messages are changed in place, so
+	 * the track keeps its order and only one repaint is needed. Nothing is
+	 * changed if any of the notes would leave the range of keys.
+	 * 
+	 * @param semitones
+	 *            How many semitones to transpose by, e.g. -12 for an octave
+	 *            down.
+	 */
+	public void transposeSelection(int semitones) {
+		if (selection.isEmpty() || semitones == 0)
+			return;
+		for (Note note : selection) {
+			int key = note.getKey() + semitones;
+			if (key < 0 || key > 127)
+				return;
+		}
+		try {
+			for (Note note : selection)
+				note.setKey(note.getKey() + semitones);
+		} catch (InvalidMidiDataException e) {
+			theFrame.reportCriticalError(e);
+		}
+		changeMade = true;
+		repaint();
+		fireStateChanged();
+	}
+
+	/**
+	 * Scale the velocity of the selected notes, keeping them between 1 and
+	 * 127.
+	 * 
+	 * @param percent
+	 *            The new velocity as a percentage of the old.
+	 */
+	public void scaleSelectionVelocity(int percent) {
+		if (selection.isEmpty() || percent == 100)
+			return;
+		try {
+			for (Note note : selection) {
+				int velocity = (note.getVelocity() * percent + 50) / 100;
+				note.setVelocity(Math.max(1, Math.min(127, velocity)));
+			}
+		} catch (InvalidMidiDataException e) {
+			theFrame.reportCriticalError(e);
+		}
+		changeMade = true;
+		repaint();
+		fireStateChanged();
 	}
 
 	/**
-	 * Add a note at the given x- and y-coordinates. This includes the button
-	 * and the associated NOTE_ON and NOTE_OFF event.
+	 * Move the selected notes in time and pitch. The move is limited so that
+	 * no note starts before the first tick or leaves the range of keys. The
+	 * track is rebuilt once for the whole selection.
+	 * 
+	 * @param ticks
+	 *            How many ticks to move the notes by.
+	 * @param keys
+	 *            How many keys to move the notes by.
+	 */
+	public void moveSelection(long ticks, int keys) {
+		if (selection.isEmpty())
+			return;
+		long firstTick = Long.MAX_VALUE;
+		int lowestKey = 127;
+		int highestKey = 0;
+		for (Note note : selection) {
+			firstTick = Math.min(firstTick, note.getTick());
+			lowestKey = Math.min(lowestKey, note.getKey());
+			highestKey = Math.max(highestKey, note.getKey());
+		}
+		ticks = Math.max(ticks, -firstTick);
+		keys = Math.max(-lowestKey, Math.min(127 - highestKey, keys));
+		if (ticks == 0) {
+			transposeSelection(keys);
+			return;
+		}
+		try {
+			for (Note note : selection) {
+				note.shift(ticks);
+				if (keys != 0)
+					note.setKey(note.getKey() + keys);
+			}
+		} catch (InvalidMidiDataException e) {
+			theFrame.reportCriticalError(e);
+		}
+		rebuildTrack();
+	}
+
+	/**
+	 * Remove the selected notes. A single note is removed from the track
+	 * directly, otherwise the track is rebuilt once without the notes'
+	 * events.
+	 */
+	public void removeSelection() {
+		if (selection.size() <= 1) {
+			if (selection.size() == 1)
+				removeNote(selection.get(0));
+			return;
+		}
+		Set<Note> removed = new HashSet<Note>(selection);
+		Set<MidiEvent> removedEvents = new HashSet<MidiEvent>();
+		for (Note note : selection) {
+			removedEvents.add(note.getOnEvent());
+			removedEvents.add(note.getOffEvent());
+			density.remove(note.getTick());
+		}
+		ArrayList<MidiEvent> events = new ArrayList<MidiEvent>(track.size());
+		for (int i = 0; i < track.size(); i++) {
+			MidiEvent event = track.get(i);
+			if (!removedEvents.contains(event))
+				events.add(event);
+		}
+		track = sequence.replaceTrack(track, events);
+		notes.removeAll(removed);
+		selection.clear();
+		for (int i = 0; i < notes.size(); i++)
+			notes.get(i).setTrack(track);
+		changeMade = true;
+		repaint();
+		repaintOverview();
+		fireStateChanged();
+	}
+
+	/**
+	 * Find the note drawn at the given position.
+	 * 
+	 * @param x
+	 *            An x-coordinate.
+	 * @param y
+	 *            A y-coordinate.
+	 * @return The note at that position, or null if there is none.
+	 */
+	private Note getNoteAt(int x, int y) {
+		return notes.find((long) Math.floor(xToTick(x)), yToKey(y));
+	}
+
+	/**
+	 * Add a note at the given x- and y-coordinates. This includes the note and
+	 * the associated NOTE_ON and NOTE_OFF event.
 	 * 
 	 * @param x
 	 *            A x-coordinate.
 	 * @param y
 	 *            A y-coordinate.
+	 * @return The new note.
 	 */
-	private void addNote(int x, int y) {
-		// subtract the reminder when diving by the length of
-		x -= x % ((double) beatWidth / quantisationNoteLength * 4);
-		int startX = x;
-		int endX = (int) (x + beatWidth * 4D / noteLength);
-		int startTime = (int) (startX * beatScaleFactor);
-		int endTime = (int) (endX * beatScaleFactor);
-		int note = 127 - y / noteHeight;
+	private Note addNote(int x, int y) {
+		// snap to the quantisation grid to the left
+		long ticksPerQuantum = Math.max(1, resolution * 4L
+				/ quantisationNoteLength);
+		long tick = (long) Math.floor(xToTick(x));
+		tick -= tick % ticksPerQuantum;
+		int startTime = (int) tick;
+		int endTime = (int) (tick + resolution * 4L / noteLength);
+		int note = yToKey(y);
 		MidiEvent onEvent = createNoteOnEvent(note, startTime);
 		MidiEvent offEvent = createNoteOffEvent(note, endTime);
-		addNoteButton(track, onEvent, offEvent);
+		Note added = addNote(track, onEvent, offEvent);
 		track.add(onEvent);
 		track.add(offEvent);
 		changeMade = true;
-		update();
+		repaint(getNoteBounds(added));
+		repaintOverview();
+		fireStateChanged();
+		return added;
+	}
+
+	/**
+	 * Add events which have been recorded, in the order they were played.
+	 * A NOTE_ON is held until its NOTE_OFF arrives, in this batch or a later
+	 * one, and the two are then added as a note. Other events are added to
+	 * the track straight away. The displayed bars are extended to cover the
+	 * events.
+	 * 
+	 * @param events
+	 *            The events, in order of their ticks.
+	 */
+	public void addRecorded(List<MidiEvent> events) {
+		if (events.isEmpty())
+			return;
+		for (MidiEvent event : events) {
+			ShortMessage msg = (ShortMessage) event.getMessage();
+			int command = msg.getCommand();
+			int channel = msg.getChannel();
+			int key = msg.getData1();
+			if (command == ShortMessage.NOTE_ON && msg.getData2() > 0) {
+				// a key struck again before it was released ends its note
+				if (recordStarts[channel][key] != null)
+					endRecordedNote(channel, key, event.getTick());
+				recordStarts[channel][key] = event;
+			} else if (command == ShortMessage.NOTE_ON
+					|| command == ShortMessage.NOTE_OFF) {
+				if (recordStarts[channel][key] != null) {
+					addRecordedNote(recordStarts[channel][key], event);
+					recordStarts[channel][key] = null;
+				}
+			} else {
+				track.add(event);
+			}
+		}
+		long last = events.get(events.size() - 1).getTick();
+		if (last >= getDisplayTicks())
+			setDisplayBars((int) (last / getBarTicks()) + 2);
+		changeMade = true;
+		repaint();
+		repaintOverview();
+		fireStateChanged();
+	}
+
+	/**
+	 * End every recorded note which is still held.
+	 * 
+	 * @param tick
+	 *            The tick at which recording stopped.
+	 */
+	public void endRecording(long tick) {
+		for (int channel = 0; channel < 16; channel++)
+			for (int key = 0; key < 128; key++)
+				if (recordStarts[channel][key] != null)
+					endRecordedNote(channel, key, tick);
+		repaint();
+		fireStateChanged();
+	}
+
+	private void endRecordedNote(int channel, int key, long tick) {
+		MidiEvent on = recordStarts[channel][key];
+		recordStarts[channel][key] = null;
+		try {
+			addRecordedNote(on, new MidiEvent(new ShortMessage(
+					ShortMessage.NOTE_OFF, channel, key, 0), Math.max(tick, on
+					.getTick() + 1)));
+		} catch (InvalidMidiDataException imde) {
+			theFrame.reportCriticalError(imde);
+		}
+	}
+
+	private void addRecordedNote(MidiEvent on, MidiEvent off) {
+		addNote(track, on, off);
+		track.add(on);
+		track.add(off);
+	}
+
+	/**
+	 * Play a note on its channel and program straight away.
+	 * 
+	 * @param note
+	 *            The note to be played.
+	 * @param clickNanos
+	 *            The System.nanoTime() at which the note was clicked.
+	 */
+	private void audition(Note note, long clickNanos) {
+		if (soundOutput == null)
+			return;
+		long ticks = note.getEndTick() - note.getTick();
+		long micros = ticks * AUDITION_TEMPO / resolution;
+		int channel = note.getChannel();
+		soundOutput.playNote(channel, getProgram(channel), note.getKey(), note
+				.getVelocity(), micros, clickNanos);
+	}
+
+	/**
+	 * Set the SoundOutput on which clicked and added notes are played.
+	 * 
+	 * @param soundOutput
+	 *            An open SoundOutput, or null for silence.
+	 */
+	public void setSoundOutput(SoundOutput soundOutput) {
+		this.soundOutput = soundOutput;
 	}
 
 	/**
@@ -353,18 +1252,22 @@ public final class PianoRollPanel extends JPanel {
 	}
 
 	/**
-	 * Remove the note associated with the given actionCommand.
+	 * Remove the given note.
 	 * 
-	 * @param but
-	 *            The NoteButton to be removed.
+	 * @param note
+	 *            The note to be removed.
 	 */
-	private void removeNote(NoteButton but) {
+	private void removeNote(Note note) {
 		// remove MidiEvents from track
-		but.remove();
+		note.remove();
 		// remove from grid
-		remove(but);
-		repaint();
+		notes.remove(note);
+		setSelected(note, false);
+		density.remove(note.getTick());
+		repaint(getNoteBounds(note));
+		repaintOverview();
 		changeMade = true;
+		fireStateChanged();
 	}
 
 	/**
@@ -386,17 +1289,27 @@ public final class PianoRollPanel extends JPanel {
 		programEvent[channel] = createProgramChangeEvent(channel, program);
 		track.add(programEvent[channel]);
 		changeMade = true;
+		fireStateChanged();
 	}
 
 	/**
-	 * NoteButtonListener which removes clicked notes.
+	 * Add a ChangeListener which is notified whenever the sequence is edited.
+	 * 
+	 * @param listener
+	 *            A ChangeListener.
 	 */
-	private class NoteButtonListener implements ActionListener {
-		public void actionPerformed(ActionEvent ev) {
-			Object source = ev.getSource();
-			if (source instanceof NoteButton)
-				removeNote((NoteButton) source);
-		}
+	public void addChangeListener(ChangeListener listener) {
+		listenerList.add(ChangeListener.class, listener);
+	}
+
+	/**
+	 * Notify the ChangeListeners that the sequence has been edited.
+	 */
+	private void fireStateChanged() {
+		ChangeEvent evt = new ChangeEvent(this);
+		for (ChangeListener listener : listenerList
+				.getListeners(ChangeListener.class))
+			listener.stateChanged(evt);
 	}
 
 	/**
@@ -499,6 +1412,101 @@ public final class PianoRollPanel extends JPanel {
 		quantisationNoteLength = noteLength;
 	}
 
+	/**
+	 * Quantise notes which have already been added. The notes are moved in
+	 * parallel over arrays of ticks, and the track is then rebuilt in one go,
+	 * so that even a very large track is quantised in a single update. Most
+	 * of the time goes on rebuilding the track, as a Track keeps a set of its
+	 * events: for a million notes moving them takes tens of milliseconds,
+	 * but a new Track takes around a second.
+	 * 
+	 * @param noteLength
+	 *            Note-length of the grid, i.e. 16 for sixteenths.
+	 * @param strength
+	 *            How far the notes are moved towards the grid, in percent.
+	 * @param swing
+	 *            Where the off-beat grid lines lie, in percent; 50 is no
+	 *            swing.
+	 * @param which
+	 *            The notes to be quantised, or null to quantise every
+	 *            displayed note.
+	 */
+	public void quantise(int noteLength, int strength, int swing,
+			Collection<Note> which) {
+		int count = which == null ? notes.size() : which.size();
+		Note[] moved = new Note[count];
+		if (which == null) {
+			for (int i = 0; i < count; i++)
+				moved[i] = notes.get(i);
+		} else {
+			which.toArray(moved);
+		}
+		long[] starts = new long[count];
+		long[] ends = new long[count];
+		for (int i = 0; i < count; i++) {
+			starts[i] = moved[i].getTick();
+			ends[i] = moved[i].getEndTick();
+		}
+		new Quantiser(resolution, noteLength, strength, swing).quantise(
+				starts, ends);
+		boolean changed = false;
+		for (int i = 0; i < count; i++) {
+			long delta = starts[i] - moved[i].getTick();
+			if (delta != 0) {
+				moved[i].shift(delta);
+				changed = true;
+			}
+		}
+		if (changed)
+			rebuildTrack();
+	}
+
+	/**
+	 * Put the events of the track back in order after notes have been moved,
+	 * by replacing the track with a new one, and re-sort the notes. If the
+	 * events are still in order only the end of the track is moved.
+	 */
+	private void rebuildTrack() {
+		int last = track.size() - 1;
+		long previous = 0;
+		boolean sorted = true;
+		for (int i = 0; i < last && sorted; i++) {
+			long tick = track.get(i).getTick();
+			sorted = tick >= previous;
+			previous = tick;
+		}
+		if (sorted) {
+			MidiEvent endOfTrack = track.get(last);
+			if (endOfTrack.getTick() < previous)
+				track.add(new MidiEvent(endOfTrack.getMessage(), previous));
+		} else {
+			ArrayList<MidiEvent> events = new ArrayList<MidiEvent>(track
+					.size());
+			for (int i = 0; i < track.size(); i++)
+				events.add(track.get(i));
+			// stable, and nearly linear as the events are nearly sorted
+			Collections.sort(events, new Comparator<MidiEvent>() {
+				public int compare(MidiEvent a, MidiEvent b) {
+					long ta = a.getTick();
+					long tb = b.getTick();
+					return ta < tb ? -1 : (ta == tb ? 0 : 1);
+				}
+			});
+			track = sequence.replaceTrack(track, events);
+		}
+		notes.sort();
+		density.clear();
+		for (int i = 0; i < notes.size(); i++) {
+			Note note = notes.get(i);
+			note.setTrack(track);
+			density.add(note.getTick());
+		}
+		changeMade = true;
+		repaint();
+		repaintOverview();
+		fireStateChanged();
+	}
+
 	/**
 	 * Set whether or not a channel should be displayed.
 	 * 
@@ -512,6 +1520,7 @@ public final class PianoRollPanel extends JPanel {
 		clear();
 		findNotes();
 		update();
+		repaintOverview();
 	}
 
 	/**
@@ -587,4 +1596,68 @@ public final class PianoRollPanel extends JPanel {
 	public int getDisplayBars() {
 		return displayBeats / Constants.BEATS_IN_BAR;
 	}
+
+	/**
+	 * Returns the index of the track which is edited.
+	 * 
+	 * @return The index of the track in the sequence.
+	 */
+	public int getTrackIndex() {
+		return trackIndex;
+	}
+
+	/**
+	 * Returns the TempoMap of the sequence, which converts between ticks and
+	 * real time.
+	 * 
+	 * @return The TempoMap.
+	 */
+	public TempoMap getTempoMap() {
+		return tempoMap;
+	}
+
+	/**
+	 * Get the number of ticks in a bar.
+	 * 
+	 * @return The length of a bar in ticks.
+	 */
+	public long getBarTicks() {
+		return (long) Constants.BEATS_IN_BAR * resolution;
+	}
+
+	/**
+	 * Get the number of ticks displayed.
+	 * 
+	 * @return The length of the displayed bars in ticks.
+	 */
+	public long getDisplayTicks() {
+		return (long) displayBeats * resolution;
+	}
+
+	/**
+	 * Get the note density of the displayed notes.
+	 * 
+	 * @return A DensityPyramid counting the start of every displayed note.
+	 */
+	public DensityPyramid getDensity() {
+		return density;
+	}
+
+	/**
+	 * Set the overview strip which is to be repainted when notes change.
+	 * 
+	 * @param overview
+	 *            An OverviewPanel showing this PianoRollPanel.
+	 */
+	public void setOverview(OverviewPanel overview) {
+		this.overview = overview;
+	}
+
+	/**
+	 * Repaint the overview strip, if there is one.
+	 */
+	private void repaintOverview() {
+		if (overview != null)
+			overview.repaint();
+	}
 } // end of GamePanel class
@@ -0,0 +1,253 @@
+package midied;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * The PlaybackTiming class measures how accurately sequences are played. A
+ * sequence of evenly spaced notes is played into a Receiver which records the
+ * System.nanoTime() at which each note arrives, and the arrival times are
+ * compared with the times at which the notes should have been played. No
+ * synthesizer is opened, so it runs on a machine without a sound card.
+ * <p>
+ * Both the SequencePlayer which the editor plays with and the system's
+ * Sequencer are measured, playing straight through and repeating a loop. For
+ * each, the delay before the first note, the mean, 99th percentile and
+ * maximum of the timing error after that, and the drift, i.e. how fast the
+ * error grows, are printed. For example
+ * 
+ * <pre>
+ * java midied.PlaybackTiming 60 2
+ * </pre>
+ * 
+ * plays each for 60 seconds, and exits with status 1 if the SequencePlayer's
+ * 99th percentile error is more than 2 ms.
+ * 
+ * @author 090010514
+ */
+public class PlaybackTiming {
+	private static final int RESOLUTION = 480;
+	private static final int BEATS_PER_MINUTE = 120;
+	// a note every 32nd note, i.e. 16 notes a second
+	private static final int STEP_TICKS = RESOLUTION / 8;
+	// the loop is repeated, so it is played for a whole run as well
+	private static final int LOOP_BARS = 2;
+	private static final long NANOS_PER_TICK = 60000000000L
+			/ BEATS_PER_MINUTE / RESOLUTION;
+	private static final int DEFAULT_SECONDS = 30;
+
+	/**
+	 * Records when each NOTE_ON arrives. Other messages, such as the channel
+	 * state sent when playback starts, are ignored.
+	 */
+	private static class RecordingReceiver implements Receiver {
+		private final long[] arrivals;
+		private final AtomicInteger count = new AtomicInteger();
+
+		RecordingReceiver(int expected) {
+			arrivals = new long[expected];
+		}
+
+		public void send(MidiMessage msg, long timeStamp) {
+			long now = System.nanoTime();
+			if (!(msg instanceof ShortMessage))
+				return;
+			ShortMessage sm = (ShortMessage) msg;
+			if (sm.getCommand() != ShortMessage.NOTE_ON || sm.getData2() == 0)
+				return;
+			int i = count.getAndIncrement();
+			if (i < arrivals.length)
+				arrivals[i] = now;
+		}
+
+		public void close() {
+		}
+
+		/**
+		 * Wait until every note has arrived, or until the time runs out.
+		 */
+		boolean await(long timeoutNanos) throws InterruptedException {
+			long end = System.nanoTime() + timeoutNanos;
+			while (count.get() < arrivals.length) {
+				if (System.nanoTime() > end)
+					return false;
+				Thread.sleep(10);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Run the measurements.
+	 * 
+	 * @param args
+	 *            The number of seconds each measurement plays for (30 by
+	 *            default), and optionally the largest 99th percentile error
+	 *            of the SequencePlayer, in milliseconds, which passes.
+	 * @throws Exception
+	 *             If the sequence can not be played.
+	 */
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_SECONDS;
+		double limitMillis = args.length > 1 ? Double.parseDouble(args[1])
+				: Double.NaN;
+		int notes = (int) (seconds * 1000000000L / (NANOS_PER_TICK * STEP_TICKS));
+		System.out.printf("%-26s %6s %9s %9s %9s %9s %11s%n", "player",
+				"notes", "start ms", "mean ms", "p99 ms", "max ms",
+				"drift ms/m");
+		double worst = 0;
+		worst = Math.max(worst, measurePlayer("SequencePlayer", notes, false));
+		worst = Math.max(worst,
+				measurePlayer("SequencePlayer loop", notes, true));
+		measureSequencer("Sequencer", notes, false);
+		measureSequencer("Sequencer loop", notes, true);
+		System.out.println("(" + loopNotes() + " notes per loop)");
+		if (!Double.isNaN(limitMillis) && worst > limitMillis) {
+			System.out.println("FAILED: SequencePlayer p99 " + worst
+					+ " ms is over " + limitMillis + " ms");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Play through a SequencePlayer, as the editor does.
+	 * 
+	 * @return The 99th percentile error in milliseconds.
+	 */
+	private static double measurePlayer(String name, int notes, boolean loop)
+			throws Exception {
+		RecordingReceiver receiver = new RecordingReceiver(notes);
+		SequencePlayer player = new SequencePlayer(receiver);
+		Sequence sequence = createSequence(loop ? loopNotes() : notes);
+		if (loop)
+			player.setLoop(0, loopTicks());
+		long start = System.nanoTime();
+		player.start(sequence, 0);
+		boolean complete = receiver.await(timeout(notes));
+		player.stop();
+		return report(name, receiver, start, complete);
+	}
+
+	/**
+	 * Play through the system's Sequencer, which is not connected to a
+	 * synthesizer.
+	 */
+	private static void measureSequencer(String name, int notes, boolean loop)
+			throws Exception {
+		RecordingReceiver receiver = new RecordingReceiver(notes);
+		Sequencer sequencer;
+		try {
+			sequencer = MidiSystem.getSequencer(false);
+			sequencer.open();
+		} catch (MidiUnavailableException mue) {
+			System.out.printf("%-26s unavailable: %s%n", name, mue.getMessage());
+			return;
+		}
+		try {
+			sequencer.getTransmitter().setReceiver(receiver);
+			sequencer.setSequence(createSequence(loop ? loopNotes() : notes));
+			if (loop) {
+				sequencer.setLoopStartPoint(0);
+				sequencer.setLoopEndPoint(loopTicks());
+				sequencer.setLoopCount(Sequencer.LOOP_CONTINUOUSLY);
+			}
+			long start = System.nanoTime();
+			sequencer.start();
+			boolean complete = receiver.await(timeout(notes));
+			sequencer.stop();
+			report(name, receiver, start, complete);
+		} finally {
+			sequencer.close();
+		}
+	}
+
+	/**
+	 * Print the timing errors of the notes which arrived.
+	 * 
+	 * @return The 99th percentile error in milliseconds.
+	 */
+	private static double report(String name, RecordingReceiver receiver,
+			long start, boolean complete) {
+		int n = Math.min(receiver.count.get(), receiver.arrivals.length);
+		if (n == 0) {
+			System.out.printf("%-26s no notes arrived%n", name);
+			return Double.POSITIVE_INFINITY;
+		}
+		long[] arrivals = receiver.arrivals;
+		// errors are measured from the first note, so that the delay before
+		// playback starts is reported on its own
+		long[] errors = new long[n];
+		double sumTime = 0, sumError = 0, sumTimeTime = 0, sumTimeError = 0;
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			long expected = i * STEP_TICKS * NANOS_PER_TICK;
+			long error = arrivals[i] - arrivals[0] - expected;
+			errors[i] = Math.abs(error);
+			total += errors[i];
+			sumTime += expected;
+			sumError += error;
+			sumTimeTime += (double) expected * expected;
+			sumTimeError += (double) expected * error;
+		}
+		// the slope of the least squares line through the errors
+		double slope = n < 2 ? 0 : (n * sumTimeError - sumTime * sumError)
+				/ (n * sumTimeTime - sumTime * sumTime);
+		Arrays.sort(errors);
+		double p99 = errors[Math.min(n - 1, (int) Math.ceil(n * 0.99) - 1)] / 1e6;
+		System.out.printf("%-26s %6d %9.3f %9.3f %9.3f %9.3f %11.3f%s%n", name,
+				n, (arrivals[0] - start) / 1e6, total / 1e6 / n, p99,
+				errors[n - 1] / 1e6, slope * 60e3, complete ? ""
+						: " (incomplete)");
+		return p99;
+	}
+
+	private static long timeout(int notes) {
+		return notes * STEP_TICKS * NANOS_PER_TICK + 5000000000L;
+	}
+
+	private static int loopNotes() {
+		return (int) (loopTicks() / STEP_TICKS);
+	}
+
+	private static long loopTicks() {
+		return (long) LOOP_BARS * Constants.BEATS_IN_BAR * RESOLUTION;
+	}
+
+	/**
+	 * Create a sequence of notes a 32nd note apart, each half as long.
+	 */
+	private static Sequence createSequence(int notes)
+			throws InvalidMidiDataException {
+		Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+		Track track = sequence.createTrack();
+		int tempo = 60000000 / BEATS_PER_MINUTE;
+		track.add(new MidiEvent(new MetaMessage(0x51, new byte[] {
+				(byte) (tempo >> 16), (byte) (tempo >> 8), (byte) tempo }, 3),
+				0));
+		for (int i = 0; i < notes; i++) {
+			long tick = (long) i * STEP_TICKS;
+			int key = 48 + i % 24;
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0,
+					key, 100), tick));
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0,
+					key, 0), tick + STEP_TICKS / 2));
+		}
+		// the sequence lasts a whole number of steps, so that it can loop
+		track.add(new MidiEvent(new MetaMessage(0x01, new byte[0], 0),
+				(long) notes * STEP_TICKS));
+		return sequence;
+	}
+}
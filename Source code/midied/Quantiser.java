@@ -0,0 +1,122 @@
+package midied;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The Quantiser class moves notes towards a grid. It works on arrays of start
+ * and end ticks rather than on MidiEvents, and splits them into chunks which
+ * are quantised in parallel. A note is moved as a whole, so that its length
+ * does not change.
+ * 
+ * @author 090010514
+ */
+public class Quantiser {
+	// below this many notes a chunk is not split any further
+	private static final int CHUNK_SIZE = 8192;
+	// shared by every quantisation; its threads are daemons
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	// the distance between grid lines, in ticks
+	private final long gridTicks;
+	// how far to move the notes towards the grid, from 0 to 100 percent
+	private final int strength;
+	// how far every second grid line is delayed within its pair of grid
+	// lines, from 50 (straight) to 75 percent
+	private final int swing;
+
+	/**
+	 * Creates a new Quantiser.
+	 * 
+	 * @param resolution
+	 *            The resolution of the sequence in ticks per quarter note.
+	 * @param noteLength
+	 *            The note-length of the grid, i.e. 16 for sixteenths.
+	 * @param strength
+	 *            How far notes are moved towards the grid, in percent.
+	 * @param swing
+	 *            Where the off-beat grid lines lie between the on-beat ones,
+	 *            in percent; 50 is no swing.
+	 */
+	public Quantiser(int resolution, int noteLength, int strength, int swing) {
+		gridTicks = Math.max(1, resolution * 4L / noteLength);
+		this.strength = Math.max(0, Math.min(100, strength));
+		this.swing = Math.max(50, Math.min(75, swing));
+	}
+
+	/**
+	 * Quantise the notes whose start and end ticks are in the given arrays.
+	 * The arrays are changed in place.
+	 * 
+	 * @param starts
+	 *            The start tick of every note.
+	 * @param ends
+	 *            The end tick of every note, in the same order.
+	 */
+	public void quantise(long[] starts, long[] ends) {
+		if (starts.length < CHUNK_SIZE)
+			quantise(starts, ends, 0, starts.length);
+		else
+			POOL.invoke(new Chunk(starts, ends, 0, starts.length));
+	}
+
+	/**
+	 * Quantise the notes from index from (inclusive) to to (exclusive).
+	 */
+	private void quantise(long[] starts, long[] ends, int from, int to) {
+		for (int i = from; i < to; i++) {
+			long start = starts[i];
+			long delta = nearestGridTick(start) - start;
+			delta = delta * strength / 100;
+			starts[i] = start + delta;
+			ends[i] += delta;
+		}
+	}
+
+	/**
+	 * Returns the grid line nearest to the given tick, taking swing into
+	 * account.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @return The tick of the nearest grid line.
+	 */
+	public long nearestGridTick(long tick) {
+		long pair = 2 * gridTicks;
+		long first = tick / pair * pair;
+		long offBeat = first + pair * swing / 100;
+		long next = first + pair;
+		if (tick - first <= offBeat - tick)
+			return first;
+		return offBeat - tick <= next - tick ? offBeat : next;
+	}
+
+	/**
+	 * A range of notes which is split in two until it is small enough to be
+	 * quantised by one thread.
+	 */
+	private class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final long[] starts;
+		private final long[] ends;
+		private final int from;
+		private final int to;
+
+		Chunk(long[] starts, long[] ends, int from, int to) {
+			this.starts = starts;
+			this.ends = ends;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= CHUNK_SIZE) {
+				quantise(starts, ends, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Chunk(starts, ends, from, mid), new Chunk(starts,
+					ends, mid, to));
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package midied;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import javax.swing.SwingUtilities;
+
+/**
+ * The RecordingStress class checks that recording keeps up with fast playing
+ * and dense controller data. Messages are sent at a steady rate through a
+ * MidiLoopback into a MidiRecorder, while the event dispatch thread drains
+ * them into a PianoRollPanel and is made to stall now and then, as it might
+ * while painting a large sequence. It reports how many messages were sent,
+ * recorded and dropped, the largest backlog in the ring buffer, and how many
+ * bytes the sending thread allocated after the first WARM_UP messages, which
+ * should be none. For example
+ * 
+ * <pre>
+ * java midied.RecordingStress 200000 20000 200
+ * </pre>
+ * 
+ * sends 200000 messages at 20000 a second, twenty times what a MIDI cable
+ * can carry, stalling the event dispatch thread for 200 ms every second, and
+ * exits with status 1 if any message is lost or the sending thread
+ * allocated.
+ * 
+ * @author 090010514
+ */
+public class RecordingStress {
+	private static final int DEFAULT_MESSAGES = 200000;
+	private static final int DEFAULT_RATE = 20000;
+	private static final int DEFAULT_STALL_MILLIS = 200;
+	// messages sent before allocation is counted, so that loading classes
+	// and compiling the code on the way is not counted
+	private static final int WARM_UP = 20000;
+
+	/**
+	 * Run the stress test.
+	 * 
+	 * @param args
+	 *            The number of messages to send, how many to send a second,
+	 *            and how long the event dispatch thread stalls for each
+	 *            second, in milliseconds.
+	 * @throws Exception
+	 *             If the test can not be run.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		int count = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_MESSAGES;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RATE;
+		int stallMillis = args.length > 2 ? Integer.parseInt(args[2])
+				: DEFAULT_STALL_MILLIS;
+		final PianoRollPanel panel = new PianoRollPanel(null);
+		EditableSequence sequence = new EditableSequence(Sequence.PPQ,
+				Constants.DEFAULT_RESOLUTION);
+		Track track = sequence.createTrack();
+		panel.setSequence(sequence);
+		final MidiRecorder recorder = new MidiRecorder(panel);
+		final MidiLoopback loopback = new MidiLoopback();
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				recorder.start(loopback.getTransmitter(), 0, new TempoMap(
+						Constants.DEFAULT_RESOLUTION));
+			}
+		});
+
+		// every message is made up front, so sending allocates nothing
+		ShortMessage[] controllers = new ShortMessage[128];
+		ShortMessage[] noteOns = new ShortMessage[128];
+		ShortMessage[] noteOffs = new ShortMessage[128];
+		for (int i = 0; i < 128; i++) {
+			controllers[i] = new ShortMessage(ShortMessage.CONTROL_CHANGE, 0,
+					1, i);
+			noteOns[i] = new ShortMessage(ShortMessage.NOTE_ON, 1, i, 100);
+			noteOffs[i] = new ShortMessage(ShortMessage.NOTE_OFF, 1, i, 0);
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocation = null;
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			allocation = (com.sun.management.ThreadMXBean) threads;
+		long thread = Thread.currentThread().getId();
+		Thread staller = startStalling(stallMillis);
+
+		int notes = 0;
+		int maxBacklog = 0;
+		long nanosPerMessage = 1000000000L / rate;
+		long allocatedBefore = 0;
+		long start = System.nanoTime();
+		for (int sent = 0; sent < count; sent++) {
+			if (sent == WARM_UP && allocation != null)
+				allocatedBefore = allocation.getThreadAllocatedBytes(thread);
+			// a note every eighth message, and controllers in between
+			int phase = sent & 7;
+			if (phase == 0) {
+				loopback.send(noteOns[notes & 127], -1);
+			} else if (phase == 4) {
+				loopback.send(noteOffs[notes & 127], -1);
+				notes++;
+			} else {
+				loopback.send(controllers[sent & 127], -1);
+			}
+			maxBacklog = Math.max(maxBacklog, recorder.getBacklog());
+			long due = start + (sent + 1) * nanosPerMessage;
+			while (System.nanoTime() < due)
+				LockSupport.parkNanos(due - System.nanoTime());
+		}
+		long sendNanos = System.nanoTime() - start;
+		long allocated = allocation == null || count <= WARM_UP ? -1
+				: allocation.getThreadAllocatedBytes(thread) - allocatedBefore;
+		staller.interrupt();
+		staller.join();
+
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				recorder.stop();
+			}
+		});
+		int recordedControllers = 0;
+		for (int i = 0; i < track.size(); i++) {
+			MidiMessage msg = track.get(i).getMessage();
+			if (msg instanceof ShortMessage
+					&& ((ShortMessage) msg).getCommand() == ShortMessage.CONTROL_CHANGE)
+				recordedControllers++;
+		}
+		int recorded = recordedControllers + 2 * panel.getNoteCount();
+		System.out.printf("sent %d messages in %.1f s (%.0f a second)%n",
+				count, sendNanos / 1e9, count / (sendNanos / 1e9));
+		System.out.printf("recorded %d (%d notes, %d controllers), "
+				+ "dropped %d%n", recorded, panel.getNoteCount(),
+				recordedControllers, recorder.getDropped());
+		System.out.printf("event dispatch thread stalled for %d ms a second, "
+				+ "largest backlog %d messages%n", stallMillis, maxBacklog);
+		System.out.println("sending thread allocated "
+				+ (allocated < 0 ? "(unknown)" : allocated + " bytes"));
+		if (recorded != count || allocated > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Start a thread which keeps the event dispatch thread busy for a while
+	 * every second, until it is interrupted.
+	 */
+	private static Thread startStalling(final int millis) {
+		Thread staller = new Thread("stall") {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(1000 - millis);
+						SwingUtilities.invokeAndWait(new Runnable() {
+							public void run() {
+								long end = System.nanoTime() + millis
+										* 1000000L;
+								while (System.nanoTime() < end)
+									;
+							}
+						});
+					}
+				} catch (InterruptedException ie) {
+					// finished
+				} catch (InvocationTargetException ite) {
+					throw new RuntimeException(ite.getCause());
+				}
+			}
+		};
+		staller.setDaemon(true);
+		staller.start();
+		return staller;
+	}
+}
@@ -0,0 +1,243 @@
+package midied;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * The Resampler class changes the resolution of MIDI events, i.e. the number
+ * of ticks in a quarter note, so that material recorded at 480 or 960 PPQ can
+ * be merged with the editor's 96 PPQ, or the other way round. It works on a
+ * stream of events, passing them on to another Handler, or on the events of a
+ * Track in memory.
+ * <p>
+ * Every tick is moved to the nearest tick at the new resolution, with halves
+ * rounded up, so events keep their order and a note's length changes by less
+ * than one new tick; changing to a multiple of the old resolution is exact.
+ * When the resolution is lowered, a note short enough to round to nothing is
+ * kept one tick long instead: its NOTE_OFF is held back until the tick after
+ * its NOTE_ON. A NOTE_OFF ends the last NOTE_ON of its key and channel.
+ * 
+ * @author 090010514
+ */
+public class Resampler implements MidiFileScanner.Handler {
+	private final MidiFileScanner.Handler next;
+	private final int toResolution;
+	private int fromResolution;
+
+	// per channel * 128 + key: the old and new tick of the NOTE_ON of the
+	// sounding note, or -1
+	private final long[] onTicks = new long[16 * 128];
+	private final long[] newOnTicks = new long[16 * 128];
+	// NOTE_OFFs held back until heldTick, as status | data1 << 8 | data2 << 16
+	private final int[] held = new int[16 * 128];
+	private int heldCount;
+	private long heldTick;
+	private long lengthened;
+
+	/**
+	 * Creates a new Resampler.
+	 * 
+	 * @param next
+	 *            The Handler to which the events are passed on.
+	 * @param toResolution
+	 *            The new resolution, in ticks per quarter note.
+	 */
+	public Resampler(MidiFileScanner.Handler next, int toResolution) {
+		checkResolution(toResolution);
+		this.next = next;
+		this.toResolution = toResolution;
+	}
+
+	/**
+	 * Returns the number of notes which were kept one tick long, rather than
+	 * rounded to nothing.
+	 * 
+	 * @return The number of notes.
+	 */
+	public long getLengthenedNotes() {
+		return lengthened;
+	}
+
+	public void header(int format, int trackCount, int division)
+			throws IOException {
+		if ((division & 0x8000) != 0)
+			throw new IOException("SMPTE timing can not be resampled");
+		fromResolution = division;
+		if (fromResolution <= 0)
+			throw new IOException("Bad resolution: " + division);
+		next.header(format, trackCount, toResolution);
+	}
+
+	public void startTrack(int track) throws IOException {
+		Arrays.fill(onTicks, -1);
+		heldCount = 0;
+		next.startTrack(track);
+	}
+
+	public void shortMessage(long tick, int status, int data1, int data2)
+			throws IOException {
+		long t = scale(tick, fromResolution, toResolution);
+		if (heldCount > 0 && t >= heldTick)
+			releaseHeld();
+		int command = status & 0xF0;
+		int note = (status & 0x0F) * 128 + data1;
+		if (command == ShortMessage.NOTE_ON && data2 > 0) {
+			onTicks[note] = tick;
+			newOnTicks[note] = t;
+		} else if ((command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON)
+				&& onTicks[note] >= 0) {
+			boolean vanished = t <= newOnTicks[note] && tick > onTicks[note];
+			onTicks[note] = -1;
+			if (vanished) {
+				// every event so far is at t, so the note can end at t + 1
+				held[heldCount++] = status | data1 << 8 | data2 << 16;
+				heldTick = t + 1;
+				lengthened++;
+				return;
+			}
+		}
+		next.shortMessage(t, status, data1, data2);
+	}
+
+	public void metaMessage(long tick, int type, byte[] data, int length)
+			throws IOException {
+		long t = scale(tick, fromResolution, toResolution);
+		if (heldCount > 0 && t >= heldTick)
+			releaseHeld();
+		next.metaMessage(t, type, data, length);
+	}
+
+	public void sysexMessage(long tick, int status, byte[] data, int length)
+			throws IOException {
+		long t = scale(tick, fromResolution, toResolution);
+		if (heldCount > 0 && t >= heldTick)
+			releaseHeld();
+		next.sysexMessage(t, status, data, length);
+	}
+
+	public void endTrack(long tick) throws IOException {
+		long t = scale(tick, fromResolution, toResolution);
+		if (heldCount > 0) {
+			t = Math.max(t, heldTick);
+			releaseHeld();
+		}
+		next.endTrack(t);
+	}
+
+	/**
+	 * Pass on the NOTE_OFFs which have been held back.
+	 */
+	private void releaseHeld() throws IOException {
+		for (int i = 0; i < heldCount; i++)
+			next.shortMessage(heldTick, held[i] & 0xFF, held[i] >> 8 & 0xFF,
+					held[i] >> 16 & 0xFF);
+		heldCount = 0;
+	}
+
+	/**
+	 * Change the resolution of a tick.
+	 * 
+	 * @param tick
+	 *            A tick at the old resolution.
+	 * @param from
+	 *            The old resolution.
+	 * @param to
+	 *            The new resolution.
+	 * @return The nearest tick at the new resolution, with halves rounded up.
+	 */
+	public static long scale(long tick, int from, int to) {
+		return (tick * to * 2 + from) / (from * 2L);
+	}
+
+	/**
+	 * Change the resolution of many ticks, in place. The loop does nothing
+	 * but arithmetic on an array, so that it is as fast as it can be; a
+	 * change to a multiple of the old resolution is a single multiplication.
+	 * 
+	 * @param ticks
+	 *            Ticks at the old resolution.
+	 * @param n
+	 *            How many of them to change.
+	 * @param from
+	 *            The old resolution.
+	 * @param to
+	 *            The new resolution.
+	 */
+	public static void scale(long[] ticks, int n, int from, int to) {
+		if (to % from == 0) {
+			long factor = to / from;
+			for (int i = 0; i < n; i++)
+				ticks[i] *= factor;
+		} else {
+			long twiceTo = to * 2L;
+			long twiceFrom = from * 2L;
+			for (int i = 0; i < n; i++)
+				ticks[i] = (ticks[i] * twiceTo + from) / twiceFrom;
+		}
+	}
+
+	/**
+	 * Change the resolution of the events of a track, in place. The ticks are
+	 * copied into an array, changed there with scale(), and set again. A
+	 * NOTE_OFF which is held back may then come after events it came before,
+	 * in which case the track is no longer in order.
+	 * 
+	 * @param track
+	 *            A track.
+	 * @param from
+	 *            The old resolution.
+	 * @param to
+	 *            The new resolution.
+	 * @return Whether the events must be sorted again.
+	 */
+	public static boolean resample(Track track, int from, int to) {
+		checkResolution(from);
+		checkResolution(to);
+		int n = track.size();
+		long[] ticks = new long[n];
+		for (int i = 0; i < n; i++)
+			ticks[i] = track.get(i).getTick();
+		long[] oldTicks = to < from ? ticks.clone() : null;
+		scale(ticks, n, from, to);
+		boolean unsorted = false;
+		if (oldTicks != null) {
+			// only lowering the resolution can make a note vanish
+			int[] ons = new int[16 * 128];
+			Arrays.fill(ons, -1);
+			for (int i = 0; i < n; i++) {
+				MidiMessage msg = track.get(i).getMessage();
+				if (!(msg instanceof ShortMessage))
+					continue;
+				ShortMessage sm = (ShortMessage) msg;
+				int command = sm.getCommand();
+				int note = sm.getChannel() * 128 + sm.getData1();
+				if (command == ShortMessage.NOTE_ON && sm.getData2() > 0) {
+					ons[note] = i;
+				} else if ((command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON)
+						&& ons[note] >= 0) {
+					int on = ons[note];
+					ons[note] = -1;
+					if (ticks[i] <= ticks[on] && oldTicks[i] > oldTicks[on]) {
+						ticks[i] = ticks[on] + 1;
+						unsorted |= i + 1 < n && ticks[i + 1] < ticks[i];
+					}
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			MidiEvent event = track.get(i);
+			event.setTick(ticks[i]);
+		}
+		return unsorted;
+	}
+
+	private static void checkResolution(int resolution) {
+		if (resolution <= 0 || resolution > 0x7FFF)
+			throw new IllegalArgumentException("resolution: " + resolution);
+	}
+}
@@ -0,0 +1,353 @@
+package midied;
+
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * The SequencePlayer class plays a sequence by sending its events to a
+ * receiver from a thread of its own. It can repeat a loop region without any
+ * gap: the time of every event is worked out from a fixed anchor (a tick and
+ * the System.nanoTime() at which it is played), and at the end of the loop
+ * the new anchor is the exact time at which the loop ends, not the time at
+ * which the thread happened to wake up. Timing errors therefore never add up,
+ * however long the loop plays.
+ * 
+ * @author 090010514
+ */
+public class SequencePlayer implements Runnable {
+	// how long before an event the thread stops sleeping and starts yielding
+	private static final long SPIN_NANOS = 200000;
+	// delay before the first event, so that it is not late
+	private static final long START_DELAY_NANOS = 5000000;
+
+	private final Receiver receiver;
+	// the events being played; replaced when the sequence is edited
+	private volatile EventList events;
+	// the loop region in ticks, or -1 if there is none
+	private volatile long loopStart = -1;
+	private volatile long loopEnd = -1;
+	// the current anchor, used to convert between ticks and times
+	private volatile Anchor anchor;
+	// the tick the player has been asked to jump to, or -1
+	private volatile long seekTick = -1;
+	private volatile boolean running;
+	private Thread thread;
+	private long startTick;
+	// called when the end of the sequence is reached
+	private Runnable endListener;
+	// the notes which are sounding, by channel * 128 + key
+	private final boolean[] sounding = new boolean[16 * 128];
+	// reused to end sounding notes
+	private final ShortMessage offMessage = new ShortMessage();
+	// reused to send the channel state when seeking
+	private final ShortMessage chaseMessage = new ShortMessage();
+
+	/**
+	 * Creates a new SequencePlayer.
+	 * 
+	 * @param receiver
+	 *            The receiver to which events are sent.
+	 */
+	public SequencePlayer(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Start playing a sequence from the given tick. If the player is already
+	 * playing, it is stopped first. The program, controllers and pitch bend
+	 * of every channel are set to what they are at that tick.
+	 * 
+	 * @param sequence
+	 *            The sequence to be played.
+	 * @param fromTick
+	 *            The tick at which to start.
+	 */
+	public synchronized void start(Sequence sequence, long fromTick) {
+		stop();
+		events = snapshot(sequence);
+		startTick = Math.max(0, fromTick);
+		seekTick = -1;
+		running = true;
+		thread = new Thread(this, "Sequence player");
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop playing, and end all sounding notes.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread == null)
+			return;
+		LockSupport.unpark(thread);
+		if (thread != Thread.currentThread()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException ignore) {
+			}
+		}
+		thread = null;
+	}
+
+	/**
+	 * Tells if the player is playing.
+	 * 
+	 * @return Whether or not the player is playing.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Take a new snapshot of the sequence after it has been edited, and carry
+	 * on playing from the same place.
+	 * 
+	 * @param sequence
+	 *            The sequence being played.
+	 */
+	public void refresh(Sequence sequence) {
+		if (running)
+			events = snapshot(sequence);
+	}
+
+	/**
+	 * Jump to the given tick while playing. The notes which are sounding are
+	 * ended and the state of every channel at that tick is sent, using the
+	 * ChannelStateIndex, before playing carries on from there.
+	 * 
+	 * @param tick
+	 *            The tick to jump to.
+	 */
+	public void seek(long tick) {
+		if (!running)
+			return;
+		seekTick = Math.max(0, tick);
+		Thread t = thread;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/**
+	 * Take a snapshot of a sequence, including the index of channel state
+	 * and the tempo map, so that the player thread never has to build them.
+	 */
+	private static EventList snapshot(Sequence sequence) {
+		EventList list = new EventList(sequence);
+		list.getChannelState();
+		list.getTempoMap();
+		return list;
+	}
+
+	/**
+	 * Set the loop region. It may be changed while playing; a new end takes
+	 * effect if the player has not yet passed it, otherwise the player goes
+	 * back to the start of the loop at once.
+	 * 
+	 * @param start
+	 *            The first tick of the loop, or -1 for no loop.
+	 * @param end
+	 *            The tick after the last tick of the loop, or -1 for no loop.
+	 */
+	public void setLoop(long start, long end) {
+		if (start < 0 || end <= start) {
+			start = -1;
+			end = -1;
+		}
+		loopStart = start;
+		loopEnd = end;
+	}
+
+	/**
+	 * Set the Runnable which is run, on the player thread, when the end of the
+	 * sequence is reached.
+	 * 
+	 * @param endListener
+	 *            A Runnable, or null.
+	 */
+	public void setEndListener(Runnable endListener) {
+		this.endListener = endListener;
+	}
+
+	/**
+	 * Returns the tick being played at this moment.
+	 * 
+	 * @return The current tick, or -1 if the player has not started.
+	 */
+	public long getTickPosition() {
+		Anchor a = anchor;
+		if (a == null)
+			return -1;
+		long tick = a.tickAt(System.nanoTime());
+		long end = loopEnd;
+		if (end >= 0 && a.tick < end && tick > end)
+			tick = end;
+		return tick;
+	}
+
+	/**
+	 * Plays the events, until the end of the sequence is reached or the player
+	 * is stopped.
+	 */
+	public void run() {
+		EventList list = events;
+		long lastTick = startTick;
+		// how many events at lastTick have been sent
+		int sentAtLastTick = 0;
+		int index = list.lowerBound(startTick);
+		list.getChannelState().chase(startTick, receiver, chaseMessage);
+		Anchor a = new Anchor(startTick, System.nanoTime() + START_DELAY_NANOS,
+				list.tempoAt(startTick), list.getResolution());
+		anchor = a;
+		boolean finished = false;
+		while (running) {
+			long seek = seekTick;
+			if (seek >= 0) {
+				seekTick = -1;
+				list = events;
+				notesOff();
+				list.getChannelState().chase(seek, receiver, chaseMessage);
+				a = new Anchor(seek, System.nanoTime() + START_DELAY_NANOS,
+						list.tempoAt(seek), list.getResolution());
+				anchor = a;
+				index = list.lowerBound(seek);
+				lastTick = seek;
+				sentAtLastTick = 0;
+				continue;
+			}
+			if (events != list) {
+				// the sequence has been edited
+				list = events;
+				index = Math.min(list.lowerBound(lastTick) + sentAtLastTick,
+						list.lowerBound(lastTick + 1));
+			}
+			long end = loopEnd;
+			long start = loopStart;
+			long nextTick = index < list.size() ? list.getTick(index)
+					: Long.MAX_VALUE;
+			if (start >= 0 && end >= 0 && nextTick >= end) {
+				// wrap at the loop end, or straight away if the end has been
+				// moved behind the player
+				long wrapTick = Math.max(end, lastTick);
+				if (!waitUntil(a.timeOf(wrapTick)))
+					continue;
+				notesOff();
+				list.getChannelState().chase(start, receiver, chaseMessage);
+				a = new Anchor(start, a.timeOf(wrapTick), list.tempoAt(start),
+						list.getResolution());
+				anchor = a;
+				index = list.lowerBound(start);
+				lastTick = start;
+				sentAtLastTick = 0;
+				continue;
+			}
+			if (index >= list.size()) {
+				finished = true;
+				break;
+			}
+			if (!waitUntil(a.timeOf(nextTick)) || events != list)
+				continue;
+			MidiMessage msg = list.getMessage(index++);
+			if (nextTick != lastTick) {
+				lastTick = nextTick;
+				sentAtLastTick = 0;
+			}
+			sentAtLastTick++;
+			if (msg instanceof MetaMessage) {
+				if (EventList.isTempo(msg)) {
+					a = new Anchor(nextTick, a.timeOf(nextTick), EventList
+							.getTempo((MetaMessage) msg), list.getResolution());
+					anchor = a;
+				}
+			} else {
+				if (msg instanceof ShortMessage)
+					noteSent((ShortMessage) msg);
+				receiver.send(msg, -1);
+			}
+		}
+		notesOff();
+		running = false;
+		if (finished && endListener != null)
+			endListener.run();
+	}
+
+	/**
+	 * Wait until System.nanoTime() reaches the given time.
+	 * 
+	 * @return false if the player was stopped, or asked to seek, while
+	 *         waiting.
+	 */
+	private boolean waitUntil(long time) {
+		while (running && seekTick < 0) {
+			long remaining = time - System.nanoTime();
+			if (remaining <= 0)
+				return true;
+			if (remaining > SPIN_NANOS)
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			else
+				Thread.yield();
+		}
+		return false;
+	}
+
+	/**
+	 * Keep track of which notes are sounding.
+	 */
+	private void noteSent(ShortMessage msg) {
+		int command = msg.getCommand();
+		int note = msg.getChannel() * 128 + msg.getData1();
+		if (command == ShortMessage.NOTE_ON)
+			sounding[note] = msg.getData2() > 0;
+		else if (command == ShortMessage.NOTE_OFF)
+			sounding[note] = false;
+	}
+
+	/**
+	 * End every sounding note.
+	 */
+	private void notesOff() {
+		for (int note = 0; note < sounding.length; note++) {
+			if (!sounding[note])
+				continue;
+			sounding[note] = false;
+			try {
+				offMessage.setMessage(ShortMessage.NOTE_OFF, note / 128,
+						note % 128, 0);
+			} catch (InvalidMidiDataException e) {
+				continue;
+			}
+			receiver.send(offMessage, -1);
+		}
+	}
+
+	/**
+	 * An Anchor ties a tick to the System.nanoTime() at which it is played, at
+	 * a given tempo.
+	 */
+	private static final class Anchor {
+		final long tick;
+		final long nanos;
+		final double nanosPerTick;
+
+		Anchor(long tick, long nanos, int tempo, int resolution) {
+			this.tick = tick;
+			this.nanos = nanos;
+			nanosPerTick = tempo * 1000.0 / resolution;
+		}
+
+		long timeOf(long t) {
+			return nanos + Math.round((t - tick) * nanosPerTick);
+		}
+
+		long tickAt(long time) {
+			return tick + (long) Math.floor((time - nanos) / nanosPerTick);
+		}
+	}
+}
@@ -0,0 +1,566 @@
+package midied;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Patch;
+import javax.sound.midi.Soundbank;
+
+/**
+ * The SoundFont class gives access to a SoundFont 2 (.sf2) file without
+ * reading its samples. The file is memory-mapped and only the preset and
+ * instrument headers are read when it is opened. When an instrument is needed,
+ * its preset, the instruments that preset uses and their samples are copied
+ * out of the mapped file into a small SoundFont of their own, which is loaded
+ * through MidiSystem. This way only the pages holding the samples of the
+ * instruments in use are ever read from disk.
+ * 
+ * @author 090010514
+ */
+public class SoundFont {
+	// sizes of the records in the pdta chunks, in bytes
+	private static final int PHDR_SIZE = 38;
+	private static final int INST_SIZE = 22;
+	private static final int BAG_SIZE = 4;
+	private static final int MOD_SIZE = 10;
+	private static final int GEN_SIZE = 4;
+	private static final int SHDR_SIZE = 46;
+	// the generators which refer to an instrument and to a sample
+	private static final int GEN_INSTRUMENT = 41;
+	private static final int GEN_SAMPLE_ID = 53;
+	// number of zero sample points which must follow every sample
+	private static final int SAMPLE_PADDING = 46;
+	// length of the name fields
+	private static final int NAME_LENGTH = 20;
+
+	private final File file;
+	private final MappedByteBuffer map;
+	private String name;
+
+	// where each chunk's data starts in the mapped file, and its length
+	private int smpl, smplLength;
+	private int phdr, pbag, pmod, pgen, inst, ibag, imod, igen, shdr;
+	private int shdrCount;
+
+	// the preset headers, without the terminal record
+	private int presetCount;
+	private String[] presetNames;
+	// first bag of each preset, including the terminal record
+	private int[] presetBags;
+	// the index of each preset, by bank * 128 + program
+	private final Map<Integer, Integer> presetIndex = new HashMap<Integer, Integer>();
+	// first bag of each instrument, including the terminal record
+	private int instrumentCount;
+	private int[] instrumentBags;
+
+	/**
+	 * Opens a SoundFont file, maps it into memory and reads its headers.
+	 * 
+	 * @param file
+	 *            A SoundFont 2 file.
+	 * @throws IOException
+	 *             If the file can not be read, is larger than 2GB or is not a
+	 *             valid SoundFont.
+	 */
+	public SoundFont(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("SoundFont is too large: " + file);
+			// the mapping stays valid after the file is closed
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					length);
+		} finally {
+			raf.close();
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		name = file.getName();
+		readChunks();
+		readHeaders();
+	}
+
+	/**
+	 * Find the chunks of the file. Only the INFO name is read, the other
+	 * chunks are remembered by their position.
+	 */
+	private void readChunks() throws IOException {
+		if (map.limit() < 12 || !chunkId(0).equals("RIFF")
+				|| !chunkId(8).equals("sfbk"))
+			throw new IOException("Not a SoundFont: " + file);
+		int end = (int) Math.min(map.limit(), 8L + readInt(4));
+		for (int pos = 12; pos + 8 <= end; pos = next(pos)) {
+			if (!chunkId(pos).equals("LIST"))
+				continue;
+			String type = chunkId(pos + 8);
+			int listEnd = Math.min(end, pos + 8 + readInt(pos + 4));
+			for (int sub = pos + 12; sub + 8 <= listEnd; sub = next(sub)) {
+				String id = chunkId(sub);
+				int data = sub + 8;
+				int size = Math.min(readInt(sub + 4), listEnd - data);
+				if (type.equals("INFO") && id.equals("INAM"))
+					name = readName(data, size);
+				else if (type.equals("sdta") && id.equals("smpl")) {
+					smpl = data;
+					smplLength = size;
+				} else if (type.equals("pdta")) {
+					if (id.equals("phdr")) {
+						phdr = data;
+						presetCount = size / PHDR_SIZE - 1;
+					} else if (id.equals("pbag"))
+						pbag = data;
+					else if (id.equals("pmod"))
+						pmod = data;
+					else if (id.equals("pgen"))
+						pgen = data;
+					else if (id.equals("inst")) {
+						inst = data;
+						instrumentCount = size / INST_SIZE - 1;
+					} else if (id.equals("ibag"))
+						ibag = data;
+					else if (id.equals("imod"))
+						imod = data;
+					else if (id.equals("igen"))
+						igen = data;
+					else if (id.equals("shdr")) {
+						shdr = data;
+						shdrCount = size / SHDR_SIZE - 1;
+					}
+				}
+			}
+		}
+		if (phdr == 0 || pbag == 0 || pgen == 0 || inst == 0 || ibag == 0
+				|| igen == 0 || shdr == 0 || presetCount < 0
+				|| instrumentCount < 0 || shdrCount < 0)
+			throw new IOException("Not a SoundFont: " + file);
+	}
+
+	/**
+	 * Read the preset and instrument headers.
+	 */
+	private void readHeaders() {
+		presetNames = new String[presetCount];
+		presetBags = new int[presetCount + 1];
+		for (int i = 0; i <= presetCount; i++) {
+			int record = phdr + i * PHDR_SIZE;
+			presetBags[i] = readShort(record + 24);
+			if (i == presetCount)
+				break;
+			presetNames[i] = readName(record, NAME_LENGTH);
+			int program = readShort(record + 20);
+			int bank = readShort(record + 22);
+			Integer key = bank * 128 + program;
+			if (!presetIndex.containsKey(key))
+				presetIndex.put(key, i);
+		}
+		instrumentBags = new int[instrumentCount + 1];
+		for (int i = 0; i <= instrumentCount; i++)
+			instrumentBags[i] = readShort(inst + i * INST_SIZE + NAME_LENGTH);
+	}
+
+	/**
+	 * Returns the name of the SoundFont.
+	 * 
+	 * @return The name stored in the file, or the file name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the presets of the given bank, indexed by program. Nothing is
+	 * loaded until an instrument's load() method is called.
+	 * 
+	 * @param bank
+	 *            A bank number.
+	 * @return An array of 128 instruments, which is null for the programs the
+	 *         SoundFont lacks.
+	 */
+	public Preset[] getPresets(int bank) {
+		Preset[] presets = new Preset[128];
+		for (int program = 0; program < 128; program++) {
+			Integer index = presetIndex.get(bank * 128 + program);
+			if (index != null)
+				presets[program] = new Preset(this, new Patch(bank, program),
+						presetNames[index]);
+		}
+		return presets;
+	}
+
+	/**
+	 * Copy the preset with the given patch, with its instruments and samples,
+	 * into a SoundFont of its own and read it through MidiSystem.
+	 * 
+	 * @param patch
+	 *            The bank and program of a preset.
+	 * @return The instrument, ready to be loaded into a synthesizer.
+	 * @throws IOException
+	 *             If the preset is missing.
+	 * @throws InvalidMidiDataException
+	 *             If the extracted SoundFont can not be read.
+	 */
+	public Instrument loadInstrument(Patch patch) throws IOException,
+			InvalidMidiDataException {
+		Integer index = presetIndex.get(patch.getBank() * 128
+				+ patch.getProgram());
+		if (index == null)
+			throw new IOException("No preset " + patch.getBank() + ":"
+					+ patch.getProgram() + " in " + file);
+		byte[] data = extract(index);
+		Soundbank soundbank = MidiSystem
+				.getSoundbank(new ByteArrayInputStream(data));
+		Instrument[] instruments = soundbank.getInstruments();
+		if (instruments.length == 0)
+			throw new InvalidMidiDataException("Empty preset in " + file);
+		return instruments[0];
+	}
+
+	/**
+	 * Write a SoundFont which holds only the given preset.
+	 */
+	private byte[] extract(int preset) {
+		// the instruments and samples used, numbered in the order they are met
+		int[] newInstrument = new int[instrumentCount];
+		int[] newSample = new int[shdrCount];
+		Arrays.fill(newInstrument, -1);
+		Arrays.fill(newSample, -1);
+		int[] instruments = new int[instrumentCount];
+		int[] samples = new int[shdrCount];
+		int instrumentsUsed = 0;
+		int samplesUsed = 0;
+
+		int firstBag = presetBags[preset];
+		int lastBag = presetBags[preset + 1];
+		int firstGen = bagGen(pbag, firstBag);
+		int lastGen = bagGen(pbag, lastBag);
+		for (int gen = firstGen; gen < lastGen; gen++) {
+			int record = pgen + gen * GEN_SIZE;
+			int ins = readShort(record + 2);
+			if (readShort(record) == GEN_INSTRUMENT && ins < instrumentCount
+					&& newInstrument[ins] < 0) {
+				newInstrument[ins] = instrumentsUsed;
+				instruments[instrumentsUsed++] = ins;
+			}
+		}
+		int ibags = 0, igens = 0, imods = 0;
+		for (int i = 0; i < instrumentsUsed; i++) {
+			int ins = instruments[i];
+			int from = instrumentBags[ins];
+			int to = instrumentBags[ins + 1];
+			ibags += to - from;
+			imods += bagMod(ibag, to) - bagMod(ibag, from);
+			int genFrom = bagGen(ibag, from);
+			int genTo = bagGen(ibag, to);
+			igens += genTo - genFrom;
+			for (int gen = genFrom; gen < genTo; gen++) {
+				int record = igen + gen * GEN_SIZE;
+				int sample = readShort(record + 2);
+				if (readShort(record) == GEN_SAMPLE_ID && sample < shdrCount
+						&& newSample[sample] < 0) {
+					newSample[sample] = samplesUsed;
+					samples[samplesUsed++] = sample;
+				}
+			}
+		}
+		// where each sample starts in the new smpl chunk, in sample points
+		int[] sampleStart = new int[samplesUsed];
+		int[] sampleLength = new int[samplesUsed];
+		int points = 0;
+		for (int i = 0; i < samplesUsed; i++) {
+			int record = shdr + samples[i] * SHDR_SIZE + NAME_LENGTH;
+			long start = readInt(record) & 0xffffffffL;
+			long end = readInt(record + 4) & 0xffffffffL;
+			sampleStart[i] = points;
+			if (start <= end && end * 2 <= smplLength)
+				sampleLength[i] = (int) (end - start);
+			points += sampleLength[i] + SAMPLE_PADDING;
+		}
+
+		int pbags = lastBag - firstBag;
+		int pmods = bagMod(pbag, lastBag) - bagMod(pbag, firstBag);
+		int pgens = lastGen - firstGen;
+		int infoSize = 12 + 4 + 8 + padded(name.length() + 1);
+		int sdtaSize = 4 + 8 + points * 2;
+		int pdtaSize = 4 + 9 * 8 + 2 * PHDR_SIZE + (pbags + 1) * BAG_SIZE
+				+ (pmods + 1) * MOD_SIZE + (pgens + 1) * GEN_SIZE
+				+ (instrumentsUsed + 1) * INST_SIZE + (ibags + 1) * BAG_SIZE
+				+ (imods + 1) * MOD_SIZE + (igens + 1) * GEN_SIZE
+				+ (samplesUsed + 1) * SHDR_SIZE;
+		ByteBuffer out = ByteBuffer.allocate(12 + 8 + infoSize + 8 + sdtaSize
+				+ 8 + pdtaSize);
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		startChunk(out, "RIFF", out.capacity() - 8);
+		out.put(ascii("sfbk"));
+
+		startChunk(out, "LIST", infoSize);
+		out.put(ascii("INFO"));
+		startChunk(out, "ifil", 4);
+		out.putShort((short) 2);
+		out.putShort((short) 1);
+		startChunk(out, "INAM", padded(name.length() + 1));
+		out.put(ascii(name));
+		out.position(out.position() + padded(name.length() + 1)
+				- name.length());
+
+		startChunk(out, "LIST", sdtaSize);
+		out.put(ascii("sdta"));
+		startChunk(out, "smpl", points * 2);
+		ByteBuffer source = map.duplicate();
+		for (int i = 0; i < samplesUsed; i++) {
+			int record = shdr + samples[i] * SHDR_SIZE + NAME_LENGTH;
+			if (sampleLength[i] > 0) {
+				// reading these bytes pages in only this sample
+				int start = smpl + readInt(record) * 2;
+				source.limit(start + sampleLength[i] * 2);
+				source.position(start);
+				out.put(source);
+			}
+			out.position(out.position() + SAMPLE_PADDING * 2);
+		}
+
+		startChunk(out, "LIST", pdtaSize);
+		out.put(ascii("pdta"));
+		// the preset and its terminal record
+		startChunk(out, "phdr", 2 * PHDR_SIZE);
+		copy(out, phdr + preset * PHDR_SIZE, 24);
+		out.putShort((short) 0);
+		copy(out, phdr + preset * PHDR_SIZE + 26, PHDR_SIZE - 26);
+		out.put(ascii("EOP"));
+		out.position(out.position() + 21);
+		out.putShort((short) pbags);
+		out.position(out.position() + 12);
+		// the preset's zones, with the numbers of its instruments changed
+		startChunk(out, "pbag", (pbags + 1) * BAG_SIZE);
+		writeBags(out, pbag, firstBag, lastBag, 0, 0);
+		out.putShort((short) pgens);
+		out.putShort((short) pmods);
+		startChunk(out, "pmod", (pmods + 1) * MOD_SIZE);
+		int modFrom = bagMod(pbag, firstBag);
+		copy(out, pmod + modFrom * MOD_SIZE, pmods * MOD_SIZE);
+		out.position(out.position() + MOD_SIZE);
+		startChunk(out, "pgen", (pgens + 1) * GEN_SIZE);
+		writeGens(out, pgen, firstGen, lastGen, GEN_INSTRUMENT, newInstrument);
+		out.position(out.position() + GEN_SIZE);
+
+		// the instruments, and their terminal record
+		startChunk(out, "inst", (instrumentsUsed + 1) * INST_SIZE);
+		int bag = 0;
+		for (int i = 0; i < instrumentsUsed; i++) {
+			int ins = instruments[i];
+			copy(out, inst + ins * INST_SIZE, NAME_LENGTH);
+			out.putShort((short) bag);
+			bag += instrumentBags[ins + 1] - instrumentBags[ins];
+		}
+		out.put(ascii("EOI"));
+		out.position(out.position() + NAME_LENGTH - 3);
+		out.putShort((short) ibags);
+		startChunk(out, "ibag", (ibags + 1) * BAG_SIZE);
+		int gens = 0, mods = 0;
+		for (int i = 0; i < instrumentsUsed; i++) {
+			int from = instrumentBags[instruments[i]];
+			int to = instrumentBags[instruments[i] + 1];
+			writeBags(out, ibag, from, to, gens, mods);
+			gens += bagGen(ibag, to) - bagGen(ibag, from);
+			mods += bagMod(ibag, to) - bagMod(ibag, from);
+		}
+		out.putShort((short) igens);
+		out.putShort((short) imods);
+		startChunk(out, "imod", (imods + 1) * MOD_SIZE);
+		for (int i = 0; i < instrumentsUsed; i++) {
+			int from = bagMod(ibag, instrumentBags[instruments[i]]);
+			int to = bagMod(ibag, instrumentBags[instruments[i] + 1]);
+			copy(out, imod + from * MOD_SIZE, (to - from) * MOD_SIZE);
+		}
+		out.position(out.position() + MOD_SIZE);
+		startChunk(out, "igen", (igens + 1) * GEN_SIZE);
+		for (int i = 0; i < instrumentsUsed; i++) {
+			int from = bagGen(ibag, instrumentBags[instruments[i]]);
+			int to = bagGen(ibag, instrumentBags[instruments[i] + 1]);
+			writeGens(out, igen, from, to, GEN_SAMPLE_ID, newSample);
+		}
+		out.position(out.position() + GEN_SIZE);
+
+		// the sample headers, moved to their new places
+		startChunk(out, "shdr", (samplesUsed + 1) * SHDR_SIZE);
+		for (int i = 0; i < samplesUsed; i++) {
+			int record = shdr + samples[i] * SHDR_SIZE;
+			int start = readInt(record + NAME_LENGTH);
+			int shift = sampleStart[i] - start;
+			copy(out, record, NAME_LENGTH);
+			out.putInt(sampleStart[i]);
+			out.putInt(sampleStart[i] + sampleLength[i]);
+			out.putInt(readInt(record + 28) + shift);
+			out.putInt(readInt(record + 32) + shift);
+			copy(out, record + 36, 6);
+			int link = readShort(record + 42);
+			if (link < shdrCount && newSample[link] >= 0)
+				link = newSample[link];
+			else
+				link = 0;
+			out.putShort((short) link);
+			copy(out, record + 44, 2);
+		}
+		out.put(ascii("EOS"));
+		return out.array();
+	}
+
+	/**
+	 * Copy the bags from first (inclusive) to last (exclusive) with their
+	 * generator and modulator indices moved to start at the given ones.
+	 */
+	private void writeBags(ByteBuffer out, int bags, int first, int last,
+			int genStart, int modStart) {
+		int genShift = genStart - bagGen(bags, first);
+		int modShift = modStart - bagMod(bags, first);
+		for (int bag = first; bag < last; bag++) {
+			out.putShort((short) (bagGen(bags, bag) + genShift));
+			out.putShort((short) (bagMod(bags, bag) + modShift));
+		}
+	}
+
+	/**
+	 * Copy the generators from first (inclusive) to last (exclusive), giving
+	 * the generators of the given kind their new index.
+	 */
+	private void writeGens(ByteBuffer out, int gens, int first, int last,
+			int operator, int[] newIndex) {
+		for (int gen = first; gen < last; gen++) {
+			int record = gens + gen * GEN_SIZE;
+			int oper = readShort(record);
+			int amount = readShort(record + 2);
+			if (oper == operator && amount < newIndex.length)
+				amount = Math.max(0, newIndex[amount]);
+			out.putShort((short) oper);
+			out.putShort((short) amount);
+		}
+	}
+
+	/**
+	 * Returns the first generator of a bag.
+	 */
+	private int bagGen(int bags, int bag) {
+		return readShort(bags + bag * BAG_SIZE);
+	}
+
+	/**
+	 * Returns the first modulator of a bag.
+	 */
+	private int bagMod(int bags, int bag) {
+		return readShort(bags + bag * BAG_SIZE + 2);
+	}
+
+	/**
+	 * Copy length bytes of the mapped file, from the given position, to out.
+	 */
+	private void copy(ByteBuffer out, int from, int length) {
+		for (int i = 0; i < length; i++)
+			out.put(map.get(from + i));
+	}
+
+	/**
+	 * Write the header of a chunk.
+	 */
+	private static void startChunk(ByteBuffer out, String id, int size) {
+		out.put(ascii(id));
+		out.putInt(size);
+	}
+
+	/**
+	 * Returns the size of a chunk rounded up to an even number of bytes.
+	 */
+	private static int padded(int size) {
+		return (size + 1) & ~1;
+	}
+
+	/**
+	 * Returns the position of the chunk after the one at pos.
+	 */
+	private int next(int pos) {
+		return pos + 8 + padded(readInt(pos + 4));
+	}
+
+	private int readInt(int pos) {
+		return map.getInt(pos);
+	}
+
+	private int readShort(int pos) {
+		return map.getShort(pos) & 0xffff;
+	}
+
+	private String chunkId(int pos) {
+		return readName(pos, 4);
+	}
+
+	/**
+	 * Read a zero-terminated ASCII string of at most length bytes.
+	 */
+	private String readName(int pos, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			int c = map.get(pos + i) & 0xff;
+			if (c == 0)
+				break;
+			sb.append((char) c);
+		}
+		return sb.toString().trim();
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) s.charAt(i);
+		return bytes;
+	}
+
+	/**
+	 * The Preset class is an instrument of a SoundFont which has not been
+	 * loaded. It is shown in the InstrumentChooser like any other instrument,
+	 * and its samples are read by the InstrumentCache when it is chosen.
+	 * 
+	 * @author 090010514
+	 */
+	public static class Preset extends Instrument {
+		private final SoundFont soundFont;
+
+		private Preset(SoundFont soundFont, Patch patch, String name) {
+			super(null, patch, name, null);
+			this.soundFont = soundFont;
+		}
+
+		/**
+		 * Read the instrument's samples from the SoundFont.
+		 * 
+		 * @return An instrument which can be loaded into a synthesizer.
+		 * @throws IOException
+		 *             If the preset can not be read.
+		 * @throws InvalidMidiDataException
+		 *             If the preset is invalid.
+		 */
+		public Instrument load() throws IOException, InvalidMidiDataException {
+			return soundFont.loadInstrument(getPatch());
+		}
+
+		public Object getData() {
+			return null;
+		}
+
+		public String toString() {
+			return "Instrument: " + getName() + " bank #"
+					+ getPatch().getBank() + " preset #"
+					+ getPatch().getProgram();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package midied;
+
+import java.util.TimerTask;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * The SoundOutput class holds a synthesizer which is opened once and stays
+ * open while the editor runs. Everything that makes a sound goes through its
+ * receiver, so that single notes can be auditioned without any delay for
+ * opening a device.
+ * 
+ * @author 090010514
+ */
+public class SoundOutput {
+	// Number of messages which are reused when sending. The default
+	// synthesizer copies messages with a time-stamp and handles the others
+	// immediately, so a message can be reused as soon as send returns; a few
+	// spare ones are kept in case another receiver holds on to them briefly.
+	private static final int POOL_SIZE = 16;
+
+	private final Synthesizer synth;
+	private final Receiver receiver;
+	// the messages which are reused
+	private final ShortMessage[] pool = new ShortMessage[POOL_SIZE];
+	private int nextMessage = 0;
+	// the program last sent on each channel, or -1
+	private final int[] programs = new int[16];
+	// used to end notes if the synthesizer does not accept time-stamps
+	private java.util.Timer noteOffTimer;
+	// time from a click to the note being sent
+	private final TimingStats auditionLatency = new TimingStats(
+			"audition latency");
+
+	/**
+	 * Opens the default synthesizer.
+	 * 
+	 * @throws MidiUnavailableException
+	 *             If the Midi System is unavailable.
+	 */
+	public SoundOutput() throws MidiUnavailableException {
+		this(MidiSystem.getSynthesizer());
+	}
+
+	/**
+	 * Opens the given synthesizer, unless it is open already.
+	 * 
+	 * @param synth
+	 *            A synthesizer.
+	 * @throws MidiUnavailableException
+	 *             If it can not be opened.
+	 */
+	public SoundOutput(Synthesizer synth) throws MidiUnavailableException {
+		this.synth = synth;
+		if (!synth.isOpen())
+			synth.open();
+		receiver = synth.getReceiver();
+		for (int i = 0; i < POOL_SIZE; i++)
+			pool[i] = new ShortMessage();
+		for (int chan = 0; chan < 16; chan++)
+			programs[chan] = -1;
+	}
+
+	/**
+	 * Returns the synthesizer, which is open.
+	 * 
+	 * @return The synthesizer.
+	 */
+	public Synthesizer getSynthesizer() {
+		return synth;
+	}
+
+	/**
+	 * Returns the receiver of the synthesizer.
+	 * 
+	 * @return The receiver.
+	 */
+	public Receiver getReceiver() {
+		return receiver;
+	}
+
+	/**
+	 * Play a single note immediately, on the given channel and program.
+	 * 
+	 * @param channel
+	 *            A channel (0-15).
+	 * @param program
+	 *            The program of the channel.
+	 * @param key
+	 *            A note-key.
+	 * @param velocity
+	 *            The velocity at which the note is played.
+	 * @param durationMicros
+	 *            How long the note should sound, in microseconds.
+	 * @param startNanos
+	 *            The System.nanoTime() at which the note was asked for, e.g.
+	 *            when the mouse was clicked. Used to measure the latency.
+	 */
+	public synchronized void playNote(int channel, int program, int key,
+			int velocity, long durationMicros, long startNanos) {
+		if (programs[channel] != program) {
+			send(ShortMessage.PROGRAM_CHANGE, channel, program, 0, -1);
+			programs[channel] = program;
+		}
+		send(ShortMessage.NOTE_ON, channel, key, velocity, -1);
+		auditionLatency.record(System.nanoTime() - startNanos);
+		long now = synth.getMicrosecondPosition();
+		if (now >= 0) {
+			send(ShortMessage.NOTE_OFF, channel, key, 0, now + durationMicros);
+		} else {
+			scheduleNoteOff(channel, key, durationMicros);
+		}
+	}
+
+	/**
+	 * Forget which programs have been sent, e.g. because something else has
+	 * sent program changes to the synthesizer.
+	 */
+	public synchronized void resetPrograms() {
+		for (int chan = 0; chan < 16; chan++)
+			programs[chan] = -1;
+	}
+
+	/**
+	 * Returns how long it took from asking for a note to it being sent.
+	 * 
+	 * @return The TimingStats for auditions.
+	 */
+	public TimingStats getAuditionLatency() {
+		return auditionLatency;
+	}
+
+	/**
+	 * Closes the synthesizer.
+	 */
+	public void close() {
+		if (noteOffTimer != null)
+			noteOffTimer.cancel();
+		receiver.close();
+		synth.close();
+	}
+
+	/**
+	 * Send a short message using the next message from the pool.
+	 */
+	private void send(int command, int channel, int data1, int data2,
+			long timeStamp) {
+		ShortMessage msg = pool[nextMessage];
+		nextMessage = (nextMessage + 1) % POOL_SIZE;
+		try {
+			msg.setMessage(command, channel, data1, data2);
+		} catch (InvalidMidiDataException e) {
+			// the data comes from the editor and is always in range
+			throw new IllegalArgumentException(e);
+		}
+		receiver.send(msg, timeStamp);
+	}
+
+	/**
+	 * End a note after the given time, for synthesizers which do not accept
+	 * time-stamps.
+	 */
+	private void scheduleNoteOff(final int channel, final int key,
+			long durationMicros) {
+		if (noteOffTimer == null)
+			noteOffTimer = new java.util.Timer("Note off", true);
+		noteOffTimer.schedule(new TimerTask() {
+			public void run() {
+				synchronized (SoundOutput.this) {
+					send(ShortMessage.NOTE_OFF, channel, key, 0, -1);
+				}
+			}
+		}, Math.max(1, durationMicros / 1000));
+	}
+}
@@ -0,0 +1,258 @@
+package midied;
+
+import java.util.Arrays;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * The TempoMap class converts between ticks and real time in a sequence whose
+ * tempo changes. The tempo events are found once, when the map is built, and
+ * kept as segments sorted by tick: each segment holds the tick at which it
+ * starts, its tempo, and the time at which it starts. A conversion is a
+ * binary search for its segment followed by a multiplication, so the
+ * sequence is never scanned again.
+ * <p>
+ * The start of each segment is kept in microseconds times the resolution,
+ * which is a whole number, so later segments do not gather rounding errors
+ * however many tempo changes come before them. Of several tempo events at the
+ * same tick, the last one counts, taking the tracks in order, as it does when
+ * the sequence is played.
+ * 
+ * @author 090010514
+ */
+public class TempoMap {
+	private final int resolution;
+	// the number of segments
+	private final int size;
+	// the first tick of each segment; the first segment starts at 0
+	private final long[] ticks;
+	// the tempo of each segment, in microseconds per quarter note
+	private final int[] tempos;
+	// the start of each segment, in microseconds times the resolution
+	private final long[] scaledMicros;
+
+	/**
+	 * Creates a map of the tempo events in every track of a sequence.
+	 * 
+	 * @param sequence
+	 *            A sequence, whose division type is PPQ.
+	 */
+	public TempoMap(Sequence sequence) {
+		this(sequence.getResolution(), tempoEvents(sequence));
+	}
+
+	/**
+	 * Creates a map of the tempo events in an EventList.
+	 * 
+	 * @param events
+	 *            The events of a sequence.
+	 */
+	public TempoMap(EventList events) {
+		this(events.getResolution(), tempoEvents(events));
+	}
+
+	/**
+	 * Creates a map of a sequence without tempo events, which plays at
+	 * EventList.DEFAULT_TEMPO throughout.
+	 * 
+	 * @param resolution
+	 *            The ticks per quarter note.
+	 */
+	public TempoMap(int resolution) {
+		this(resolution, new long[0]);
+	}
+
+	/**
+	 * Creates a map from tempo events packed by pack(), in order of their
+	 * ticks.
+	 */
+	private TempoMap(int resolution, long[] events) {
+		this.resolution = Math.max(1, resolution);
+		ticks = new long[events.length + 1];
+		tempos = new int[events.length + 1];
+		scaledMicros = new long[events.length + 1];
+		tempos[0] = EventList.DEFAULT_TEMPO;
+		int n = 1;
+		for (long event : events) {
+			long tick = event >>> 24;
+			int tempo = (int) event & 0xFFFFFF;
+			if (tick == ticks[n - 1]) {
+				// a later event at the same tick replaces the segment
+				tempos[n - 1] = tempo;
+				if (n > 1 && tempos[n - 2] == tempo)
+					n--;
+			} else if (tempo != tempos[n - 1]) {
+				ticks[n] = tick;
+				tempos[n] = tempo;
+				scaledMicros[n] = scaledMicros[n - 1]
+						+ (tick - ticks[n - 1]) * tempos[n - 1];
+				n++;
+			}
+		}
+		size = n;
+	}
+
+	/**
+	 * Find the tempo events of every track, in order of their ticks.
+	 */
+	private static long[] tempoEvents(Sequence sequence) {
+		long[] events = new long[0];
+		for (Track track : sequence.getTracks()) {
+			long[] found = new long[0];
+			int n = 0;
+			for (int e = 0; e < track.size(); e++) {
+				MidiEvent event = track.get(e);
+				MidiMessage msg = event.getMessage();
+				if (!EventList.isTempo(msg))
+					continue;
+				if (n == found.length)
+					found = Arrays.copyOf(found, Math.max(16, n * 2));
+				found[n++] = pack(event.getTick(), (MetaMessage) msg);
+			}
+			if (n > 0)
+				events = merge(events, Arrays.copyOf(found, n));
+		}
+		return events;
+	}
+
+	/**
+	 * Find the tempo events of an EventList, which are in order already.
+	 */
+	private static long[] tempoEvents(EventList list) {
+		long[] events = new long[16];
+		int n = 0;
+		for (int i = 0; i < list.size(); i++) {
+			MidiMessage msg = list.getMessage(i);
+			if (!EventList.isTempo(msg))
+				continue;
+			if (n == events.length)
+				events = Arrays.copyOf(events, n * 2);
+			events[n++] = pack(list.getTick(i), (MetaMessage) msg);
+		}
+		return Arrays.copyOf(events, n);
+	}
+
+	private static long pack(long tick, MetaMessage msg) {
+		return tick << 24 | EventList.getTempo(msg);
+	}
+
+	/**
+	 * Merge two sorted lists of packed events. Events from the first list
+	 * come first when the ticks are equal.
+	 */
+	private static long[] merge(long[] a, long[] b) {
+		long[] merged = new long[a.length + b.length];
+		int i = 0;
+		int j = 0;
+		int to = 0;
+		while (i < a.length && j < b.length) {
+			if (b[j] >>> 24 < a[i] >>> 24)
+				merged[to++] = b[j++];
+			else
+				merged[to++] = a[i++];
+		}
+		while (i < a.length)
+			merged[to++] = a[i++];
+		while (j < b.length)
+			merged[to++] = b[j++];
+		return merged;
+	}
+
+	/**
+	 * Returns the segment which holds the given tick.
+	 */
+	private int segmentOfTick(long tick) {
+		int lo = 0;
+		int hi = size - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (ticks[mid] <= tick)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the time at which a tick is played.
+	 * 
+	 * @param tick
+	 *            A tick, not negative.
+	 * @return The time since the start of the sequence, in microseconds,
+	 *         rounded down.
+	 */
+	public long tickToMicros(long tick) {
+		int i = segmentOfTick(tick);
+		long scaled = scaledMicros[i] + (tick - ticks[i]) * tempos[i];
+		return scaled / resolution;
+	}
+
+	/**
+	 * Returns the tick being played at a time.
+	 * 
+	 * @param micros
+	 *            The time since the start of the sequence, in microseconds,
+	 *            not negative.
+	 * @return The last tick played at or before that time.
+	 */
+	public long microsToTick(long micros) {
+		long scaled = micros * resolution;
+		int lo = 0;
+		int hi = size - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (scaledMicros[mid] <= scaled)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return ticks[lo] + (scaled - scaledMicros[lo]) / tempos[lo];
+	}
+
+	/**
+	 * Returns the tempo in effect at a tick.
+	 * 
+	 * @param tick
+	 *            A tick.
+	 * @return The tempo in microseconds per quarter note.
+	 */
+	public int getTempo(long tick) {
+		return tempos[segmentOfTick(tick)];
+	}
+
+	/**
+	 * Returns the number of segments of constant tempo.
+	 * 
+	 * @return The number of segments, at least one.
+	 */
+	public int getSegmentCount() {
+		return size;
+	}
+
+	/**
+	 * Returns the resolution of the sequence, in ticks per quarter note.
+	 * 
+	 * @return The resolution.
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Format a time as minutes, seconds and milliseconds, e.g. 1:02.500.
+	 * 
+	 * @param micros
+	 *            A time in microseconds.
+	 * @return The formatted time.
+	 */
+	public static String formatMicros(long micros) {
+		long millis = Math.max(0, micros) / 1000;
+		return String.format("%d:%02d.%03d", millis / 60000,
+				millis / 1000 % 60, millis % 1000);
+	}
+}
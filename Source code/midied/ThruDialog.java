@@ -0,0 +1,122 @@
+package midied;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+/**
+ * Lets the user choose which channel of the synthesizer each channel of the
+ * MIDI input is played on, and whether the instruments chosen for the
+ * channels are played rather than the programs the input asks for.
+ * 
+ * @author 090010514
+ */
+public class ThruDialog extends JDialog implements ActionListener {
+	private static final Dimension LABEL_DIMENSION = new Dimension(63 + 7, 16);
+	private static final long serialVersionUID = 1L;
+	private static final String OK = "OK";
+	private static final String CANCEL = "Cancel";
+
+	private JComboBox<Integer>[] comboBoxes;
+	private JCheckBox programBox;
+	private MidiThru thru;
+	private MIDIEd theFrame;
+
+	/**
+	 * Create a new ThruDialog.
+	 * 
+	 * @param theFrame
+	 *            The MIDIEd-frame which is this dialog's owner, i.e. input will
+	 *            not be accepted into the frame while this dialog is open.
+	 * @param thru
+	 *            The MidiThru whose channels are to be chosen.
+	 */
+	public ThruDialog(MIDIEd theFrame, MidiThru thru) {
+		super(theFrame, "MIDI Thru", true);
+		this.theFrame = theFrame;
+		this.thru = thru;
+		makeGUI();
+		pack();
+		setLocationRelativeTo(theFrame);
+	}
+
+	/**
+	 * Creates a label (the input's channel) and a combo-box (the
+	 * synthesizer's channel) for each of the 16 channels, a check-box to play
+	 * the chosen instruments, and two buttons: OK and Cancel.
+	 */
+	private void makeGUI() {
+		JPanel channels = new JPanel();
+		channels.setLayout(new BoxLayout(channels, BoxLayout.Y_AXIS));
+
+		Integer[] choices = new Integer[16];
+		for (int chan = 0; chan < 16; chan++)
+			choices[chan] = chan;
+		// an array of a generic type cannot be created directly
+		@SuppressWarnings("unchecked")
+		JComboBox<Integer>[] boxes = (JComboBox<Integer>[]) new JComboBox<?>[16];
+		comboBoxes = boxes;
+		for (int chan = 0; chan < 16; chan++) {
+			JPanel channelPanel = new JPanel();
+			channelPanel
+					.setLayout(new BoxLayout(channelPanel, BoxLayout.X_AXIS));
+			JLabel label = new JLabel("Channel " + chan);
+			label.setPreferredSize(LABEL_DIMENSION);
+			channelPanel.add(label);
+			channelPanel.add(new JLabel("plays on "));
+			JComboBox<Integer> cb = new JComboBox<Integer>(choices);
+			cb.setSelectedIndex(thru.getChannel(chan));
+			channelPanel.add(cb);
+			comboBoxes[chan] = cb;
+			channels.add(channelPanel);
+		}
+		programBox = new JCheckBox("Play the chosen instruments");
+		programBox.setSelected(thru.isOverridingPrograms());
+		channels.add(programBox);
+		add(channels, BorderLayout.CENTER);
+		JPanel buttonPanel = new JPanel();
+		JButton okButton = new JButton(OK);
+		okButton.setActionCommand(OK);
+		okButton.setMnemonic('O');
+		okButton.addActionListener(this);
+		JButton cancelButton = new JButton(CANCEL);
+		cancelButton.setActionCommand(CANCEL);
+		cancelButton.setMnemonic('C');
+		cancelButton.addActionListener(this);
+		buttonPanel.add(okButton);
+		buttonPanel.add(cancelButton);
+		add(buttonPanel, BorderLayout.SOUTH);
+	}
+
+	/**
+	 * If the OK button is pressed the channels are given to the editor, and
+	 * then the window is disposed of. If the Cancel button is pressed the
+	 * window is disposed.
+	 */
+	public void actionPerformed(ActionEvent evt) {
+		String ac = evt.getActionCommand();
+		if (ac == OK) {
+			int[] channels = new int[16];
+			for (int chan = 0; chan < 16; chan++)
+				channels[chan] = comboBoxes[chan].getItemAt(comboBoxes[chan]
+						.getSelectedIndex());
+			theFrame.setThruRouting(channels, programBox.isSelected());
+		}
+		// close window if OK or Cancel was pressed
+		dispose();
+	}
+
+	public static void show(MIDIEd midied, MidiThru thru) {
+		ThruDialog td = new ThruDialog(midied, thru);
+		td.setVisible(true);
+	}
+}
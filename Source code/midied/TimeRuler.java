@@ -0,0 +1,121 @@
+package midied;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import javax.swing.JComponent;
+
+/**
+ * The TimeRuler class is shown above the PianoRollPanel and numbers its bars.
+ * When there is room, the time at which each numbered bar is played is shown
+ * too, from the TempoMap of the sequence. Clicking in the ruler seeks to the
+ * clicked tick, and dragging scrubs through the sequence.
+ * 
+ * @author 090010514
+ */
+public class TimeRuler extends JComponent {
+	private static final long serialVersionUID = 1L;
+	private static final int HEIGHT = 18;
+	// bar numbers closer than this (in pixels) are left out
+	private static final int MIN_LABEL_SPACING = 30;
+	// times are only shown when bar numbers are at least this far apart
+	private static final int MIN_TIME_SPACING = 90;
+	private static final Color TIME_COLOR = new Color(100, 100, 100);
+
+	private final PianoRollPanel pianoRollPanel;
+	private final MIDIEd theFrame;
+
+	/**
+	 * Creates a new TimeRuler.
+	 * 
+	 * @param theFrame
+	 *            The frame which is told to seek when the ruler is clicked.
+	 * @param pianoRollPanel
+	 *            The PianoRollPanel below the ruler.
+	 */
+	public TimeRuler(MIDIEd theFrame, PianoRollPanel pianoRollPanel) {
+		this.theFrame = theFrame;
+		this.pianoRollPanel = pianoRollPanel;
+		setOpaque(true);
+		setBackground(new Color(235, 235, 235));
+		// follow the width of the piano roll as it is zoomed
+		pianoRollPanel.addComponentListener(new ComponentAdapter() {
+			public void componentResized(ComponentEvent evt) {
+				revalidate();
+				repaint();
+			}
+		});
+		MouseAdapter mouse = new MouseAdapter() {
+			public void mousePressed(MouseEvent evt) {
+				seek(evt.getX());
+			}
+
+			public void mouseDragged(MouseEvent evt) {
+				seek(evt.getX());
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+	}
+
+	/**
+	 * The ruler is as wide as the PianoRollPanel.
+	 */
+	public Dimension getPreferredSize() {
+		return new Dimension(pianoRollPanel.getPreferredSize().width, HEIGHT);
+	}
+
+	/**
+	 * Draws a tick mark and number at the start of every bar inside the clip.
+	 */
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		long barTicks = pianoRollPanel.getBarTicks();
+		int barWidth = Math.max(1, pianoRollPanel.tickToX(barTicks));
+		// only number every few bars when zoomed out
+		int step = 1;
+		while (step * barWidth < MIN_LABEL_SPACING)
+			step *= 2;
+		FontMetrics metrics = g.getFontMetrics();
+		int firstBar = (int) (pianoRollPanel.xToTick(clip.x) / barTicks);
+		int lastBar = Math.min(pianoRollPanel.getDisplayBars(),
+				(int) (pianoRollPanel.xToTick(clip.x + clip.width) / barTicks)
+						+ 1);
+		TempoMap tempoMap = pianoRollPanel.getTempoMap();
+		boolean showTimes = step * barWidth >= MIN_TIME_SPACING;
+		for (int bar = firstBar - firstBar % step; bar <= lastBar; bar += step) {
+			int x = pianoRollPanel.tickToX(bar * barTicks);
+			g.setColor(Color.black);
+			g.drawLine(x, HEIGHT / 2, x, HEIGHT);
+			String number = Integer.toString(bar + 1);
+			g.drawString(number, x + 3, metrics.getAscent());
+			if (showTimes) {
+				g.setColor(TIME_COLOR);
+				g.drawString(TempoMap.formatMicros(tempoMap
+						.tickToMicros(bar * barTicks)), x + 3
+						+ metrics.stringWidth(number + "  "), metrics
+						.getAscent());
+			}
+		}
+		g.setColor(Color.black);
+		g.drawLine(clip.x, HEIGHT - 1, clip.x + clip.width, HEIGHT - 1);
+	}
+
+	/**
+	 * Seek to the tick at the given x-coordinate.
+	 */
+	private void seek(int x) {
+		theFrame.seek((long) Math.max(0, pianoRollPanel.xToTick(x)));
+	}
+}
@@ -0,0 +1,129 @@
+package midied;
+
+import java.util.Arrays;
+
+/**
+ * The TimingStats class accumulates a number of measured durations, so that
+ * their count, average, maximum and percentiles can be reported. Percentiles
+ * come from a histogram with a bucket per power of two nanoseconds, so they
+ * are accurate to within a factor of two, and recording stays cheap.
+ * 
+ * @author 090010514
+ */
+public class TimingStats {
+	// what is being timed
+	private final String name;
+	private long count;
+	private long totalNanos;
+	private long maxNanos;
+	// the number of durations from 2^i up to 2^(i+1) nanoseconds
+	private final long[] buckets = new long[64];
+
+	/**
+	 * Creates a new, empty TimingStats.
+	 * 
+	 * @param name
+	 *            A short description of what is being timed.
+	 */
+	public TimingStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Record a single measurement.
+	 * 
+	 * @param nanos
+	 *            A duration in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+		count++;
+		totalNanos += nanos;
+		if (nanos > maxNanos)
+			maxNanos = nanos;
+		buckets[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))]++;
+	}
+
+	/**
+	 * Forget all measurements.
+	 */
+	public synchronized void reset() {
+		count = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+		Arrays.fill(buckets, 0);
+	}
+
+	/**
+	 * Returns the number of measurements.
+	 * 
+	 * @return The number of measurements.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the average of the measurements.
+	 * 
+	 * @return The average duration in nanoseconds, or 0 if nothing has been
+	 *         measured.
+	 */
+	public synchronized long getAverageNanos() {
+		return count == 0 ? 0 : totalNanos / count;
+	}
+
+	/**
+	 * Returns the longest measurement.
+	 * 
+	 * @return The maximum duration in nanoseconds.
+	 */
+	public synchronized long getMaxNanos() {
+		return maxNanos;
+	}
+
+	/**
+	 * Returns an estimate of a percentile of the measurements: the upper
+	 * bound of the histogram bucket it falls in, but no more than the
+	 * maximum.
+	 * 
+	 * @param percent
+	 *            The percentile, e.g. 99 for the duration which 99% of the
+	 *            measurements did not exceed.
+	 * @return The duration in nanoseconds, or 0 if nothing has been measured.
+	 */
+	public synchronized long getPercentileNanos(double percent) {
+		long rank = (long) Math.ceil(count * percent / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank && seen > 0)
+				return Math.min(maxNanos, (2L << i) - 1);
+		}
+		return maxNanos;
+	}
+
+	/**
+	 * Returns the histogram of the measurements, one line per non-empty
+	 * bucket.
+	 * 
+	 * @return The histogram, in microseconds.
+	 */
+	public synchronized String getHistogram() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < buckets.length; i++)
+			if (buckets[i] > 0)
+				sb.append("< ").append((2L << i) / 1000).append(" us: ")
+						.append(buckets[i]).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * toString method which includes the count, average, 99th percentile and
+	 * maximum in microseconds.
+	 */
+	public synchronized String toString() {
+		return name + ": " + count + " x, avg " + getAverageNanos() / 1000
+				+ " us, p99 " + getPercentileNanos(99) / 1000 + " us, max "
+				+ maxNanos / 1000 + " us";
+	}
+}
@@ -0,0 +1,520 @@
+package midied;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import javax.swing.JComponent;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+
+/**
+ * The TrackLanesPanel class shows every track of a sequence as a lane, one
+ * above the other, so that the arrangement of a file with many tracks can be
+ * seen at once. A collapsed lane is a strip showing where the notes of its
+ * track are; an expanded lane shows the notes themselves. Clicking the title
+ * of a lane expands or collapses it, and double-clicking a lane edits its
+ * track in the piano roll.
+ * <p>
+ * Nothing is read from a track until its lane is painted. The strip of a
+ * lane counts the notes starting in each of THUMBNAIL_BUCKETS parts of the
+ * sequence; it is small, so it is kept once found. The notes of an expanded
+ * lane are found when it comes into view, into arrays rather than Note
+ * objects, and are kept for the lanes in view and the few painted before
+ * them only. Painting goes through the lanes in the clip only, so memory and
+ * painting time follow the lanes in view rather than the number of tracks.
+ * 
+ * @author 090010514
+ */
+public class TrackLanesPanel extends JComponent implements Scrollable {
+	private static final long serialVersionUID = 1L;
+	private static final int TITLE_HEIGHT = 18;
+	private static final int THUMBNAIL_HEIGHT = 20;
+	private static final int EXPANDED_HEIGHT = 120;
+	private static final int THUMBNAIL_BUCKETS = 512;
+	// expanded lanes whose notes are kept besides those in view
+	private static final int SPARE_LANES = 8;
+	// the fewest keys an expanded lane shows
+	private static final int MIN_KEYS = 12;
+	private static final int MIN_BAR_SPACING = 4;
+	private static final Color TITLE_COLOR = new Color(233, 233, 233);
+	private static final Color EDITED_TITLE_COLOR = new Color(157, 175, 255);
+	private static final Color BAR_COLOR = new Color(225, 225, 225);
+	private static final Color DENSITY_COLOR = new Color(42, 75, 215);
+
+	private final MIDIEd theFrame;
+	private EditableSequence sequence;
+	private Track[] tracks = new Track[0];
+	private int resolution = Constants.DEFAULT_RESOLUTION;
+	private long tickLength = 1;
+	private int editedTrack;
+	private boolean[] expanded = new boolean[0];
+	// the top of each lane, and the bottom of the last one
+	private int[] laneTops = new int[1];
+	// what the title and strip of each lane show, or null until it is painted
+	private Summary[] summaries = new Summary[0];
+	// the number of expanded lanes in view when last painted
+	private int expandedInView;
+	// the notes of expanded lanes, the lane painted longest ago first
+	private final LinkedHashMap<Integer, LaneNotes> laneNotes = new LinkedHashMap<Integer, LaneNotes>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, LaneNotes> eldest) {
+			return size() > expandedInView + SPARE_LANES;
+		}
+	};
+
+	/**
+	 * The name of a track, its number of notes, and how many of them start in
+	 * each part of the sequence.
+	 */
+	private static class Summary {
+		String name;
+		int noteCount;
+		final int[] buckets = new int[THUMBNAIL_BUCKETS];
+		int maxBucket = 1;
+	}
+
+	/**
+	 * The notes of a track, each as its start, end, key and channel.
+	 */
+	private static class LaneNotes {
+		int size;
+		long[] starts = new long[16];
+		long[] ends = new long[16];
+		byte[] keys = new byte[16];
+		byte[] channels = new byte[16];
+		int lowKey = 127;
+		int highKey = 0;
+
+		void add(long start, long end, int key, int channel) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+				keys = Arrays.copyOf(keys, size * 2);
+				channels = Arrays.copyOf(channels, size * 2);
+			}
+			starts[size] = start;
+			ends[size] = end;
+			keys[size] = (byte) key;
+			channels[size] = (byte) channel;
+			size++;
+			lowKey = Math.min(lowKey, key);
+			highKey = Math.max(highKey, key);
+		}
+	}
+
+	/**
+	 * Creates a new TrackLanesPanel.
+	 * 
+	 * @param theFrame
+	 *            The MIDIEd-frame whose piano roll edits the track of a lane
+	 *            which is double-clicked.
+	 */
+	public TrackLanesPanel(MIDIEd theFrame) {
+		this.theFrame = theFrame;
+		setOpaque(true);
+		setBackground(Color.white);
+		addMouseListener(new MouseAdapter() {
+			public void mousePressed(MouseEvent evt) {
+				int lane = laneAt(evt.getY());
+				if (lane < 0)
+					return;
+				if (evt.getClickCount() == 2) {
+					if (TrackLanesPanel.this.theFrame != null)
+						TrackLanesPanel.this.theFrame.editTrack(lane);
+				} else if (evt.getY() < laneTops[lane] + TITLE_HEIGHT) {
+					setExpanded(lane, !expanded[lane]);
+				}
+			}
+		});
+		layOutLanes();
+	}
+
+	/**
+	 * Set the sequence whose tracks are shown. The lanes stay as they are if
+	 * it is the sequence already shown, with the same number of tracks;
+	 * otherwise every lane is collapsed.
+	 * 
+	 * @param inSequence
+	 *            A sequence.
+	 * @param edited
+	 *            The index of the track edited in the piano roll.
+	 */
+	public void setSequence(EditableSequence inSequence, int edited) {
+		Track[] newTracks = inSequence.getTracks();
+		if (inSequence != sequence || newTracks.length != tracks.length
+				|| inSequence.getResolution() != resolution) {
+			sequence = inSequence;
+			tracks = newTracks;
+			resolution = inSequence.getResolution();
+			expanded = new boolean[tracks.length];
+			forgetTracks();
+		} else {
+			tracks = newTracks;
+			if (tickLengthChanged())
+				forgetTracks();
+		}
+		editedTrack = edited;
+		layOutLanes();
+	}
+
+	/**
+	 * Forget what has been found in a track which has been changed, so that
+	 * it is found again when its lane is painted. The tracks are taken from
+	 * the sequence again, as a track which has been rebuilt, e.g. after
+	 * quantising, is replaced by a new Track.
+	 * 
+	 * @param index
+	 *            The index of the track.
+	 */
+	public void trackChanged(int index) {
+		if (sequence == null)
+			return;
+		Track[] newTracks = sequence.getTracks();
+		if (newTracks.length != tracks.length) {
+			setSequence(sequence, editedTrack);
+			return;
+		}
+		tracks = newTracks;
+		if (tickLengthChanged()) {
+			// every strip is drawn to the length of the sequence
+			forgetTracks();
+		} else if (index >= 0 && index < tracks.length) {
+			summaries[index] = null;
+			laneNotes.remove(index);
+		}
+		repaint();
+	}
+
+	/**
+	 * Expand or collapse a lane. The notes of a collapsed lane are forgotten.
+	 * 
+	 * @param lane
+	 *            The index of the lane.
+	 * @param expand
+	 *            Whether to expand it.
+	 */
+	public void setExpanded(int lane, boolean expand) {
+		expanded[lane] = expand;
+		if (!expand)
+			laneNotes.remove(lane);
+		layOutLanes();
+	}
+
+	/**
+	 * Expand or collapse every lane. Only the notes of the lanes which come
+	 * into view are found.
+	 * 
+	 * @param expand
+	 *            Whether to expand them.
+	 */
+	public void setAllExpanded(boolean expand) {
+		Arrays.fill(expanded, expand);
+		if (!expand)
+			laneNotes.clear();
+		layOutLanes();
+	}
+
+	/**
+	 * Returns the number of lanes whose track has been read for their title
+	 * and strip.
+	 * 
+	 * @return The number of lanes.
+	 */
+	public int getSummarisedLanes() {
+		int n = 0;
+		for (Summary summary : summaries)
+			if (summary != null)
+				n++;
+		return n;
+	}
+
+	/**
+	 * Returns the number of expanded lanes whose notes are kept.
+	 * 
+	 * @return The number of lanes.
+	 */
+	public int getLanesWithNotes() {
+		return laneNotes.size();
+	}
+
+	/**
+	 * Returns whether the length of the sequence has changed since the lanes
+	 * were last drawn to it, and keeps the new length.
+	 */
+	private boolean tickLengthChanged() {
+		long length = Math.max(1, sequence.getTickLength());
+		if (length == tickLength)
+			return false;
+		tickLength = length;
+		return true;
+	}
+
+	private void forgetTracks() {
+		tickLength = Math.max(1, sequence.getTickLength());
+		summaries = new Summary[tracks.length];
+		laneNotes.clear();
+	}
+
+	/**
+	 * Work out where each lane is, and resize the panel to hold them all.
+	 */
+	private void layOutLanes() {
+		laneTops = new int[tracks.length + 1];
+		for (int lane = 0; lane < tracks.length; lane++)
+			laneTops[lane + 1] = laneTops[lane] + TITLE_HEIGHT
+					+ (expanded[lane] ? EXPANDED_HEIGHT : THUMBNAIL_HEIGHT);
+		setPreferredSize(new Dimension(600, laneTops[tracks.length]));
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Returns the lane at a y-coordinate, or -1 if there is none.
+	 */
+	private int laneAt(int y) {
+		if (y < 0 || y >= laneTops[tracks.length])
+			return -1;
+		int lane = Arrays.binarySearch(laneTops, y);
+		return lane >= 0 ? lane : -lane - 2;
+	}
+
+	/**
+	 * Paints the lanes which are in the clip, finding what is shown in them
+	 * first if they have not been painted before.
+	 */
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		if (tracks.length == 0)
+			return;
+		// the notes of the expanded lanes in view must all be kept, however
+		// little of the panel is repainted
+		Rectangle view = getVisibleRect();
+		int inView = 0;
+		int last = laneAt(Math.min(view.y + view.height, laneTops[tracks.length]) - 1);
+		for (int lane = Math.max(0, laneAt(view.y)); lane <= last; lane++)
+			if (expanded[lane])
+				inView++;
+		expandedInView = inView;
+
+		int first = Math.max(0, laneAt(clip.y));
+		for (int lane = first; lane < tracks.length
+				&& laneTops[lane] < clip.y + clip.height; lane++)
+			paintLane(g, lane);
+	}
+
+	/**
+	 * Paints the title and the strip or notes of a lane.
+	 */
+	private void paintLane(Graphics g, int lane) {
+		int top = laneTops[lane];
+		int width = getWidth();
+		Summary summary = summaries[lane];
+		if (summary == null) {
+			summary = summarise(tracks[lane]);
+			summaries[lane] = summary;
+		}
+		g.setColor(lane == editedTrack ? EDITED_TITLE_COLOR : TITLE_COLOR);
+		g.fillRect(0, top, width, TITLE_HEIGHT);
+		g.setColor(Color.black);
+		drawArrow(g, 4, top + TITLE_HEIGHT / 2, expanded[lane]);
+		FontMetrics fm = g.getFontMetrics();
+		String title = "Track " + lane
+				+ (summary.name == null ? "" : ": " + summary.name) + " ("
+				+ summary.noteCount + " notes)";
+		g.drawString(title, 16, top + (TITLE_HEIGHT + fm.getAscent()) / 2 - 1);
+
+		int bodyTop = top + TITLE_HEIGHT;
+		int bodyHeight = laneTops[lane + 1] - bodyTop;
+		drawBars(g, bodyTop, bodyHeight);
+		if (expanded[lane]) {
+			LaneNotes notes = laneNotes.get(lane);
+			if (notes == null) {
+				notes = findNotes(tracks[lane]);
+				laneNotes.put(lane, notes);
+			}
+			drawNotes(g, notes, bodyTop, bodyHeight);
+		} else {
+			drawThumbnail(g, summary, bodyTop, bodyHeight);
+		}
+		g.setColor(Color.lightGray);
+		g.drawLine(0, laneTops[lane + 1] - 1, width, laneTops[lane + 1] - 1);
+	}
+
+	/**
+	 * Draws a small triangle pointing right, or down if the lane is expanded.
+	 */
+	private void drawArrow(Graphics g, int x, int y, boolean down) {
+		if (down)
+			g.fillPolygon(new int[] { x, x + 8, x + 4 }, new int[] { y - 2,
+					y - 2, y + 3 }, 3);
+		else
+			g.fillPolygon(new int[] { x + 2, x + 7, x + 2 }, new int[] { y - 4,
+					y, y + 4 }, 3);
+	}
+
+	/**
+	 * Draws a line at every bar, unless they would be too close together.
+	 * Assumes that there are four beats in a bar, as the piano roll does.
+	 */
+	private void drawBars(Graphics g, int top, int height) {
+		int width = getWidth();
+		long barTicks = resolution * 4L;
+		if (barTicks * width / tickLength < MIN_BAR_SPACING)
+			return;
+		g.setColor(BAR_COLOR);
+		for (long tick = barTicks; tick < tickLength; tick += barTicks) {
+			int x = (int) (tick * width / tickLength);
+			g.drawLine(x, top, x, top + height - 2);
+		}
+	}
+
+	/**
+	 * Draws one density bar per pixel column, from the buckets of the
+	 * summary.
+	 */
+	private void drawThumbnail(Graphics g, Summary summary, int top, int height) {
+		int width = getWidth();
+		if (width <= 0)
+			return;
+		g.setColor(DENSITY_COLOR);
+		for (int x = 0; x < width; x++) {
+			int from = (int) ((long) x * THUMBNAIL_BUCKETS / width);
+			int to = (int) Math.max(from + 1, (long) (x + 1)
+					* THUMBNAIL_BUCKETS / width);
+			int count = 0;
+			for (int b = from; b < to; b++)
+				count = Math.max(count, summary.buckets[b]);
+			if (count == 0)
+				continue;
+			int barHeight = Math.max(1, count * (height - 3)
+					/ summary.maxBucket);
+			g.drawLine(x, top + height - 2, x, top + height - 2 - barHeight);
+		}
+	}
+
+	/**
+	 * Draws the notes of a lane, spread over the keys between its lowest and
+	 * highest note.
+	 */
+	private void drawNotes(Graphics g, LaneNotes notes, int top, int height) {
+		int width = getWidth();
+		int lowKey = notes.lowKey;
+		int keys = Math.max(MIN_KEYS, notes.highKey - lowKey + 1);
+		if (notes.highKey - lowKey + 1 < keys)
+			lowKey = Math.max(0, notes.highKey - keys + 1);
+		double keyHeight = (double) (height - 2) / keys;
+		int noteHeight = Math.max(1, (int) keyHeight);
+		for (int i = 0; i < notes.size; i++) {
+			int x = (int) (notes.starts[i] * width / tickLength);
+			int w = Math.max(1, (int) (notes.ends[i] * width / tickLength) - x);
+			int y = top
+					+ (int) ((lowKey + keys - 1 - notes.keys[i]) * keyHeight);
+			g.setColor(Constants.CHANNEL_COLORS[notes.channels[i]]);
+			g.fillRect(x, y, w, noteHeight);
+		}
+	}
+
+	/**
+	 * Read the name of a track, and count its notes.
+	 */
+	private Summary summarise(Track track) {
+		Summary summary = new Summary();
+		for (int e = 0; e < track.size(); e++) {
+			MidiEvent event = track.get(e);
+			MidiMessage msg = event.getMessage();
+			if (msg instanceof ShortMessage) {
+				ShortMessage sm = (ShortMessage) msg;
+				if (sm.getCommand() == ShortMessage.NOTE_ON
+						&& sm.getData2() > 0) {
+					summary.noteCount++;
+					int b = (int) (event.getTick() * THUMBNAIL_BUCKETS / (tickLength + 1));
+					summary.buckets[b]++;
+					summary.maxBucket = Math.max(summary.maxBucket,
+							summary.buckets[b]);
+				}
+			} else if (msg instanceof MetaMessage && summary.name == null
+					&& ((MetaMessage) msg).getType() == 0x03) {
+				summary.name = new String(((MetaMessage) msg).getData()).trim();
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Find the notes of a track, pairing NOTE_ONs with NOTE_OFFs in the way
+	 * the piano roll does.
+	 */
+	private LaneNotes findNotes(Track track) {
+		LaneNotes notes = new LaneNotes();
+		// per channel * 128 + key: the start of the sounding note, or -1
+		long[] starts = new long[16 * 128];
+		Arrays.fill(starts, -1);
+		for (int e = 0; e < track.size(); e++) {
+			MidiEvent event = track.get(e);
+			MidiMessage msg = event.getMessage();
+			if (!(msg instanceof ShortMessage))
+				continue;
+			ShortMessage sm = (ShortMessage) msg;
+			int command = sm.getCommand();
+			int channel = sm.getChannel();
+			int key = sm.getData1();
+			int note = channel * 128 + key;
+			if (command == ShortMessage.NOTE_ON && starts[note] < 0) {
+				if (sm.getData2() > 0)
+					starts[note] = event.getTick();
+			} else if (command == ShortMessage.NOTE_ON && sm.getData2() > 0) {
+				// the note is already sounding
+			} else if ((command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF)
+					&& starts[note] >= 0) {
+				notes.add(starts[note], event.getTick(), key, channel);
+				starts[note] = -1;
+			}
+		}
+		return notes;
+	}
+
+	public Dimension getPreferredScrollableViewportSize() {
+		return new Dimension(600, 400);
+	}
+
+	public int getScrollableUnitIncrement(Rectangle visibleRect,
+			int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? TITLE_HEIGHT
+				+ THUMBNAIL_HEIGHT : 10;
+	}
+
+	public int getScrollableBlockIncrement(Rectangle visibleRect,
+			int orientation, int direction) {
+		return orientation == SwingConstants.VERTICAL ? visibleRect.height
+				: visibleRect.width;
+	}
+
+	public boolean getScrollableTracksViewportWidth() {
+		// the whole sequence fits the width of the lanes
+		return true;
+	}
+
+	public boolean getScrollableTracksViewportHeight() {
+		return false;
+	}
+}
@@ -0,0 +1,86 @@
+package midied;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+
+/**
+ * Shows the tracks of the sequence as lanes in a TrackLanesPanel, next to the
+ * editor, with buttons to expand or collapse every lane.
+ * 
+ * @author 090010514
+ */
+public class TracksDialog extends JDialog implements ActionListener {
+	private static final long serialVersionUID = 1L;
+	private static final String EXPAND_ALL = "Expand all";
+	private static final String COLLAPSE_ALL = "Collapse all";
+	private static final String CLOSE = "Close";
+
+	private final TrackLanesPanel lanes;
+
+	/**
+	 * Create a new TracksDialog.
+	 * 
+	 * @param theFrame
+	 *            The MIDIEd-frame which is this dialog's owner. Input is still
+	 *            accepted into the frame while this dialog is open.
+	 */
+	public TracksDialog(MIDIEd theFrame) {
+		super(theFrame, "Tracks", false);
+		lanes = new TrackLanesPanel(theFrame);
+		add(new JScrollPane(lanes), BorderLayout.CENTER);
+		JPanel buttonPanel = new JPanel();
+		buttonPanel.add(createButton(EXPAND_ALL, 'E'));
+		buttonPanel.add(createButton(COLLAPSE_ALL, 'C'));
+		buttonPanel.add(createButton(CLOSE, 'l'));
+		add(buttonPanel, BorderLayout.SOUTH);
+		pack();
+		setLocationRelativeTo(theFrame);
+	}
+
+	private JButton createButton(String text, char mnemonic) {
+		JButton button = new JButton(text);
+		button.setActionCommand(text);
+		button.setMnemonic(mnemonic);
+		button.addActionListener(this);
+		return button;
+	}
+
+	/**
+	 * Set the sequence whose tracks are shown.
+	 * 
+	 * @param sequence
+	 *            A sequence.
+	 * @param editedTrack
+	 *            The index of the track edited in the piano roll.
+	 */
+	public void setSequence(EditableSequence sequence, int editedTrack) {
+		lanes.setSequence(sequence, editedTrack);
+	}
+
+	/**
+	 * Show a track again after it has been changed.
+	 * 
+	 * @param index
+	 *            The index of the track.
+	 */
+	public void trackChanged(int index) {
+		lanes.trackChanged(index);
+	}
+
+	public void actionPerformed(ActionEvent evt) {
+		String ac = evt.getActionCommand();
+		if (ac == EXPAND_ALL) {
+			lanes.setAllExpanded(true);
+		} else if (ac == COLLAPSE_ALL) {
+			lanes.setAllExpanded(false);
+		} else if (ac == CLOSE) {
+			setVisible(false);
+		}
+	}
+}